@@ -0,0 +1,169 @@
+package dev.nxms.codes.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The append-only used codes file of the yaml and binary storage ({@code codes.archive},
+ * {@code codes.dat.archive}), same layout as {@code ArchiveFile} in the plugin: records framed
+ * as body length, CRC32 and body, later records superseding earlier ones of the same code.
+ */
+final class ArchiveState {
+
+    private static final byte ARCHIVED = 1;
+
+    private ArchiveState() {
+    }
+
+    /**
+     * Passes the live used codes to the sink in archive order. The file is read twice,
+     * first to find the live records, so only their positions are kept in memory.
+     *
+     * @return lower-cased names of the passed codes
+     */
+    static Set<String> read(Path file, StateSink sink) throws IOException {
+        if (!Files.exists(file)) return Set.of();
+
+        // position of the live record of every code
+        Map<String, Long> live = new LinkedHashMap<>();
+        forEachRecord(file, (offset, body) -> {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            byte type = in.readByte();
+            String key = Formats.key(BinaryIO.readString(in));
+            live.remove(key);
+            // anything else is a removal
+            if (type == ARCHIVED) live.put(key, offset);
+        });
+
+        // a code moves to the end of the index whenever it is archived again, so the index
+        // order is the file order of the live records
+        Set<Long> offsets = new HashSet<>(live.values());
+        forEachRecord(file, (offset, body) -> {
+            if (offsets.contains(offset)) sink.usedCode(decode(body));
+        });
+        return live.keySet();
+    }
+
+    private interface RecordVisitor {
+        void accept(long offset, byte[] body) throws IOException;
+    }
+
+    /**
+     * Stops at the first incomplete or damaged record, like the plugin does when opening the file.
+     */
+    private static void forEachRecord(Path file, RecordVisitor visitor) throws IOException {
+        long size = Files.size(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            long offset = 0;
+            while (offset + 8 <= size) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || offset + 8 + length > size) return;
+
+                byte[] body = new byte[length];
+                in.readFully(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) return;
+
+                visitor.accept(offset, body);
+                offset += 8 + length;
+            }
+        } catch (EOFException e) {
+            // torn record at the end
+        }
+    }
+
+    private static UsedCodeRecord decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        in.readByte();
+        String name = BinaryIO.readString(in);
+        String rewardDisplay = BinaryIO.readNullableString(in);
+        int totalUses = BinaryIO.readVarInt(in);
+        int maxGlobalUses = BinaryIO.readVarInt(in);
+        int maxPlayerUses = BinaryIO.readVarInt(in);
+        int count = BinaryIO.readVarInt(in);
+
+        DataInputStream players = new DataInputStream(new InflaterInputStream(in));
+        Map<UUID, Integer> playerUses = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+        for (int i = 0; i < count; i++) {
+            playerUses.put(BinaryIO.readUuid(players), BinaryIO.readVarInt(players));
+        }
+        return new UsedCodeRecord(name, rewardDisplay, totalUses, maxGlobalUses, maxPlayerUses, playerUses);
+    }
+
+    /**
+     * Writes a fresh archive file, nothing is created when there are no used codes.
+     */
+    static final class Output implements StateSink {
+
+        private final Path target;
+        private final Path temp;
+        private DataOutputStream out;
+
+        Output(Path target) {
+            this.target = target;
+            this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+        }
+
+        @Override
+        public void item(String hash, byte[] data) {
+        }
+
+        @Override
+        public void code(CodeRecord code) {
+        }
+
+        @Override
+        public void usedCode(UsedCodeRecord code) throws IOException {
+            if (out == null) out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream(bytes);
+            body.writeByte(ARCHIVED);
+            BinaryIO.writeString(body, code.name());
+            BinaryIO.writeNullableString(body, code.rewardDisplay());
+            BinaryIO.writeVarInt(body, code.totalUses());
+            BinaryIO.writeVarInt(body, code.maxGlobalUses());
+            BinaryIO.writeVarInt(body, code.maxPlayerUses());
+            BinaryIO.writeVarInt(body, code.playerUses().size());
+            body.flush();
+
+            DeflaterOutputStream deflater = new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED));
+            DataOutputStream players = new DataOutputStream(deflater);
+            for (Map.Entry<UUID, Integer> entry : code.playerUses().entrySet()) {
+                BinaryIO.writeUuid(players, entry.getKey());
+                BinaryIO.writeVarInt(players, entry.getValue());
+            }
+            players.flush();
+            deflater.finish();
+
+            byte[] frame = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(frame);
+            out.writeInt(frame.length);
+            out.writeInt((int) crc.getValue());
+            out.write(frame);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (out == null) return;
+            out.close();
+            Files.move(temp, target);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package dev.nxms.codes.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * codes.dat, same layout as {@code BinarySnapshotFormat} in the plugin: magic, version, payload
+ * length, CRC32 and the payload with the item blobs, the active codes and the used codes.
+ * The payload is read as a stream and its checksum verified at the end.
+ */
+final class BinaryState {
+
+    static final int MAGIC = 0x4E584344;
+    static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 14;
+
+    private BinaryState() {
+    }
+
+    // ----------------------------
+    // Read
+    // ----------------------------
+
+    /**
+     * @param keepUsed filters the used codes of the file by name
+     * @throws IOException if the file is truncated or corrupted, after records may already have been passed on
+     */
+    static void read(Path file, StateSink sink, Predicate<String> keepUsed) throws IOException {
+        long size = Files.size(file);
+        try (DataInputStream header = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (size < HEADER_SIZE || header.readInt() != MAGIC) throw new IOException("Not a codes snapshot file");
+            int version = header.readUnsignedShort();
+            if (version > VERSION) {
+                throw new IOException("Snapshot version " + version + " is newer than supported version " + VERSION);
+            }
+            int length = header.readInt();
+            int checksum = header.readInt();
+            if (length < 0 || length != size - HEADER_SIZE) throw new IOException("Snapshot is truncated");
+
+            CheckedInputStream checked = new CheckedInputStream(header, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+
+            List<String> items = new ArrayList<>();
+            if (version >= 2) {
+                int blobCount = BinaryIO.readVarInt(in);
+                for (int i = 0; i < blobCount; i++) {
+                    byte[] data = BinaryIO.readBytes(in);
+                    String hash = Formats.itemHash(data);
+                    sink.item(hash, data);
+                    items.add(hash);
+                }
+            }
+
+            Set<String> inlineItems = new HashSet<>();
+            int codeCount = BinaryIO.readVarInt(in);
+            for (int i = 0; i < codeCount; i++) {
+                sink.code(readCode(in, version, items, inlineItems, sink));
+            }
+
+            int usedCount = BinaryIO.readVarInt(in);
+            for (int i = 0; i < usedCount; i++) {
+                UsedCodeRecord used = readUsedCode(in);
+                if (keepUsed.test(used.name())) sink.usedCode(used);
+            }
+
+            if ((int) checked.getChecksum().getValue() != checksum) throw new IOException("Snapshot checksum mismatch");
+        }
+    }
+
+    private static CodeRecord readCode(DataInputStream in, int version, List<String> items, Set<String> inlineItems,
+                                       StateSink sink) throws IOException {
+        String name = BinaryIO.readString(in);
+        int globalUses = BinaryIO.readVarInt(in);
+        int maxGlobalUses = BinaryIO.readVarInt(in);
+        int maxPlayerUses = BinaryIO.readVarInt(in);
+        int cooldown = BinaryIO.readVarInt(in);
+        boolean broadcast = in.readBoolean();
+        String rewardType = BinaryIO.readString(in);
+
+        String itemHash = null;
+        String textReward = null;
+        switch (rewardType) {
+            case "ITEM" -> {
+                if (version == 1) {
+                    if (in.readBoolean()) {
+                        byte[] data = BinaryIO.readBytes(in);
+                        itemHash = Formats.itemHash(data);
+                        if (inlineItems.add(itemHash)) sink.item(itemHash, data);
+                    }
+                } else {
+                    int ref = BinaryIO.readVarInt(in);
+                    if (ref > items.size()) throw new IOException("Unknown item of code " + name);
+                    if (ref > 0) itemHash = items.get(ref - 1);
+                }
+            }
+            case "PERMISSION", "RANK" -> textReward = BinaryIO.readNullableString(in);
+            default -> throw new IOException("Unknown reward type of code " + name);
+        }
+
+        Map<UUID, Integer> playerUses = readPlayerUses(in);
+
+        int cooldownCount = BinaryIO.readVarInt(in);
+        Map<UUID, Long> playerCooldowns = new HashMap<>(Math.max(16, cooldownCount * 4 / 3 + 1));
+        long timestamp = 0;
+        for (int i = 0; i < cooldownCount; i++) {
+            UUID uuid = BinaryIO.readUuid(in);
+            timestamp += BinaryIO.readVarLong(in);
+            playerCooldowns.put(uuid, timestamp);
+        }
+
+        return new CodeRecord(name, globalUses, maxGlobalUses, maxPlayerUses, cooldown, broadcast, rewardType,
+                itemHash, textReward, false, playerUses, playerCooldowns);
+    }
+
+    private static UsedCodeRecord readUsedCode(DataInputStream in) throws IOException {
+        String name = BinaryIO.readString(in);
+        String rewardDisplay = BinaryIO.readNullableString(in);
+        int totalUses = BinaryIO.readVarInt(in);
+        int maxGlobalUses = BinaryIO.readVarInt(in);
+        int maxPlayerUses = BinaryIO.readVarInt(in);
+        return new UsedCodeRecord(name, rewardDisplay, totalUses, maxGlobalUses, maxPlayerUses, readPlayerUses(in));
+    }
+
+    private static Map<UUID, Integer> readPlayerUses(DataInputStream in) throws IOException {
+        int count = BinaryIO.readVarInt(in);
+        Map<UUID, Integer> playerUses = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+        for (int i = 0; i < count; i++) {
+            playerUses.put(BinaryIO.readUuid(in), BinaryIO.readVarInt(in));
+        }
+        return playerUses;
+    }
+
+    // ----------------------------
+    // Write
+    // ----------------------------
+
+    /**
+     * Writes codes.dat with active codes and items, used codes go to the archive file next to it.
+     * Items are kept in memory, codes are spooled to a temp file until the payload length and
+     * checksum for the header are known.
+     */
+    static final class Output implements StateSink {
+
+        private final Path target;
+        private final Path codesTemp;
+        private final DataOutputStream codes;
+        private final Map<String, Integer> itemIndexes = new HashMap<>();
+        private final ByteArrayOutputStream itemBytes = new ByteArrayOutputStream();
+        private final DataOutputStream items = new DataOutputStream(itemBytes);
+        private final ArchiveState.Output archive;
+        private int codeCount;
+
+        Output(Path target) throws IOException {
+            this.target = target;
+            this.codesTemp = target.resolveSibling(target.getFileName() + ".codes.tmp");
+            this.codes = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(codesTemp), 1 << 16));
+            this.archive = new ArchiveState.Output(StorageFormat.BINARY.archiveFile(target));
+        }
+
+        @Override
+        public void item(String hash, byte[] data) throws IOException {
+            if (itemIndexes.containsKey(hash)) return;
+            itemIndexes.put(hash, itemIndexes.size());
+            BinaryIO.writeBytes(items, data);
+        }
+
+        @Override
+        public void code(CodeRecord code) throws IOException {
+            Formats.requireWritable(code);
+            BinaryIO.writeString(codes, code.name());
+            BinaryIO.writeVarInt(codes, code.globalUses());
+            BinaryIO.writeVarInt(codes, code.maxGlobalUses());
+            BinaryIO.writeVarInt(codes, code.maxPlayerUses());
+            BinaryIO.writeVarInt(codes, code.cooldown());
+            codes.writeBoolean(code.broadcast());
+            BinaryIO.writeString(codes, code.rewardType());
+
+            switch (code.rewardType()) {
+                case "ITEM" -> {
+                    Integer index = code.itemHash() != null ? itemIndexes.get(code.itemHash()) : null;
+                    if (code.itemHash() != null && index == null) {
+                        throw new IOException("Unknown item " + code.itemHash() + " of code " + code.name());
+                    }
+                    // blob index + 1, 0 for none
+                    BinaryIO.writeVarInt(codes, index != null ? index + 1 : 0);
+                }
+                case "PERMISSION", "RANK" -> BinaryIO.writeNullableString(codes, code.textReward());
+                default -> throw new IOException("Unknown reward type " + code.rewardType() + " of code " + code.name()
+                        + ", use --drop-invalid to leave it out");
+            }
+
+            BinaryIO.writeVarInt(codes, code.playerUses().size());
+            for (Map.Entry<UUID, Integer> entry : code.playerUses().entrySet()) {
+                BinaryIO.writeUuid(codes, entry.getKey());
+                BinaryIO.writeVarInt(codes, entry.getValue());
+            }
+
+            List<Map.Entry<UUID, Long>> cooldowns = new ArrayList<>(code.playerCooldowns().entrySet());
+            cooldowns.sort(Map.Entry.comparingByValue());
+            BinaryIO.writeVarInt(codes, cooldowns.size());
+            long previous = 0;
+            for (Map.Entry<UUID, Long> entry : cooldowns) {
+                BinaryIO.writeUuid(codes, entry.getKey());
+                BinaryIO.writeVarLong(codes, entry.getValue() - previous);
+                previous = entry.getValue();
+            }
+            codeCount++;
+        }
+
+        @Override
+        public void usedCode(UsedCodeRecord code) throws IOException {
+            archive.usedCode(code);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            codes.close();
+
+            ByteArrayOutputStream headBytes = new ByteArrayOutputStream();
+            DataOutputStream head = new DataOutputStream(headBytes);
+            BinaryIO.writeVarInt(head, itemIndexes.size());
+            items.flush();
+            itemBytes.writeTo(head);
+            BinaryIO.writeVarInt(head, codeCount);
+            head.flush();
+
+            ByteArrayOutputStream tailBytes = new ByteArrayOutputStream();
+            // used codes are in the archive file
+            BinaryIO.writeVarInt(new DataOutputStream(tailBytes), 0);
+
+            CRC32 crc = new CRC32();
+            crc.update(headBytes.toByteArray());
+            try (InputStream in = new CheckedInputStream(Files.newInputStream(codesTemp), crc)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            crc.update(tailBytes.toByteArray());
+            long length = headBytes.size() + Files.size(codesTemp) + tailBytes.size();
+            if (length > Integer.MAX_VALUE) throw new IOException("Snapshot is larger than 2 GB");
+
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeInt((int) length);
+                out.writeInt((int) crc.getValue());
+                headBytes.writeTo(out);
+                Files.copy(codesTemp, out);
+                tailBytes.writeTo(out);
+            }
+            Files.delete(codesTemp);
+            Files.move(temp, target);
+            archive.finish();
+        }
+    }
+}
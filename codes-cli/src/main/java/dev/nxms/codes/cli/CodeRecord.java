@@ -0,0 +1,32 @@
+package dev.nxms.codes.cli;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * One active code as stored on disk. The reward type is kept as written, so invalid
+ * values can be reported instead of failing the whole file.
+ *
+ * @param itemHash   reference to an item passed to {@link StateSink#item} before this code, or null
+ * @param textReward permission or rank, depending on the reward type
+ * @param legacyItem true if the code has an inline {@code item-reward} written by old plugin versions
+ */
+public record CodeRecord(
+        String name,
+        int globalUses,
+        int maxGlobalUses,
+        int maxPlayerUses,
+        int cooldown,
+        boolean broadcast,
+        String rewardType,
+        String itemHash,
+        String textReward,
+        boolean legacyItem,
+        Map<UUID, Integer> playerUses,
+        Map<UUID, Long> playerCooldowns
+) {
+    public CodeRecord withPlayerCooldowns(Map<UUID, Long> cooldowns) {
+        return new CodeRecord(name, globalUses, maxGlobalUses, maxPlayerUses, cooldown, broadcast, rewardType,
+                itemHash, textReward, legacyItem, playerUses, cooldowns);
+    }
+}
@@ -0,0 +1,155 @@
+package dev.nxms.codes.cli;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Offline tool for the plugin's data files. Works on a stopped server's files or a copy of them:
+ * records are streamed from the source, so files too large for YamlConfiguration can be handled.
+ */
+public final class CodesCli {
+
+    private static final int OK = 0;
+    private static final int FAILED = 1;
+    private static final int USAGE = 2;
+
+    private CodesCli() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        if (args.length < 2) return usage(err);
+
+        String command = args[0];
+        Path source = Path.of(args[1]);
+        Set<String> flags = new HashSet<>(Arrays.asList(args).subList(Math.min(args.length, 3), args.length));
+
+        try {
+            if (!Files.exists(source)) {
+                err.println("Source " + source + " does not exist.");
+                return FAILED;
+            }
+            StorageFormat sourceFormat = StorageFormat.detect(source);
+            warnAboutJournal(sourceFormat, source, err);
+
+            switch (command) {
+                case "stats" -> {
+                    if (args.length != 2) return usage(err);
+                    StatsSink stats = new StatsSink(out, System.currentTimeMillis());
+                    sourceFormat.read(source, stats);
+                    stats.finish();
+                    return OK;
+                }
+                case "validate" -> {
+                    if (args.length != 2) return usage(err);
+                    ValidatingSink validator = new ValidatingSink(out);
+                    sourceFormat.read(source, validator);
+                    validator.finish();
+                    return validator.problemCount() == 0 ? OK : FAILED;
+                }
+                case "compact" -> {
+                    if (args.length < 3 || !knownFlags(flags, "--keep-cooldowns", "--keep-archived-players", "--drop-invalid")) {
+                        return usage(err);
+                    }
+                    return copy(sourceFormat, source, Path.of(args[2]), out, err,
+                            !flags.contains("--keep-cooldowns"), !flags.contains("--keep-archived-players"),
+                            flags.contains("--drop-invalid"));
+                }
+                case "convert" -> {
+                    if (args.length < 3 || !knownFlags(flags, "--prune-cooldowns", "--drop-archived-players", "--drop-invalid")) {
+                        return usage(err);
+                    }
+                    return copy(sourceFormat, source, Path.of(args[2]), out, err,
+                            flags.contains("--prune-cooldowns"), flags.contains("--drop-archived-players"),
+                            flags.contains("--drop-invalid"));
+                }
+                default -> {
+                    return usage(err);
+                }
+            }
+        } catch (IOException e) {
+            err.println("Error: " + e.getMessage());
+            return FAILED;
+        }
+    }
+
+    private static int copy(StorageFormat sourceFormat, Path source, Path target, PrintStream out, PrintStream err,
+                            boolean pruneCooldowns, boolean dropArchivedPlayers, boolean dropInvalid) throws IOException {
+        if (Files.exists(target)) {
+            err.println("Target " + target + " already exists.");
+            return FAILED;
+        }
+        StorageFormat targetFormat = StorageFormat.detect(target);
+        List<Path> created = targetFormat.outputFiles(target);
+        for (Path file : created) {
+            if (!file.equals(target) && Files.exists(file)) {
+                err.println("Target file " + file + " already exists.");
+                return FAILED;
+            }
+        }
+
+        try {
+            StateSink sink = new CompactingSink(targetFormat.output(target), out, pruneCooldowns, dropArchivedPlayers,
+                    dropInvalid, System.currentTimeMillis());
+            sourceFormat.read(source, sink);
+            sink.finish();
+        } catch (IOException | RuntimeException e) {
+            // leave nothing half written behind
+            for (Path file : created) {
+                deleteRecursively(file);
+            }
+            throw e;
+        }
+
+        out.println("Wrote " + target + " (" + targetFormat.name().toLowerCase(Locale.ROOT) + ").");
+        return OK;
+    }
+
+    /**
+     * Journal records are changes made after the snapshot was written. Replaying them needs the
+     * plugin, so they are only pointed out.
+     */
+    private static void warnAboutJournal(StorageFormat format, Path source, PrintStream err) throws IOException {
+        for (Path journal : format.journalFiles(source)) {
+            if (Files.exists(journal) && Files.size(journal) > 0) {
+                err.println("Warning: " + journal.getFileName() + " has changes that are not in the snapshot yet, "
+                        + "start and stop the plugin once to fold them in.");
+            }
+        }
+    }
+
+    private static boolean knownFlags(Set<String> flags, String... known) {
+        return Set.of(known).containsAll(flags);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                for (Path file : files.toList()) {
+                    deleteRecursively(file);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+
+    private static int usage(PrintStream err) {
+        err.println("Usage:");
+        err.println("  stats <source>");
+        err.println("  validate <source>");
+        err.println("  compact <source> <target> [--keep-cooldowns] [--keep-archived-players] [--drop-invalid]");
+        err.println("  convert <source> <target> [--prune-cooldowns] [--drop-archived-players] [--drop-invalid]");
+        err.println();
+        err.println("Storage is chosen by name: .yml (yaml), .dat (binary), .db (sqlite) or a folder (sharded).");
+        err.println("A target without a file extension is written as a sharded folder.");
+        return USAGE;
+    }
+}
@@ -0,0 +1,83 @@
+package dev.nxms.codes.cli;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Drops data the plugin no longer needs on its way to another sink: expired cooldown entries,
+ * player maps of used codes (the plugin only shows their count) and codes that fail validation.
+ */
+final class CompactingSink implements StateSink {
+
+    private final StateSink delegate;
+    private final PrintStream out;
+    private final boolean pruneCooldowns;
+    private final boolean dropArchivedPlayers;
+    private final boolean dropInvalid;
+    private final long now;
+
+    private final Set<String> items = new HashSet<>();
+    private long prunedCooldowns;
+    private long droppedPlayers;
+    private int droppedCodes;
+
+    CompactingSink(StateSink delegate, PrintStream out, boolean pruneCooldowns, boolean dropArchivedPlayers,
+                   boolean dropInvalid, long now) {
+        this.delegate = delegate;
+        this.out = out;
+        this.pruneCooldowns = pruneCooldowns;
+        this.dropArchivedPlayers = dropArchivedPlayers;
+        this.dropInvalid = dropInvalid;
+        this.now = now;
+    }
+
+    /**
+     * Same check as the plugin: the cooldown is over once {@code cooldown} seconds have passed.
+     */
+    static boolean isExpired(int cooldown, long lastUse, long now) {
+        return cooldown <= 0 || lastUse + cooldown * 1000L <= now;
+    }
+
+    @Override
+    public void item(String hash, byte[] data) throws IOException {
+        items.add(hash);
+        delegate.item(hash, data);
+    }
+
+    @Override
+    public void code(CodeRecord code) throws IOException {
+        if (dropInvalid && !ValidatingSink.problems(code, items).isEmpty()) {
+            out.println("Dropped invalid code " + code.name());
+            droppedCodes++;
+            return;
+        }
+
+        if (pruneCooldowns && !code.playerCooldowns().isEmpty()) {
+            Map<UUID, Long> kept = new HashMap<>();
+            for (Map.Entry<UUID, Long> entry : code.playerCooldowns().entrySet()) {
+                if (!isExpired(code.cooldown(), entry.getValue(), now)) kept.put(entry.getKey(), entry.getValue());
+            }
+            prunedCooldowns += code.playerCooldowns().size() - kept.size();
+            code = code.withPlayerCooldowns(kept);
+        }
+        delegate.code(code);
+    }
+
+    @Override
+    public void usedCode(UsedCodeRecord code) throws IOException {
+        if (dropArchivedPlayers && !code.playerUses().isEmpty()) {
+            droppedPlayers += code.playerUses().size();
+            code = code.withoutPlayers();
+        }
+        delegate.usedCode(code);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        delegate.finish();
+        if (pruneCooldowns) out.println("Pruned " + prunedCooldowns + " expired cooldowns.");
+        if (dropArchivedPlayers) out.println("Dropped " + droppedPlayers + " player entries of used codes.");
+        if (dropInvalid) out.println("Dropped " + droppedCodes + " invalid codes.");
+    }
+}
@@ -0,0 +1,78 @@
+package dev.nxms.codes.cli;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Small helpers mirroring what the plugin does when it writes its files.
+ */
+final class Formats {
+
+    static final String[] REWARD_TYPES = {"ITEM", "PERMISSION", "RANK"};
+
+    private Formats() {
+    }
+
+    /**
+     * Same as {@code ItemBlob.hash} in the plugin.
+     */
+    static String itemHash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Same as {@code ShardedCodeStorage.fileName} in the plugin.
+     */
+    static String shardFileName(String codeName) {
+        StringBuilder out = new StringBuilder();
+        for (byte b : codeName.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+                out.append(c);
+            } else {
+                out.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return out.append(".yml").toString();
+    }
+
+    static boolean isKnownRewardType(String type) {
+        for (String known : REWARD_TYPES) {
+            if (known.equals(type)) return true;
+        }
+        return false;
+    }
+
+    static UUID parseUuid(String value) {
+        try {
+            return UUID.fromString(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Inline items of old plugin versions are Bukkit-serialized maps which cannot be converted
+     * without a server, the plugin rewrites them as item references on its next save.
+     */
+    static void requireWritable(CodeRecord code) throws IOException {
+        if (code.legacyItem()) {
+            throw new IOException("Code " + code.name() + " has an inline item-reward written by an old plugin version, "
+                    + "start the plugin once to convert it");
+        }
+    }
+
+    static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
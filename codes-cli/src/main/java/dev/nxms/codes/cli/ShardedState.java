@@ -0,0 +1,120 @@
+package dev.nxms.codes.cli;
+
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * The sharded layout: {@code codes/<name>.yml}, {@code archive/<name>.yml} and {@code items/<hash>.bin}
+ * in one folder. Each shard is small and read on its own.
+ */
+final class ShardedState {
+
+    private ShardedState() {
+    }
+
+    private record ArchiveShard(Path file, long archivedAt) { }
+
+    static void read(Path folder, StateSink sink) throws IOException {
+        Set<String> passedItems = new HashSet<>();
+        for (Path file : shards(folder.resolve("codes"))) {
+            Map<?, ?> map = load(file);
+            String name = YamlState.string(map, "name", null);
+            if (name == null) throw new IOException(file.getFileName() + " has no name");
+
+            CodeRecord code = YamlState.toCode(name, map);
+            if (code.itemHash() != null && passedItems.add(code.itemHash())) {
+                Path item = folder.resolve("items").resolve(code.itemHash() + ".bin");
+                // a missing item is left for validation to report
+                if (Files.exists(item)) sink.item(code.itemHash(), Files.readAllBytes(item));
+            }
+            sink.code(code);
+        }
+
+        // the plugin lists used codes by the time they were archived
+        List<ArchiveShard> archived = new ArrayList<>();
+        for (Path file : shards(folder.resolve("archive"))) {
+            Long archivedAt = YamlState.parseLong(load(file).get("archived-at"));
+            archived.add(new ArchiveShard(file, archivedAt != null ? archivedAt : 0));
+        }
+        archived.sort(Comparator.comparingLong(ArchiveShard::archivedAt));
+        for (ArchiveShard shard : archived) {
+            Map<?, ?> map = load(shard.file());
+            String name = YamlState.string(map, "name", null);
+            if (name == null) throw new IOException(shard.file().getFileName() + " has no name");
+            sink.usedCode(YamlState.toUsedCode(name, map));
+        }
+    }
+
+    private static List<Path> shards(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) return List.of();
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".yml")).sorted().toList();
+        }
+    }
+
+    private static Map<?, ?> load(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Object root = new Yaml(new LoaderOptions()).load(reader);
+            return root instanceof Map<?, ?> map ? map : Map.of();
+        } catch (YAMLException e) {
+            throw new IOException("Invalid YAML in " + file.getFileName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes into a new folder.
+     */
+    static final class Output implements StateSink {
+
+        private final Path codesFolder;
+        private final Path archiveFolder;
+        private final Path itemsFolder;
+        private long archivedAt;
+
+        Output(Path folder) throws IOException {
+            this.codesFolder = Files.createDirectories(folder.resolve("codes"));
+            this.archiveFolder = Files.createDirectories(folder.resolve("archive"));
+            this.itemsFolder = Files.createDirectories(folder.resolve("items"));
+        }
+
+        @Override
+        public void item(String hash, byte[] data) throws IOException {
+            Path file = itemsFolder.resolve(hash + ".bin");
+            if (!Files.exists(file)) Files.write(file, data);
+        }
+
+        @Override
+        public void code(CodeRecord code) throws IOException {
+            Formats.requireWritable(code);
+            try (BufferedWriter out = Files.newBufferedWriter(codesFolder.resolve(Formats.shardFileName(code.name())),
+                    StandardCharsets.UTF_8)) {
+                out.write("name: " + YamlState.quote(code.name()) + "\n");
+                YamlState.writeCode(out, code, "");
+            }
+        }
+
+        @Override
+        public void usedCode(UsedCodeRecord code) throws IOException {
+            try (BufferedWriter out = Files.newBufferedWriter(archiveFolder.resolve(Formats.shardFileName(code.name())),
+                    StandardCharsets.UTF_8)) {
+                out.write("name: " + YamlState.quote(code.name()) + "\n");
+                out.write("archived-at: " + archivedAt++ + "\n");
+                YamlState.writeUsedCode(out, code, "");
+            }
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+}
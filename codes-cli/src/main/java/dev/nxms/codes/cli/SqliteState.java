@@ -0,0 +1,247 @@
+package dev.nxms.codes.cli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * codes.db, same schema as {@code SqliteCodeStorage} in the plugin. Codes are read with one
+ * cursor and their player rows with indexed lookups, so no table is loaded as a whole.
+ */
+final class SqliteState {
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS codes (" +
+                    "id TEXT PRIMARY KEY, name TEXT NOT NULL, global_uses INTEGER NOT NULL DEFAULT 0, " +
+                    "max_global_uses INTEGER NOT NULL, max_player_uses INTEGER NOT NULL, cooldown INTEGER NOT NULL, " +
+                    "broadcast INTEGER NOT NULL, reward_type TEXT NOT NULL, item_reward BLOB, text_reward TEXT)",
+            "CREATE TABLE IF NOT EXISTS player_uses (" +
+                    "code_id TEXT NOT NULL, player TEXT NOT NULL, uses INTEGER NOT NULL, PRIMARY KEY (code_id, player))",
+            "CREATE TABLE IF NOT EXISTS player_cooldowns (" +
+                    "code_id TEXT NOT NULL, player TEXT NOT NULL, last_use INTEGER NOT NULL, PRIMARY KEY (code_id, player))",
+            "CREATE TABLE IF NOT EXISTS archived_codes (" +
+                    "id TEXT PRIMARY KEY, name TEXT NOT NULL, reward_display TEXT, total_uses INTEGER NOT NULL, " +
+                    "max_global_uses INTEGER NOT NULL, max_player_uses INTEGER NOT NULL, archived_at INTEGER NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS archived_player_uses (" +
+                    "code_id TEXT NOT NULL, player TEXT NOT NULL, uses INTEGER NOT NULL, PRIMARY KEY (code_id, player))",
+            "CREATE INDEX IF NOT EXISTS idx_player_uses_player ON player_uses (player)",
+            "CREATE INDEX IF NOT EXISTS idx_player_cooldowns_player ON player_cooldowns (player)",
+            "CREATE INDEX IF NOT EXISTS idx_archived_codes_archived_at ON archived_codes (archived_at)"
+    };
+
+    private static final int BATCH_SIZE = 1000;
+
+    private SqliteState() {
+    }
+
+    private static Connection connect(Path file) throws IOException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            return DriverManager.getConnection("jdbc:sqlite:" + file.toAbsolutePath());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("SQLite driver is not available", e);
+        } catch (SQLException e) {
+            throw new IOException("Cannot open " + file.getFileName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    // ----------------------------
+    // Read
+    // ----------------------------
+
+    static void read(Path file, StateSink sink) throws IOException {
+        try (Connection c = connect(file);
+             PreparedStatement uses = c.prepareStatement("SELECT player, uses FROM player_uses WHERE code_id = ?");
+             PreparedStatement cooldowns = c.prepareStatement("SELECT player, last_use FROM player_cooldowns WHERE code_id = ?");
+             PreparedStatement archivedUses = c.prepareStatement("SELECT player, uses FROM archived_player_uses WHERE code_id = ?");
+             Statement st = c.createStatement()) {
+
+            Set<String> passedItems = new HashSet<>();
+            try (ResultSet rs = st.executeQuery("SELECT id, name, global_uses, max_global_uses, max_player_uses, cooldown, " +
+                    "broadcast, reward_type, item_reward, text_reward FROM codes ORDER BY rowid")) {
+                while (rs.next()) {
+                    String id = rs.getString(1);
+                    String rewardType = rs.getString(8);
+                    byte[] item = rs.getBytes(9);
+                    String itemHash = null;
+                    if (item != null) {
+                        itemHash = Formats.itemHash(item);
+                        if (passedItems.add(itemHash)) sink.item(itemHash, item);
+                    }
+
+                    Map<UUID, Long> playerCooldowns = new HashMap<>();
+                    cooldowns.setString(1, id);
+                    try (ResultSet rows = cooldowns.executeQuery()) {
+                        while (rows.next()) {
+                            UUID player = Formats.parseUuid(rows.getString(1));
+                            if (player != null) playerCooldowns.put(player, rows.getLong(2));
+                        }
+                    }
+
+                    sink.code(new CodeRecord(rs.getString(2), rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getInt(6),
+                            rs.getInt(7) != 0, rewardType, "ITEM".equals(rewardType) ? itemHash : null,
+                            "ITEM".equals(rewardType) ? null : rs.getString(10), false,
+                            playerUses(uses, id), playerCooldowns));
+                }
+            }
+
+            try (ResultSet rs = st.executeQuery("SELECT id, name, reward_display, total_uses, max_global_uses, max_player_uses " +
+                    "FROM archived_codes ORDER BY archived_at")) {
+                while (rs.next()) {
+                    sink.usedCode(new UsedCodeRecord(rs.getString(2), rs.getString(3), rs.getInt(4), rs.getInt(5),
+                            rs.getInt(6), playerUses(archivedUses, rs.getString(1))));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Cannot read " + file.getFileName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Map<UUID, Integer> playerUses(PreparedStatement query, String id) throws SQLException {
+        Map<UUID, Integer> result = new HashMap<>();
+        query.setString(1, id);
+        try (ResultSet rows = query.executeQuery()) {
+            while (rows.next()) {
+                UUID player = Formats.parseUuid(rows.getString(1));
+                if (player != null) result.put(player, rows.getInt(2));
+            }
+        }
+        return result;
+    }
+
+    // ----------------------------
+    // Write
+    // ----------------------------
+
+    /**
+     * Writes a new database in a single transaction.
+     */
+    static final class Output implements StateSink {
+
+        private final Connection connection;
+        private final PreparedStatement codes;
+        private final PreparedStatement uses;
+        private final PreparedStatement cooldowns;
+        private final PreparedStatement archived;
+        private final PreparedStatement archivedUses;
+        private final Map<String, byte[]> items = new HashMap<>();
+        private long archivedAt;
+        private int pending;
+
+        Output(Path file) throws IOException {
+            this.connection = connect(file);
+            try {
+                try (Statement st = connection.createStatement()) {
+                    for (String sql : SCHEMA) {
+                        st.execute(sql);
+                    }
+                }
+                connection.setAutoCommit(false);
+                codes = connection.prepareStatement("INSERT INTO codes (id, name, global_uses, max_global_uses, max_player_uses, " +
+                        "cooldown, broadcast, reward_type, item_reward, text_reward) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                uses = connection.prepareStatement("INSERT INTO player_uses (code_id, player, uses) VALUES (?, ?, ?)");
+                cooldowns = connection.prepareStatement("INSERT INTO player_cooldowns (code_id, player, last_use) VALUES (?, ?, ?)");
+                archived = connection.prepareStatement("INSERT INTO archived_codes (id, name, reward_display, total_uses, " +
+                        "max_global_uses, max_player_uses, archived_at) VALUES (?, ?, ?, ?, ?, ?, ?)");
+                archivedUses = connection.prepareStatement("INSERT INTO archived_player_uses (code_id, player, uses) VALUES (?, ?, ?)");
+            } catch (SQLException e) {
+                throw new IOException("Cannot create " + file.getFileName() + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void item(String hash, byte[] data) {
+            // the schema stores items inline with the codes
+            items.putIfAbsent(hash, data);
+        }
+
+        @Override
+        public void code(CodeRecord code) throws IOException {
+            Formats.requireWritable(code);
+            String id = Formats.key(code.name());
+            try {
+                codes.setString(1, id);
+                codes.setString(2, code.name());
+                codes.setInt(3, code.globalUses());
+                codes.setInt(4, code.maxGlobalUses());
+                codes.setInt(5, code.maxPlayerUses());
+                codes.setInt(6, code.cooldown());
+                codes.setInt(7, code.broadcast() ? 1 : 0);
+                codes.setString(8, code.rewardType());
+                codes.setBytes(9, code.itemHash() != null ? items.get(code.itemHash()) : null);
+                codes.setString(10, code.textReward());
+                codes.addBatch();
+
+                for (Map.Entry<UUID, Integer> entry : code.playerUses().entrySet()) {
+                    uses.setString(1, id);
+                    uses.setString(2, entry.getKey().toString());
+                    uses.setInt(3, entry.getValue());
+                    uses.addBatch();
+                    count();
+                }
+                for (Map.Entry<UUID, Long> entry : code.playerCooldowns().entrySet()) {
+                    cooldowns.setString(1, id);
+                    cooldowns.setString(2, entry.getKey().toString());
+                    cooldowns.setLong(3, entry.getValue());
+                    cooldowns.addBatch();
+                    count();
+                }
+                count();
+            } catch (SQLException e) {
+                throw new IOException("Cannot write code " + code.name() + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void usedCode(UsedCodeRecord code) throws IOException {
+            String id = Formats.key(code.name());
+            try {
+                archived.setString(1, id);
+                archived.setString(2, code.name());
+                archived.setString(3, code.rewardDisplay());
+                archived.setInt(4, code.totalUses());
+                archived.setInt(5, code.maxGlobalUses());
+                archived.setInt(6, code.maxPlayerUses());
+                archived.setLong(7, archivedAt++);
+                archived.addBatch();
+
+                for (Map.Entry<UUID, Integer> entry : code.playerUses().entrySet()) {
+                    archivedUses.setString(1, id);
+                    archivedUses.setString(2, entry.getKey().toString());
+                    archivedUses.setInt(3, entry.getValue());
+                    archivedUses.addBatch();
+                    count();
+                }
+                count();
+            } catch (SQLException e) {
+                throw new IOException("Cannot write used code " + code.name() + ": " + e.getMessage(), e);
+            }
+        }
+
+        private void count() throws SQLException {
+            if (++pending >= BATCH_SIZE) executeBatches();
+        }
+
+        private void executeBatches() throws SQLException {
+            // codes first, player rows reference them
+            codes.executeBatch();
+            uses.executeBatch();
+            cooldowns.executeBatch();
+            archived.executeBatch();
+            archivedUses.executeBatch();
+            pending = 0;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            try {
+                executeBatches();
+                connection.commit();
+                connection.close();
+            } catch (SQLException e) {
+                throw new IOException("Cannot write database: " + e.getMessage(), e);
+            }
+        }
+    }
+}
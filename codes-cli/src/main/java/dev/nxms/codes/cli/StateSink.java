@@ -0,0 +1,25 @@
+package dev.nxms.codes.cli;
+
+import java.io.IOException;
+
+/**
+ * Receives the stored state one record at a time, so files never have to be loaded as a whole.
+ * Every item is passed before the first code referencing it.
+ */
+public interface StateSink {
+
+    /**
+     * @param hash hex of the first 16 bytes of the SHA-256 of the data, as used by the plugin
+     * @param data the item in its {@code ItemStack#serializeAsBytes()} form
+     */
+    void item(String hash, byte[] data) throws IOException;
+
+    void code(CodeRecord code) throws IOException;
+
+    void usedCode(UsedCodeRecord code) throws IOException;
+
+    /**
+     * Called once after the last record.
+     */
+    void finish() throws IOException;
+}
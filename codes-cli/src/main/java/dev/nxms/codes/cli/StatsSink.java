@@ -0,0 +1,81 @@
+package dev.nxms.codes.cli;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Counts what is stored and prints a summary when the input is done.
+ */
+final class StatsSink implements StateSink {
+
+    private static final int TOP_CODES = 5;
+
+    private record TopCode(String name, int players) { }
+
+    private final PrintStream out;
+    private final long now;
+
+    private final Map<String, Integer> rewardTypes = new TreeMap<>();
+    private final PriorityQueue<TopCode> topCodes = new PriorityQueue<>(Comparator.comparingInt(TopCode::players));
+    private int items;
+    private long itemBytes;
+    private int codes;
+    private long playerUses;
+    private long cooldowns;
+    private long expiredCooldowns;
+    private int usedCodes;
+    private long archivedPlayerUses;
+
+    StatsSink(PrintStream out, long now) {
+        this.out = out;
+        this.now = now;
+    }
+
+    @Override
+    public void item(String hash, byte[] data) {
+        items++;
+        itemBytes += data.length;
+    }
+
+    @Override
+    public void code(CodeRecord code) {
+        codes++;
+        rewardTypes.merge(code.rewardType(), 1, Integer::sum);
+        playerUses += code.playerUses().size();
+        cooldowns += code.playerCooldowns().size();
+        for (long lastUse : code.playerCooldowns().values()) {
+            if (CompactingSink.isExpired(code.cooldown(), lastUse, now)) expiredCooldowns++;
+        }
+
+        topCodes.add(new TopCode(code.name(), code.playerUses().size()));
+        if (topCodes.size() > TOP_CODES) topCodes.poll();
+    }
+
+    @Override
+    public void usedCode(UsedCodeRecord code) {
+        usedCodes++;
+        archivedPlayerUses += code.playerUses().size();
+    }
+
+    @Override
+    public void finish() {
+        out.println("Active codes:           " + codes);
+        for (Map.Entry<String, Integer> entry : rewardTypes.entrySet()) {
+            out.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+        out.println("Player uses entries:    " + playerUses);
+        out.println("Player cooldowns:       " + cooldowns + " (" + expiredCooldowns + " expired)");
+        out.println("Item rewards:           " + items + " (" + itemBytes + " bytes)");
+        out.println("Used codes:             " + usedCodes);
+        out.println("Archived player uses:   " + archivedPlayerUses);
+
+        if (!topCodes.isEmpty()) {
+            List<TopCode> top = new ArrayList<>(topCodes);
+            top.sort(Comparator.comparingInt(TopCode::players).reversed());
+            out.println("Most used codes:");
+            for (TopCode code : top) {
+                out.println("  " + code.name() + ": " + code.players() + " players");
+            }
+        }
+    }
+}
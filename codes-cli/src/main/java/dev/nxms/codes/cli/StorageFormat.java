@@ -0,0 +1,98 @@
+package dev.nxms.codes.cli;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The storage types of the plugin, told apart by the file name: {@code codes.yml},
+ * {@code codes.dat}, {@code codes.db} or a folder for the sharded layout.
+ */
+enum StorageFormat {
+
+    YAML,
+    BINARY,
+    SQLITE,
+    SHARDED;
+
+    static StorageFormat detect(Path path) throws IOException {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        // a target folder does not exist yet, so a name without an extension counts as one
+        if (Files.isDirectory(path) || !name.contains(".")) return SHARDED;
+        if (name.endsWith(".yml") || name.endsWith(".yaml")) return YAML;
+        if (name.endsWith(".dat")) return BINARY;
+        if (name.endsWith(".db")) return SQLITE;
+        throw new IOException("Unknown storage type of " + path.getFileName()
+                + ", expected a .yml, .dat or .db file or a folder");
+    }
+
+    /**
+     * codes.yml keeps its used codes in codes.archive, codes.dat in codes.dat.archive.
+     */
+    Path archiveFile(Path snapshot) {
+        return snapshot.resolveSibling(sidecarName(snapshot, "archive"));
+    }
+
+    /**
+     * The journal and the rotated journal next to the snapshot, empty for database and sharded storage.
+     */
+    List<Path> journalFiles(Path snapshot) {
+        if (this != YAML && this != BINARY) return List.of();
+        Path journal = snapshot.resolveSibling(sidecarName(snapshot, "journal"));
+        return List.of(journal, journal.resolveSibling(journal.getFileName() + ".old"));
+    }
+
+    private String sidecarName(Path snapshot, String extension) {
+        String name = snapshot.getFileName().toString();
+        if (this == YAML) {
+            int dot = name.lastIndexOf('.');
+            return (dot > 0 ? name.substring(0, dot) : name) + "." + extension;
+        }
+        return name + "." + extension;
+    }
+
+    /**
+     * Passes the whole stored state to the sink, without calling {@link StateSink#finish()}.
+     */
+    void read(Path path, StateSink sink) throws IOException {
+        switch (this) {
+            case YAML, BINARY -> {
+                // used codes of the snapshot were written before the archive file existed,
+                // the plugin moves them there on its next start
+                Set<String> archived = ArchiveState.read(archiveFile(path), sink);
+                if (this == YAML) {
+                    YamlState.read(path, sink, name -> !archived.contains(Formats.key(name)));
+                } else {
+                    BinaryState.read(path, sink, name -> !archived.contains(Formats.key(name)));
+                }
+            }
+            case SQLITE -> SqliteState.read(path, sink);
+            case SHARDED -> ShardedState.read(path, sink);
+        }
+    }
+
+    StateSink output(Path path) throws IOException {
+        return switch (this) {
+            case YAML -> new YamlState.Output(path);
+            case BINARY -> new BinaryState.Output(path);
+            case SQLITE -> new SqliteState.Output(path);
+            case SHARDED -> new ShardedState.Output(path);
+        };
+    }
+
+    /**
+     * Every file or folder {@link #output} may create for the given path.
+     */
+    List<Path> outputFiles(Path path) {
+        return switch (this) {
+            case YAML, BINARY -> List.of(path, archiveFile(path),
+                    path.resolveSibling(path.getFileName() + ".tmp"),
+                    path.resolveSibling(path.getFileName() + ".codes.tmp"),
+                    archiveFile(path).resolveSibling(archiveFile(path).getFileName() + ".tmp"));
+            case SQLITE, SHARDED -> List.of(path);
+        };
+    }
+}
@@ -0,0 +1,20 @@
+package dev.nxms.codes.cli;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * One used code as stored on disk.
+ */
+public record UsedCodeRecord(
+        String name,
+        String rewardDisplay,
+        int totalUses,
+        int maxGlobalUses,
+        int maxPlayerUses,
+        Map<UUID, Integer> playerUses
+) {
+    public UsedCodeRecord withoutPlayers() {
+        return new UsedCodeRecord(name, rewardDisplay, totalUses, maxGlobalUses, maxPlayerUses, Map.of());
+    }
+}
@@ -0,0 +1,88 @@
+package dev.nxms.codes.cli;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Reports records the plugin would reject or load with a broken reward.
+ */
+final class ValidatingSink implements StateSink {
+
+    private static final int MAX_PRINTED = 100;
+
+    private final PrintStream out;
+    private final Set<String> items = new HashSet<>();
+    private final Set<String> codeNames = new HashSet<>();
+    private final Set<String> usedNames = new HashSet<>();
+    private int problems;
+
+    ValidatingSink(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Problems of a single code, empty if it is fine.
+     *
+     * @param knownItems hashes of the items passed so far
+     */
+    static List<String> problems(CodeRecord code, Set<String> knownItems) {
+        List<String> problems = new ArrayList<>();
+        if (!Formats.isKnownRewardType(code.rewardType())) {
+            problems.add("unknown reward type " + code.rewardType());
+        } else if (code.rewardType().equals("ITEM")) {
+            if (code.legacyItem()) {
+                problems.add("inline item-reward of an old plugin version, start the plugin once to convert it");
+            } else if (code.itemHash() == null) {
+                problems.add("no item reward");
+            } else if (!knownItems.contains(code.itemHash())) {
+                problems.add("missing item " + code.itemHash());
+            }
+        } else if (code.textReward() == null || code.textReward().isBlank()) {
+            problems.add("empty " + code.rewardType().toLowerCase(Locale.ROOT) + " reward");
+        }
+
+        if (code.globalUses() < 0 || code.maxGlobalUses() < 0 || code.maxPlayerUses() < 0 || code.cooldown() < 0) {
+            problems.add("negative uses or cooldown");
+        }
+        for (int uses : code.playerUses().values()) {
+            if (uses < 0) {
+                problems.add("negative player uses");
+                break;
+            }
+        }
+        return problems;
+    }
+
+    int problemCount() {
+        return problems;
+    }
+
+    @Override
+    public void item(String hash, byte[] data) {
+        items.add(hash);
+    }
+
+    @Override
+    public void code(CodeRecord code) {
+        if (!codeNames.add(Formats.key(code.name()))) report(code.name(), "duplicate code name");
+        for (String problem : problems(code, items)) {
+            report(code.name(), problem);
+        }
+    }
+
+    @Override
+    public void usedCode(UsedCodeRecord code) {
+        if (!usedNames.add(Formats.key(code.name()))) report(code.name(), "duplicate used code name");
+        if (code.totalUses() < 0) report(code.name(), "negative total uses");
+    }
+
+    private void report(String name, String problem) {
+        if (++problems <= MAX_PRINTED) out.println(name + ": " + problem);
+    }
+
+    @Override
+    public void finish() {
+        if (problems > MAX_PRINTED) out.println("... and " + (problems - MAX_PRINTED) + " more");
+        out.println(problems == 0 ? "No problems found." : problems + " problems found.");
+    }
+}
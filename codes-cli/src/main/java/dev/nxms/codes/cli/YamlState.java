@@ -0,0 +1,318 @@
+package dev.nxms.codes.cli;
+
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * codes.yml read as a stream of parser events: only one code is held in memory at a time,
+ * unlike YamlConfiguration which builds the whole tree.
+ */
+final class YamlState {
+
+    private YamlState() {
+    }
+
+    private interface EntryVisitor {
+        void accept(String section, String name, Object value) throws IOException;
+    }
+
+    // ----------------------------
+    // Read
+    // ----------------------------
+
+    /**
+     * @param keepUsed filters the used codes of the file by name
+     */
+    static void read(Path file, StateSink sink, Predicate<String> keepUsed) throws IOException {
+        // items go first, they may be written after the codes referencing them
+        scan(file, Set.of("items"), (section, hash, value) -> {
+            if (!(value instanceof String base64)) throw new IOException("Item " + hash + " is not a string");
+            byte[] data;
+            try {
+                data = Base64.getMimeDecoder().decode(base64);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Item " + hash + " is not valid Base64");
+            }
+            sink.item(Formats.itemHash(data), data);
+        });
+
+        scan(file, Set.of("codes", "used-codes"), (section, name, value) -> {
+            Map<?, ?> map = value instanceof Map<?, ?> m ? m : Map.of();
+            if (section.equals("codes")) {
+                sink.code(toCode(name, map));
+            } else if (keepUsed.test(name)) {
+                sink.usedCode(toUsedCode(name, map));
+            }
+        });
+    }
+
+    private static void scan(Path file, Set<String> sections, EntryVisitor visitor) throws IOException {
+        LoaderOptions options = new LoaderOptions();
+        options.setCodePointLimit(Integer.MAX_VALUE);
+
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Iterator<Event> events = new Yaml(options).parse(reader).iterator();
+            events.next(); // stream start
+            if (!(events.next() instanceof DocumentStartEvent)) return;
+            if (!(events.next() instanceof MappingStartEvent)) return;
+
+            while (true) {
+                Event keyEvent = events.next();
+                if (keyEvent instanceof MappingEndEvent) return;
+                String section = String.valueOf(readValue(keyEvent, events));
+
+                Event valueEvent = events.next();
+                if (!sections.contains(section) || !(valueEvent instanceof MappingStartEvent)) {
+                    skip(valueEvent, events);
+                    continue;
+                }
+
+                while (true) {
+                    Event entryKey = events.next();
+                    if (entryKey instanceof MappingEndEvent) break;
+                    String name = String.valueOf(readValue(entryKey, events));
+                    visitor.accept(section, name, readValue(events.next(), events));
+                }
+            }
+        } catch (YAMLException | NoSuchElementException e) {
+            throw new IOException("Invalid YAML in " + file.getFileName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Builds one value (scalar as String, mapping, sequence) from the events starting with {@code first}.
+     */
+    private static Object readValue(Event first, Iterator<Event> events) {
+        if (first instanceof ScalarEvent scalar) {
+            return scalar.getValue();
+        }
+        if (first instanceof MappingStartEvent) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            while (true) {
+                Event key = events.next();
+                if (key instanceof MappingEndEvent) return map;
+                map.put(String.valueOf(readValue(key, events)), readValue(events.next(), events));
+            }
+        }
+        if (first instanceof SequenceStartEvent) {
+            List<Object> list = new ArrayList<>();
+            while (true) {
+                Event item = events.next();
+                if (item instanceof SequenceEndEvent) return list;
+                list.add(readValue(item, events));
+            }
+        }
+        return null;
+    }
+
+    private static void skip(Event first, Iterator<Event> events) {
+        if (!(first instanceof CollectionStartEvent)) return;
+        int depth = 1;
+        while (depth > 0) {
+            Event event = events.next();
+            if (event instanceof CollectionStartEvent) depth++;
+            else if (event instanceof CollectionEndEvent) depth--;
+        }
+    }
+
+    // ----------------------------
+    // Records
+    // ----------------------------
+
+    /**
+     * Reads the code layout shared by codes.yml and the sharded code files. Missing or
+     * malformed values fall back to the same defaults as the plugin.
+     */
+    static CodeRecord toCode(String name, Map<?, ?> map) {
+        String rewardType = string(map, "reward-type", "ITEM");
+        String itemHash = null;
+        String textReward = null;
+        boolean legacyItem = false;
+        switch (rewardType) {
+            case "ITEM" -> {
+                itemHash = string(map, "item-ref", null);
+                legacyItem = itemHash == null && map.get("item-reward") != null;
+            }
+            case "PERMISSION" -> textReward = string(map, "permission-reward", null);
+            case "RANK" -> textReward = string(map, "rank-reward", null);
+            default -> { }
+        }
+
+        Map<UUID, Long> cooldowns = new HashMap<>();
+        if (map.get("player-cooldowns") instanceof Map<?, ?> section) {
+            for (Map.Entry<?, ?> entry : section.entrySet()) {
+                UUID player = Formats.parseUuid(String.valueOf(entry.getKey()));
+                Long lastUse = parseLong(entry.getValue());
+                if (player != null && lastUse != null) cooldowns.put(player, lastUse);
+            }
+        }
+
+        return new CodeRecord(name, integer(map, "global-uses", 0), integer(map, "max-global-uses", 100),
+                integer(map, "max-player-uses", 1), integer(map, "cooldown", 0),
+                !"false".equals(string(map, "broadcast", "true")), rewardType, itemHash, textReward, legacyItem,
+                playerUses(map), cooldowns);
+    }
+
+    static UsedCodeRecord toUsedCode(String name, Map<?, ?> map) {
+        return new UsedCodeRecord(name, string(map, "reward", "Unknown"), integer(map, "total-uses", 0),
+                integer(map, "max-global-uses", 0), integer(map, "max-player-uses", 0), playerUses(map));
+    }
+
+    private static Map<UUID, Integer> playerUses(Map<?, ?> map) {
+        Map<UUID, Integer> playerUses = new HashMap<>();
+        if (map.get("player-uses") instanceof Map<?, ?> section) {
+            for (Map.Entry<?, ?> entry : section.entrySet()) {
+                UUID player = Formats.parseUuid(String.valueOf(entry.getKey()));
+                Long uses = parseLong(entry.getValue());
+                if (player != null && uses != null) playerUses.put(player, uses.intValue());
+            }
+        }
+        return playerUses;
+    }
+
+    static String string(Map<?, ?> map, String key, String def) {
+        Object value = map.get(key);
+        return value != null ? String.valueOf(value) : def;
+    }
+
+    static int integer(Map<?, ?> map, String key, int def) {
+        Long value = parseLong(map.get(key));
+        return value != null ? value.intValue() : def;
+    }
+
+    static Long parseLong(Object value) {
+        if (value == null) return null;
+        try {
+            return Long.parseLong(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // ----------------------------
+    // Write
+    // ----------------------------
+
+    static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * Writes the fields of a code, each line prefixed with {@code indent}.
+     */
+    static void writeCode(Writer out, CodeRecord code, String indent) throws IOException {
+        out.write(indent + "global-uses: " + code.globalUses() + "\n");
+        out.write(indent + "max-global-uses: " + code.maxGlobalUses() + "\n");
+        out.write(indent + "max-player-uses: " + code.maxPlayerUses() + "\n");
+        out.write(indent + "cooldown: " + code.cooldown() + "\n");
+        out.write(indent + "broadcast: " + code.broadcast() + "\n");
+        out.write(indent + "reward-type: " + quote(code.rewardType()) + "\n");
+        switch (code.rewardType()) {
+            case "ITEM" -> {
+                if (code.itemHash() != null) out.write(indent + "item-ref: " + quote(code.itemHash()) + "\n");
+            }
+            case "PERMISSION" -> {
+                if (code.textReward() != null) out.write(indent + "permission-reward: " + quote(code.textReward()) + "\n");
+            }
+            case "RANK" -> {
+                if (code.textReward() != null) out.write(indent + "rank-reward: " + quote(code.textReward()) + "\n");
+            }
+            default -> { }
+        }
+        writeMap(out, indent, "player-uses", code.playerUses());
+        writeMap(out, indent, "player-cooldowns", code.playerCooldowns());
+    }
+
+    static void writeUsedCode(Writer out, UsedCodeRecord code, String indent) throws IOException {
+        if (code.rewardDisplay() != null) out.write(indent + "reward: " + quote(code.rewardDisplay()) + "\n");
+        out.write(indent + "total-uses: " + code.totalUses() + "\n");
+        out.write(indent + "max-global-uses: " + code.maxGlobalUses() + "\n");
+        out.write(indent + "max-player-uses: " + code.maxPlayerUses() + "\n");
+        writeMap(out, indent, "player-uses", code.playerUses());
+    }
+
+    private static void writeMap(Writer out, String indent, String key, Map<UUID, ? extends Number> values) throws IOException {
+        if (values.isEmpty()) return;
+        out.write(indent + key + ":\n");
+        for (Map.Entry<UUID, ? extends Number> entry : values.entrySet()) {
+            out.write(indent + "  '" + entry.getKey() + "': " + entry.getValue() + "\n");
+        }
+    }
+
+    /**
+     * Writes codes.yml with active codes and items; used codes go to the archive file next to it,
+     * the layout the plugin itself uses. Codes are spooled to a temp file because the items
+     * section has to come first.
+     */
+    static final class Output implements StateSink {
+
+        private final Path target;
+        private final Path codesTemp;
+        private final BufferedWriter codes;
+        private final Map<String, String> items = new LinkedHashMap<>();
+        private final ArchiveState.Output archive;
+        private long codeCount;
+
+        Output(Path target) throws IOException {
+            this.target = target;
+            this.codesTemp = target.resolveSibling(target.getFileName() + ".codes.tmp");
+            this.codes = Files.newBufferedWriter(codesTemp, StandardCharsets.UTF_8);
+            this.archive = new ArchiveState.Output(StorageFormat.YAML.archiveFile(target));
+        }
+
+        @Override
+        public void item(String hash, byte[] data) {
+            items.putIfAbsent(hash, Base64.getEncoder().encodeToString(data));
+        }
+
+        @Override
+        public void code(CodeRecord code) throws IOException {
+            Formats.requireWritable(code);
+            codes.write("  " + quote(code.name()) + ":\n");
+            writeCode(codes, code, "    ");
+            codeCount++;
+        }
+
+        @Override
+        public void usedCode(UsedCodeRecord code) throws IOException {
+            archive.usedCode(code);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            codes.close();
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                if (!items.isEmpty()) {
+                    out.write("items:\n");
+                    for (Map.Entry<String, String> item : items.entrySet()) {
+                        out.write("  '" + item.getKey() + "': " + item.getValue() + "\n");
+                    }
+                }
+                if (codeCount == 0) {
+                    out.write("codes: {}\n");
+                } else {
+                    out.write("codes:\n");
+                    try (Reader in = Files.newBufferedReader(codesTemp, StandardCharsets.UTF_8)) {
+                        in.transferTo(out);
+                    }
+                }
+            }
+            Files.delete(codesTemp);
+            Files.move(temp, target);
+            archive.finish();
+        }
+    }
+}
@@ -2,8 +2,13 @@ package dev.nxms.codes;
 
 import dev.nxms.codes.commands.CodeCommand;
 import dev.nxms.codes.hooks.LuckPermsHook;
+import dev.nxms.codes.managers.BackupManager;
 import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.managers.CommandThrottle;
 import dev.nxms.codes.managers.MessageManager;
+import dev.nxms.codes.managers.PermissionGrants;
+import dev.nxms.codes.managers.WorkScheduler;
+import dev.nxms.codes.storage.IoExecutor;
 import org.bukkit.command.PluginCommand;
 import org.bukkit.plugin.java.JavaPlugin;
 
@@ -12,13 +17,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
 
 public class Codes extends JavaPlugin {
 
     private static Codes instance;
 
+    private IoExecutor io;
+
     private CodeManager codeManager;
+    private BackupManager backupManager;
     private MessageManager messageManager;
+    private CommandThrottle commandThrottle;
+    private WorkScheduler workScheduler;
+    private PermissionGrants permissionGrants;
 
     private LuckPermsHook luckPermsHook;
     private boolean luckPermsEnabled;
@@ -37,26 +49,53 @@ public class Codes extends JavaPlugin {
         // Wygeneruj messages_pl.yml zgodnie z językiem
         ensureMessagesFile();
 
+        this.io = new IoExecutor(getLogger());
         this.messageManager = new MessageManager(this);
+        this.workScheduler = new WorkScheduler(this);
+        this.permissionGrants = new PermissionGrants(this);
         this.codeManager = new CodeManager(this);
+        this.backupManager = new BackupManager(this, codeManager);
+        this.commandThrottle = new CommandThrottle(this);
 
         initLuckPerms();
+        getServer().getPluginManager().registerEvents(permissionGrants, this);
         registerCommands();
         getLogger().info("Registering commands.");
 
         if (getConfig().getBoolean("auto-save.enabled", true)) {
             int interval = getConfig().getInt("auto-save.interval", 1) * 60 * 20;
-            getServer().getScheduler().runTaskTimerAsynchronously(this, () -> {
-                if (codeManager != null) codeManager.saveCodes();
+            // copies the state on the global region thread, codes.yml is written in the background and only if something changed
+            getServer().getGlobalRegionScheduler().runAtFixedRate(this, task -> {
+                if (codeManager != null) codeManager.requestSave();
             }, interval, interval);
         }
 
+        // ends per-player cooldowns once a second, so they are not kept or saved afterwards
+        getServer().getGlobalRegionScheduler().runAtFixedRate(this, task -> codeManager.expireCooldowns(), 20, 20);
+
+        // forgets rate limit buckets of players who stopped sending commands, e.g. because they left
+        getServer().getAsyncScheduler().runAtFixedRate(this, task -> commandThrottle.prune(), 30, 30, TimeUnit.SECONDS);
+
+        // hands out rewards and announcements within a time budget per tick
+        workScheduler.start();
+        permissionGrants.start();
+        backupManager.start();
+
         getLogger().info("Codes plugin has been enabled.");
     }
 
     @Override
     public void onDisable() {
-        if (codeManager != null) codeManager.saveCodes();
+        long drainTimeout = getConfig().getLong("io.drain-timeout", 30);
+        // grants still in LuckPerms are waited for, their uses are saved before the storage closes
+        if (luckPermsHook != null) luckPermsHook.close(drainTimeout, TimeUnit.SECONDS);
+        if (codeManager != null) codeManager.runGrantResults();
+        // rewards already paid for with a use must not be lost
+        if (workScheduler != null) workScheduler.runAll();
+        if (backupManager != null) backupManager.shutdown();
+        if (codeManager != null) codeManager.shutdown();
+        // waits for the last writes, e.g. players.dat
+        if (io != null) io.drain(drainTimeout, TimeUnit.SECONDS);
         getLogger().info("Codes plugin has been disabled.");
     }
 
@@ -86,7 +125,7 @@ public class Codes extends JavaPlugin {
         }
 
         try {
-            this.luckPermsHook = new LuckPermsHook(getLogger());
+            this.luckPermsHook = new LuckPermsHook(this);
             this.luckPermsEnabled = luckPermsHook.isAvailable();
         } catch (Throwable t) {
             getLogger().warning("Couldn't launch LuckPermsHook: " + t.getMessage());
@@ -100,6 +139,9 @@ public class Codes extends JavaPlugin {
         ensureMessagesFile(); // jeśli overwrite-messages=true, to podmieni messages_pl.yml
         if (messageManager != null) messageManager.reload();
         if (codeManager != null) codeManager.loadCodes();
+        if (commandThrottle != null) commandThrottle.reload();
+        if (workScheduler != null) workScheduler.reload();
+        if (luckPermsHook != null) luckPermsHook.reload();
 
         getLogger().info("Codes plugin has been reloaded.");
     }
@@ -134,14 +176,34 @@ public class Codes extends JavaPlugin {
         return instance;
     }
 
+    public IoExecutor getIo() {
+        return io;
+    }
+
     public CodeManager getCodeManager() {
         return codeManager;
     }
 
+    public BackupManager getBackupManager() {
+        return backupManager;
+    }
+
     public MessageManager getMessageManager() {
         return messageManager;
     }
 
+    public WorkScheduler getWorkScheduler() {
+        return workScheduler;
+    }
+
+    public PermissionGrants getPermissionGrants() {
+        return permissionGrants;
+    }
+
+    public CommandThrottle getCommandThrottle() {
+        return commandThrottle;
+    }
+
     public boolean isLuckPermsEnabled() {
         return luckPermsEnabled;
     }
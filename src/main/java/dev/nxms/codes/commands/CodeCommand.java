@@ -1,9 +1,19 @@
 package dev.nxms.codes.commands;
 
 import dev.nxms.codes.Codes;
+import dev.nxms.codes.hooks.LuckPermsHook;
+import dev.nxms.codes.managers.BackupManager;
 import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.managers.CommandThrottle;
+import dev.nxms.codes.managers.CodeState;
 import dev.nxms.codes.managers.MessageManager;
+import dev.nxms.codes.managers.WorkScheduler;
 import dev.nxms.codes.models.Code;
+import dev.nxms.codes.models.ItemBlob;
+import dev.nxms.codes.models.PlayerIds;
+import dev.nxms.codes.models.Reward;
+import dev.nxms.codes.storage.BackupStore;
+import dev.nxms.codes.storage.IoExecutor;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.serializer.plain.PlainTextComponentSerializer;
 import org.bukkit.Material;
@@ -20,14 +30,23 @@ import java.util.regex.Pattern;
 
 public class CodeCommand implements CommandExecutor, TabCompleter {
 
+    // everything else is a code name
+    private static final Set<String> SUBCOMMANDS = Set.of(
+            "pomoc", "help", "przeladuj", "reload", "stworz", "create", "nadpisz", "overwrite",
+            "usun", "delete", "lista", "list", "info", "eksportuj", "export", "kopia", "backup",
+            "statystyki", "stats"
+    );
+
     private final Codes plugin;
     private final CodeManager codeManager;
     private final MessageManager msg;
+    private final CommandThrottle throttle;
 
     public CodeCommand(Codes plugin) {
         this.plugin = plugin;
         this.codeManager = plugin.getCodeManager();
         this.msg = plugin.getMessageManager();
+        this.throttle = plugin.getCommandThrottle();
     }
 
     // ----------------------------
@@ -43,6 +62,20 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
             return true;
         }
 
+        // dropped without a message, so flooding costs a map lookup and a CAS
+        if (sender instanceof Player player && !isAllowed(player, args)) return true;
+
+        // the item is read here, on Folia only the player's own region may touch their inventory
+        ItemStack held = heldReward(sender, args);
+        if (!plugin.getServer().isGlobalTickThread()) {
+            // Folia runs player commands on the player's region, codes only change on the global region
+            plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> execute(sender, args, held));
+            return true;
+        }
+        return execute(sender, args, held);
+    }
+
+    private boolean execute(CommandSender sender, String[] args, ItemStack held) {
         try {
             if (args.length == 0) {
                 // domyślnie help gracza
@@ -63,11 +96,14 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
             }
 
             // ADMIN: create/delete/list/info (PL/EN)
-            if (sub.equals("stworz") || sub.equals("create")) return handleCreate(sender, args, false);
-            if (sub.equals("nadpisz") || sub.equals("overwrite")) return handleCreate(sender, args, true);
+            if (sub.equals("stworz") || sub.equals("create")) return handleCreate(sender, args, held, false);
+            if (sub.equals("nadpisz") || sub.equals("overwrite")) return handleCreate(sender, args, held, true);
             if (sub.equals("usun") || sub.equals("delete")) return handleDelete(sender, args);
             if (sub.equals("lista") || sub.equals("list")) return handleList(sender, args);
             if (sub.equals("info")) return handleInfo(sender, args);
+            if (sub.equals("eksportuj") || sub.equals("export")) return handleExport(sender);
+            if (sub.equals("kopia") || sub.equals("backup")) return handleBackup(sender, args);
+            if (sub.equals("statystyki") || sub.equals("stats")) return handleStats(sender);
 
             // Otherwise treat as redeem: /code <name> OR /kod <name>
             return handleRedeem(sender, args[0]);
@@ -80,6 +116,31 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
         }
     }
 
+    /**
+     * Copy of the item in hand for /code create|overwrite ... item, null for everything else.
+     */
+    private ItemStack heldReward(CommandSender sender, String[] args) {
+        if (!(sender instanceof Player player) || args.length < 7) return null;
+        String sub = args[0].toLowerCase(Locale.ROOT);
+        if (!sub.equals("stworz") && !sub.equals("create") && !sub.equals("nadpisz") && !sub.equals("overwrite")) return null;
+        boolean inHand = false;
+        for (int i = 6; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("item") || args[i].equalsIgnoreCase("przedmiot")) inHand = true;
+        }
+        if (!inHand) return null;
+
+        ItemStack item = player.getInventory().getItemInMainHand();
+        return item == null ? null : item.clone();
+    }
+
+    private boolean isAllowed(Player player, String[] args) {
+        if (throttle == null) return true;
+        if (args.length > 0 && !SUBCOMMANDS.contains(args[0].toLowerCase(Locale.ROOT))) {
+            return throttle.tryRedeem(player);
+        }
+        return throttle.tryCommand(player);
+    }
+
     // ----------------------------
     // HELP
     // ----------------------------
@@ -122,6 +183,7 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
         msg.send(sender, "help-admin-reward-item-amount");
         msg.send(sender, "help-admin-reward-permission");
         msg.send(sender, "help-admin-reward-rank");
+        msg.send(sender, "help-admin-reward-bundle");
         sender.sendMessage("");
         msg.send(sender, "help-admin-unlimited-hint");
         msg.send(sender, "help-admin-delay-hint");
@@ -133,6 +195,11 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
         msg.send(sender, "help-admin-list-clear");
         msg.send(sender, "help-admin-info");
         msg.send(sender, "help-admin-reload");
+        msg.send(sender, "help-admin-export");
+        msg.send(sender, "help-admin-backup-list");
+        msg.send(sender, "help-admin-backup-create");
+        msg.send(sender, "help-admin-backup-restore");
+        msg.send(sender, "help-admin-stats");
         msg.send(sender, "help-admin-footer");
     }
 
@@ -143,9 +210,10 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
     // /kod  stworz  <nazwa> ...
     // delay = seconds, announce = yes/no or tak/nie/true/false
     // reward: item/przedmiot | item:MAT:amt / przedmiot:MAT:amt | permission:... / permisja:... | rank:... / ranga:...
+    // several rewards separated by spaces make a bundle: ... item:DIAMOND:3 permission:vip.fly rank:vip
     // ----------------------------
 
-    private boolean handleCreate(CommandSender sender, String[] args, boolean overwrite) {
+    private boolean handleCreate(CommandSender sender, String[] args, ItemStack held, boolean overwrite) {
         if (!sender.hasPermission("codes.admin")) {
             msg.send(sender, "no-permission");
             return true;
@@ -189,32 +257,83 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
             return true;
         }
 
-        String rewardArg = args[6];
+        // more than one reward makes a bundle, given together in this order
+        List<Reward> rewards = new ArrayList<>();
+        for (int i = 6; i < args.length; i++) {
+            Reward reward = parseReward(sender, args[i], held);
+            if (reward == null) return true;
+            rewards.add(reward);
+        }
+
         boolean success;
+        if (rewards.size() > 1) {
+            success = overwrite
+                    ? codeManager.overwriteBundleCode(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, rewards)
+                    : codeManager.createBundleCode(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, rewards);
+        } else {
+            Reward reward = rewards.get(0);
+            success = switch (reward.type()) {
+                case ITEM -> overwrite
+                        ? codeManager.overwriteCode(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, reward.item().item())
+                        : codeManager.createCode(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, reward.item().item());
+                case PERMISSION -> overwrite
+                        ? codeManager.overwriteCodeWithPermission(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, reward.value())
+                        : codeManager.createCodeWithPermission(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, reward.value());
+                case RANK -> overwrite
+                        ? codeManager.overwriteCodeWithRank(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, reward.value())
+                        : codeManager.createCodeWithRank(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, reward.value());
+                case BUNDLE -> false;
+            };
+        }
+
+        if (!success) {
+            msg.send(sender, "code-already-exists", MessageManager.placeholders("code", codeName));
+            return true;
+        }
+
+        msg.send(sender, "code-created", MessageManager.placeholders("code", codeName));
+
+        if (maxGlobalUses == Code.UNLIMITED) msg.send(sender, "code-created-unlimited-global");
+        if (maxPlayerUses == Code.UNLIMITED) msg.send(sender, "code-created-unlimited-player");
+        if (delaySeconds > 0) {
+            msg.send(sender, "code-created-delay", MessageManager.placeholders(
+                    "delay", formatDuration(delaySeconds)
+            ));
+        }
+
+        if (announce) msg.send(sender, "code-created-broadcast-on");
+        else msg.send(sender, "code-created-broadcast-off");
+
+        return true;
+    }
+
+    /**
+     * One reward argument of create/overwrite. Sends the error and returns null if it is invalid.
+     */
+    private Reward parseReward(CommandSender sender, String rewardArg, ItemStack held) {
+        String lower = rewardArg.toLowerCase(Locale.ROOT);
 
         // ITEM in hand: item/przedmiot
-        if (rewardArg.equalsIgnoreCase("item") || rewardArg.equalsIgnoreCase("przedmiot")) {
-            if (!(sender instanceof Player player)) {
+        if (lower.equals("item") || lower.equals("przedmiot")) {
+            if (!(sender instanceof Player)) {
                 msg.send(sender, "must-be-player");
-                return true;
+                return null;
             }
-            ItemStack held = player.getInventory().getItemInMainHand();
             if (held == null || held.getType() == Material.AIR) {
                 msg.send(sender, "must-hold-item");
-                return true;
+                return null;
             }
-            success = overwrite
-                    ? codeManager.overwriteCode(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, held.clone())
-                    : codeManager.createCode(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, held.clone());
+            return Reward.item(ItemBlob.of(held));
         }
+
         // ITEM by name: item:... / przedmiot:...
-        else if (rewardArg.toLowerCase(Locale.ROOT).startsWith("item:") || rewardArg.toLowerCase(Locale.ROOT).startsWith("przedmiot:")) {
+        if (lower.startsWith("item:") || lower.startsWith("przedmiot:")) {
             String data = rewardArg.substring(rewardArg.indexOf(':') + 1);
             String[] parts = data.split(":");
 
             if (parts.length < 1 || parts[0].isEmpty()) {
                 msg.send(sender, "invalid-reward-type");
-                return true;
+                return null;
             }
 
             String materialName = parts[0].toUpperCase(Locale.ROOT);
@@ -228,73 +347,46 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
             if (mat == null) {
                 msg.send(sender, "unknown-item", MessageManager.placeholders("item", materialName));
                 msg.send(sender, "unknown-item-hint");
-                return true;
+                return null;
             }
 
             if (amount < 1) amount = 1;
             if (amount > 64) amount = 64;
 
-            ItemStack reward = new ItemStack(mat, amount);
-            success = overwrite
-                    ? codeManager.overwriteCode(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, reward)
-                    : codeManager.createCode(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, reward);
+            return Reward.item(ItemBlob.of(new ItemStack(mat, amount)));
         }
+
         // PERMISSION: permission:... / permisja:...
-        else if (rewardArg.toLowerCase(Locale.ROOT).startsWith("permission:") || rewardArg.toLowerCase(Locale.ROOT).startsWith("permisja:")) {
+        if (lower.startsWith("permission:") || lower.startsWith("permisja:")) {
             String perm = rewardArg.substring(rewardArg.indexOf(':') + 1);
             if (perm.isEmpty()) {
                 msg.send(sender, "invalid-reward-type");
-                return true;
+                return null;
             }
-            success = overwrite
-                    ? codeManager.overwriteCodeWithPermission(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, perm)
-                    : codeManager.createCodeWithPermission(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, perm);
+            return Reward.permission(perm);
         }
+
         // RANK: rank:... / ranga:...
-        else if (rewardArg.toLowerCase(Locale.ROOT).startsWith("rank:") || rewardArg.toLowerCase(Locale.ROOT).startsWith("ranga:")) {
+        if (lower.startsWith("rank:") || lower.startsWith("ranga:")) {
             String rank = rewardArg.substring(rewardArg.indexOf(':') + 1);
             if (rank.isEmpty()) {
                 msg.send(sender, "invalid-reward-type");
-                return true;
+                return null;
             }
 
             if (!codeManager.isLuckPermsAvailable()) {
                 msg.send(sender, "rank-requires-luckperms");
-                return true;
+                return null;
             }
             if (!codeManager.rankExists(rank)) {
                 msg.send(sender, "rank-not-found", MessageManager.placeholders("reward", rank));
-                return true;
+                return null;
             }
-
-            success = overwrite
-                    ? codeManager.overwriteCodeWithRank(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, rank)
-                    : codeManager.createCodeWithRank(codeName, maxGlobalUses, maxPlayerUses, delaySeconds, announce, rank);
-        }
-        else {
-            msg.send(sender, "invalid-reward-type");
-            return true;
-        }
-
-        if (!success) {
-            msg.send(sender, "code-already-exists", MessageManager.placeholders("code", codeName));
-            return true;
+            return Reward.rank(rank);
         }
 
-        msg.send(sender, "code-created", MessageManager.placeholders("code", codeName));
-
-        if (maxGlobalUses == Code.UNLIMITED) msg.send(sender, "code-created-unlimited-global");
-        if (maxPlayerUses == Code.UNLIMITED) msg.send(sender, "code-created-unlimited-player");
-        if (delaySeconds > 0) {
-            msg.send(sender, "code-created-delay", MessageManager.placeholders(
-                    "delay", formatDuration(delaySeconds)
-            ));
-        }
-
-        if (announce) msg.send(sender, "code-created-broadcast-on");
-        else msg.send(sender, "code-created-broadcast-off");
-
-        return true;
+        msg.send(sender, "invalid-reward-type");
+        return null;
     }
 
     private static Boolean parseBoolean(String s) {
@@ -446,14 +538,16 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
     // ----------------------------
     // LIST
     // /code list active
-    // /code list used
+    // /code list used [page]
     // /code list used clear
     // and PL equivalents:
     // /kod lista aktywne
-    // /kod lista zuzyte
+    // /kod lista zuzyte [strona]
     // /kod lista zuzyte wyczysc
     // ----------------------------
 
+    private static final int USED_PAGE_SIZE = 10;
+
     private boolean handleList(CommandSender sender, String[] args) {
         if (!sender.hasPermission("codes.admin")) {
             msg.send(sender, "no-permission");
@@ -487,21 +581,24 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
     private boolean handleListActive(CommandSender sender) {
         msg.send(sender, "list-active-header");
 
-        if (codeManager.getAllCodes().isEmpty()) {
+        Collection<Code> codes = codeManager.getAllCodes();
+        if (codes.isEmpty()) {
             msg.send(sender, "list-active-empty");
             return true;
         }
 
-        UUID viewer = (sender instanceof Player p) ? p.getUniqueId() : null;
+        Player viewer = (sender instanceof Player p) ? p : null;
+        // looked up once, the codes are then read by ID
+        int viewerId = viewer != null ? PlayerIds.find(viewer.getUniqueId()) : 0;
 
-        for (Code code : codeManager.getAllCodes()) {
+        for (Code code : codes) {
             String gUsed = String.valueOf(code.getGlobalUses());
             String gMax = code.isGlobalUnlimited() ? "∞" : String.valueOf(code.getMaxGlobalUses());
 
             String pUsed = "-";
             String pMax = code.isPlayerUnlimited() ? "∞" : String.valueOf(code.getMaxPlayerUses());
             if (viewer != null) {
-                pUsed = String.valueOf(code.getPlayerUseCount(viewer));
+                pUsed = String.valueOf(code.getPlayerUseCount(viewerId));
             }
 
             msg.send(sender, "list-active-entry", MessageManager.placeholders(
@@ -519,6 +616,7 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
     }
 
     private boolean handleListUsed(CommandSender sender, String[] args) {
+        int page = 1;
         // /list used clear OR /lista zuzyte wyczysc
         if (args.length >= 3) {
             String third = args[2].toLowerCase(Locale.ROOT);
@@ -530,6 +628,12 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
                 }
                 return true;
             }
+            try {
+                page = Integer.parseInt(third);
+            } catch (NumberFormatException e) {
+                msg.send(sender, "invalid-number");
+                return true;
+            }
         }
 
         msg.send(sender, "list-used-header");
@@ -540,17 +644,35 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
             return true;
         }
 
+        int pages = (used.size() + USED_PAGE_SIZE - 1) / USED_PAGE_SIZE;
+        page = Math.max(1, Math.min(page, pages));
+
         UUID viewer = (sender instanceof Player p) ? p.getUniqueId() : null;
+        List<CodeManager.UsedCodeInfo> shown = used.stream().skip((long) (page - 1) * USED_PAGE_SIZE).limit(USED_PAGE_SIZE).toList();
+        int shownPage = page;
+
+        if (viewer == null) {
+            sendUsedPage(sender, shown, null, shownPage, pages);
+            return true;
+        }
+        // per-player uses are not kept in memory, only the shown page is read
+        codeManager.getArchivedUses(shown.stream().map(CodeManager.UsedCodeInfo::name).toList(), viewer,
+                uses -> sendUsedPage(sender, shown, uses, shownPage, pages));
+        return true;
+    }
 
-        for (CodeManager.UsedCodeInfo info : used) {
+    /**
+     * @param playerUses uses of the shown codes by the viewer, null for the console
+     */
+    private void sendUsedPage(CommandSender sender, List<CodeManager.UsedCodeInfo> shown, List<Integer> playerUses,
+                              int page, int pages) {
+        for (int i = 0; i < shown.size(); i++) {
+            CodeManager.UsedCodeInfo info = shown.get(i);
             String gUsed = String.valueOf(info.totalUses());
             String gMax = (info.maxGlobalUses() == 0) ? "∞" : String.valueOf(info.maxGlobalUses());
 
-            String pUsed = "-";
+            String pUsed = playerUses != null ? String.valueOf(playerUses.get(i)) : "-";
             String pMax = (info.maxPlayerUses() == 0) ? "∞" : String.valueOf(info.maxPlayerUses());
-            if (viewer != null && info.playerUses() != null) {
-                pUsed = String.valueOf(info.playerUses().getOrDefault(viewer, 0));
-            }
 
             msg.send(sender, "list-used-entry", MessageManager.placeholders(
                     "code", info.name(),
@@ -562,10 +684,13 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
             ));
         }
 
+        msg.send(sender, "list-used-page", MessageManager.placeholders(
+                "page", String.valueOf(page),
+                "pages", String.valueOf(pages)
+        ));
         msg.send(sender, "list-used-clear-hint");
 
         msg.send(sender, "list-used-footer");
-        return true;
     }
 
     // ----------------------------
@@ -584,8 +709,11 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
             return true;
         }
 
-        Code code = codeManager.getCode(args[1]);
+        CodeState state = codeManager.getState();
+        Code code = state.getCode(args[1]);
         if (code == null) {
+            CodeManager.UsedCodeInfo used = state.getUsedCode(args[1]);
+            if (used != null) return sendUsedInfo(sender, used);
             msg.send(sender, "code-not-found", MessageManager.placeholders("code", args[1]));
             return true;
         }
@@ -624,6 +752,39 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
         return true;
     }
 
+    private boolean sendUsedInfo(CommandSender sender, CodeManager.UsedCodeInfo info) {
+        msg.send(sender, "info-header", MessageManager.placeholders("code", info.name()));
+        msg.send(sender, "info-status-used");
+
+        if (info.maxGlobalUses() == 0) {
+            msg.send(sender, "info-global-uses-unlimited", MessageManager.placeholders(
+                    "current", String.valueOf(info.totalUses())
+            ));
+        } else {
+            msg.send(sender, "info-global-uses", MessageManager.placeholders(
+                    "current", String.valueOf(info.totalUses()),
+                    "max", String.valueOf(info.maxGlobalUses())
+            ));
+        }
+
+        if (info.maxPlayerUses() == 0) {
+            msg.send(sender, "info-player-uses-unlimited");
+        } else {
+            msg.send(sender, "info-player-uses", MessageManager.placeholders(
+                    "max", String.valueOf(info.maxPlayerUses())
+            ));
+        }
+
+        codeManager.countArchivedPlayers(info.name(), players -> {
+            msg.send(sender, "info-players", MessageManager.placeholders("players", String.valueOf(players)));
+            msg.send(sender, "info-reward", MessageManager.placeholders("reward", info.rewardDisplay()));
+
+            msg.send(sender, "info-footer", MessageManager.placeholders("code", info.name()));
+        });
+
+        return true;
+    }
+
     // ----------------------------
     // RELOAD
     // ----------------------------
@@ -639,68 +800,206 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
     }
 
     // ----------------------------
-    // REDEEM
-    // /code <name>
+    // EXPORT
+    // /code export -> codes-export.yml
     // ----------------------------
 
-    private boolean handleRedeem(CommandSender sender, String codeName) {
-        if (!sender.hasPermission("codes.player")) {
+    private boolean handleExport(CommandSender sender) {
+        if (!sender.hasPermission("codes.admin")) {
             msg.send(sender, "no-permission");
             return true;
         }
+        codeManager.exportYaml(file -> {
+            if (file != null) {
+                msg.send(sender, "export-success", Map.of("file", file.getName()));
+            } else {
+                msg.send(sender, "export-failed");
+            }
+        });
+        return true;
+    }
 
-        if (!(sender instanceof Player player)) {
-            msg.send(sender, "must-be-player");
+    // ----------------------------
+    // STATS
+    // /code stats
+    // ----------------------------
+
+    private boolean handleStats(CommandSender sender) {
+        if (!sender.hasPermission("codes.admin")) {
+            msg.send(sender, "no-permission");
             return true;
         }
 
-        Code code = codeManager.getCode(codeName);
-        if (code == null) {
-            msg.send(sender, "code-not-found", MessageManager.placeholders("code", codeName));
+        msg.send(sender, "stats-header");
+        msg.send(sender, "stats-codes", MessageManager.placeholders(
+                "active", String.valueOf(codeManager.getAllCodes().size()),
+                "used", String.valueOf(codeManager.getUsedCodes().size())
+        ));
+        msg.send(sender, "stats-players", MessageManager.placeholders(
+                "players", String.valueOf(codeManager.countKnownPlayers())
+        ));
+        msg.send(sender, "stats-cooldowns", MessageManager.placeholders(
+                "live", String.valueOf(codeManager.countLiveCooldowns()),
+                "evicted", String.valueOf(codeManager.getEvictedCooldowns())
+        ));
+        msg.send(sender, "stats-guard", MessageManager.placeholders(
+                "filtered", String.valueOf(codeManager.getFilteredMisses()),
+                "ignored", String.valueOf(codeManager.getIgnoredAttempts()),
+                "blocks", String.valueOf(codeManager.getGuessingBlocks())
+        ));
+        if (throttle != null) {
+            msg.send(sender, "stats-rate-limit", MessageManager.placeholders(
+                    "rejected", String.valueOf(throttle.getRejected()),
+                    "buckets", String.valueOf(throttle.countBuckets())
+            ));
+        }
+        WorkScheduler work = plugin.getWorkScheduler();
+        msg.send(sender, "stats-work", MessageManager.placeholders(
+                "queued", String.valueOf(work.getQueued()),
+                "lag", String.valueOf(work.getLagMillis()),
+                "last", String.valueOf(work.getLastTickMicros()),
+                "avg", String.valueOf(work.getAverageTickMicros()),
+                "max", String.valueOf(work.getMaxTickMicros()),
+                "budget", String.valueOf(work.getBudgetMicros())
+        ));
+        LuckPermsHook luckPerms = plugin.getLuckPermsHook();
+        if (luckPerms != null && luckPerms.isAvailable()) {
+            msg.send(sender, "stats-luckperms", MessageManager.placeholders(
+                    "writes", String.valueOf(luckPerms.getWrites()),
+                    "pending", String.valueOf(luckPerms.getPending()),
+                    "avg", String.format(Locale.ROOT, "%.1f", luckPerms.getAverageBatch()),
+                    "max", String.valueOf(luckPerms.getMaxBatch()),
+                    "latency", String.format(Locale.ROOT, "%.1f", luckPerms.getAverageWriteMillis()),
+                    "latency-max", String.format(Locale.ROOT, "%.1f", luckPerms.getMaxWriteMillis())
+            ));
+        }
+        for (IoExecutor.Lane lane : plugin.getIo().lanes()) {
+            if (lane.completed() == 0 && lane.queued() == 0) continue;
+            msg.send(sender, "stats-io", MessageManager.placeholders(
+                    "lane", lane.name(),
+                    "queued", String.valueOf(lane.queued()),
+                    "tasks", String.valueOf(lane.completed()),
+                    "avg", String.format(Locale.ROOT, "%.1f", lane.averageMillis()),
+                    "max", String.format(Locale.ROOT, "%.1f", lane.maxMillis())
+            ));
+        }
+        msg.send(sender, "stats-footer");
+        return true;
+    }
+
+    // ----------------------------
+    // BACKUP
+    // /code backup [list]
+    // /code backup create
+    // /code backup restore <id>
+    // and PL equivalents:
+    // /kod kopia [lista]
+    // /kod kopia utworz
+    // /kod kopia przywroc <id>
+    // ----------------------------
+
+    private boolean handleBackup(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("codes.admin")) {
+            msg.send(sender, "no-permission");
             return true;
         }
 
-        int remaining = code.getRemainingCooldown(player.getUniqueId());
-        if (remaining > 0) {
-            String timeText = formatDurationLong(remaining);
+        BackupManager backups = plugin.getBackupManager();
+        String action = args.length >= 2 ? args[1].toLowerCase(Locale.ROOT) : "list";
 
-            msg.send(player, "code-cooldown", MessageManager.placeholders(
-                    "time", timeText,
-                    "seconds", String.valueOf(remaining)
-            ));
+        if (action.equals("lista") || action.equals("list")) {
+            backups.listBackups(list -> {
+                msg.send(sender, "backup-list-header");
+                if (list.isEmpty()) {
+                    msg.send(sender, "backup-list-empty");
+                }
+                for (BackupStore.Backup backup : list) {
+                    msg.send(sender, "backup-list-entry", MessageManager.placeholders(
+                            "id", backup.id(),
+                            "codes", String.valueOf(backup.codes()),
+                            "used", String.valueOf(backup.usedCodes()),
+                            "size", String.valueOf(Math.max(1, backup.size() / 1024))
+                    ));
+                }
+                msg.send(sender, "backup-list-footer");
+            });
+            return true;
+        }
+
+        if (action.equals("utworz") || action.equals("create")) {
+            backups.backupNow(backup -> {
+                if (backup != null) {
+                    msg.send(sender, "backup-created", MessageManager.placeholders("id", backup.id()));
+                } else {
+                    msg.send(sender, "backup-failed");
+                }
+            });
+            return true;
+        }
+
+        if (action.equals("przywroc") || action.equals("restore")) {
+            if (args.length < 3) {
+                msg.send(sender, "backup-restore-usage");
+                return true;
+            }
+            String id = args[2];
+            msg.send(sender, "backup-restoring", MessageManager.placeholders("id", id));
+            backups.restore(id, result -> {
+                switch (result) {
+                    case RESTORED -> msg.send(sender, "backup-restored", MessageManager.placeholders("id", id));
+                    case NOT_FOUND -> msg.send(sender, "backup-not-found", MessageManager.placeholders("id", id));
+                    case FAILED -> msg.send(sender, "backup-restore-failed", MessageManager.placeholders("id", id));
+                }
+            });
             return true;
         }
 
-        if (!code.canBeUsed()) {
-            msg.send(sender, "code-expired");
+        msg.send(sender, "backup-usage");
+        return true;
+    }
+
+    // ----------------------------
+    // REDEEM
+    // /code <name>
+    // ----------------------------
+
+    private boolean handleRedeem(CommandSender sender, String codeName) {
+        if (!sender.hasPermission("codes.player")) {
+            msg.send(sender, "no-permission");
             return true;
         }
 
-        if (!code.canPlayerUse(player.getUniqueId())) {
-            msg.send(sender, "code-already-used");
+        if (!(sender instanceof Player player)) {
+            msg.send(sender, "must-be-player");
             return true;
         }
 
-        CodeManager.RedeemResult result = codeManager.redeemCode(player, codeName);
+        codeManager.redeemCode(player, codeName, redemption -> sendRedemption(player, codeName, redemption));
+        return true;
+    }
 
+    private void sendRedemption(Player player, String codeName, CodeManager.Redemption redemption) {
+        Code code = redemption.code();
 
-        switch (result) {
+        switch (redemption.result()) {
             case COOLDOWN -> {
-                int remaining2 = code.getRemainingCooldown(player.getUniqueId());
-                String timeText2 = formatDurationLong(remaining2);
+                int remaining = redemption.remainingSeconds();
+                String timeText = formatDurationLong(remaining);
 
                 msg.send(player, "code-cooldown", MessageManager.placeholders(
-                        "time", timeText2,
-                        "seconds", String.valueOf(remaining2)
+                        "time", timeText,
+                        "seconds", String.valueOf(remaining)
                 ));
             }
+            case EXPIRED -> msg.send(player, "code-expired");
+            case ALREADY_USED -> msg.send(player, "code-already-used");
             case SUCCESS_ITEM -> {
                 msg.send(player, "code-redeemed");
                 msg.send(player, "reward-received-item");
 
                 if (code.isBroadcast()) {
                     String rewardDisplay = getItemDisplayName(code.getItemReward());
-                    msg.broadcast("broadcast-reward-item", MessageManager.placeholders(
+                    announce("broadcast-reward-item", MessageManager.placeholders(
                             "player", player.getName(),
                             "reward", rewardDisplay
                     ));
@@ -712,7 +1011,7 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
                         MessageManager.placeholders("reward", code.getPermissionReward()));
 
                 if (code.isBroadcast()) {
-                    msg.broadcast("broadcast-reward-permission", MessageManager.placeholders(
+                    announce("broadcast-reward-permission", MessageManager.placeholders(
                             "player", player.getName(),
                             "reward", code.getPermissionReward()
                     ));
@@ -724,17 +1023,47 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
                         MessageManager.placeholders("reward", code.getRankReward()));
 
                 if (code.isBroadcast()) {
-                    msg.broadcast("broadcast-reward-rank", MessageManager.placeholders(
+                    announce("broadcast-reward-rank", MessageManager.placeholders(
                             "player", player.getName(),
                             "reward", code.getRankReward()
                     ));
                 }
             }
+            case SUCCESS_BUNDLE -> {
+                String rewardDisplay = getBundleDisplay(code);
+                msg.send(player, "code-redeemed");
+                msg.send(player, "reward-received-bundle", MessageManager.placeholders("reward", rewardDisplay));
+
+                if (code.isBroadcast()) {
+                    announce("broadcast-reward-bundle", MessageManager.placeholders(
+                            "player", player.getName(),
+                            "reward", rewardDisplay
+                    ));
+                }
+            }
             case RANK_ERROR -> msg.send(player, "rank-requires-luckperms");
+            case GRANT_FAILED -> msg.send(player, "reward-grant-failed");
+            case BLOCKED -> msg.send(player, "code-guessing-blocked", MessageManager.placeholders(
+                    "time", formatDurationLong(redemption.remainingSeconds())
+            ));
+            case IGNORED -> { }
             default -> msg.send(player, "code-not-found", MessageManager.placeholders("code", codeName));
         }
+    }
 
-        return true;
+    /**
+     * Broadcasts on one of the next ticks, after the rewards queued before it.
+     */
+    private void announce(String key, Map<String, String> placeholders) {
+        plugin.getWorkScheduler().submit(WorkScheduler.Priority.ANNOUNCE, () -> msg.broadcast(key, placeholders));
+    }
+
+    private String getBundleDisplay(Code code) {
+        List<String> parts = new ArrayList<>();
+        for (Reward reward : code.getBundle()) {
+            parts.add(reward.type() == Code.RewardType.ITEM ? getItemDisplayName(reward.item().item()) : reward.value());
+        }
+        return String.join(", ", parts);
     }
 
     private String getItemDisplayName(ItemStack item) {
@@ -783,9 +1112,9 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
             if (isAdmin) {
                 // Prefer language, but accept both
                 if (pl) {
-                    out.addAll(List.of("stworz", "nadpisz", "usun", "lista", "info", "przeladuj", "pomoc"));
+                    out.addAll(List.of("stworz", "nadpisz", "usun", "lista", "info", "przeladuj", "eksportuj", "kopia", "statystyki", "pomoc"));
                 } else {
-                    out.addAll(List.of("create", "overwrite", "delete", "list", "info", "reload", "help"));
+                    out.addAll(List.of("create", "overwrite", "delete", "list", "info", "reload", "export", "backup", "stats", "help"));
                 }
             } else if (isPlayer) {
                 // player cannot tab real code names
@@ -805,7 +1134,16 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
 
         // delete/usun + info => suggest existing code names for admins
         if (args.length == 2 && isAdmin && (sub.equals("usun") || sub.equals("delete") || sub.equals("info"))) {
-            out.addAll(codeManager.getCodeNames());
+            // one state for both lists, tab completion may run off the main thread
+            CodeState state = codeManager.getState();
+            out.addAll(state.codeNames());
+            if (sub.equals("info")) state.usedCodes().forEach(info -> out.add(info.name()));
+            return filter(out, args[1]);
+        }
+
+        // backup/kopia second arg
+        if (args.length == 2 && isAdmin && (sub.equals("kopia") || sub.equals("backup"))) {
+            out.addAll(pl ? List.of("lista", "utworz", "przywroc") : List.of("list", "create", "restore"));
             return filter(out, args[1]);
         }
 
@@ -821,7 +1159,7 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
         if (args.length == 3 && isAdmin && (sub.equals("lista") || sub.equals("list"))) {
             String type = args[1].toLowerCase(Locale.ROOT);
             if (type.equals("zuzyte") || type.equals("used")) {
-                out.addAll(List.of(pl ? "wyczysc" : "clear"));
+                out.addAll(List.of(pl ? "wyczysc" : "clear", pl ? "<strona>" : "<page>"));
                 return filter(out, args[2]);
             }
         }
@@ -838,8 +1176,9 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
             }
             if (args.length == 6) return filter(List.of(pl ? "<ogłoszenie>" : "<broadcast>", pl ? "tak": "yes", pl ? "nie" : "no"), args[5]);
 
-            if (args.length == 7) {
-                String cur = args[6].toLowerCase(Locale.ROOT);
+            // the reward, and further rewards of a bundle
+            if (args.length >= 7) {
+                String cur = args[args.length - 1].toLowerCase(Locale.ROOT);
 
                 // reward keywords (both languages)
                 out.addAll(List.of(
@@ -886,7 +1225,15 @@ public class CodeCommand implements CommandExecutor, TabCompleter {
                     }
                 }
 
-                return filter(out, args[6]);
+                // rank:/ranga: with the real LuckPerms groups
+                if (cur.startsWith("rank:") || cur.startsWith("ranga:")) {
+                    String prefix = cur.substring(0, cur.indexOf(':') + 1);
+                    for (String group : codeManager.suggestRanks(cur.substring(prefix.length()), 50)) {
+                        out.add(prefix + group);
+                    }
+                }
+
+                return filter(out, args[args.length - 1]);
             }
         }
 
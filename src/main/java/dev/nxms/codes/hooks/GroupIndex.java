@@ -0,0 +1,74 @@
+package dev.nxms.codes.hooks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Names of the LuckPerms groups, kept as a sorted array so both an exact lookup and listing the
+ * names with a prefix are a binary search. Writers (LuckPerms event threads) publish a new array,
+ * readers on any thread never lock. Groups change rarely, copying a few hundred names is cheap.
+ */
+class GroupIndex {
+
+    private volatile String[] names = new String[0];
+
+    static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    synchronized void replaceAll(Collection<String> groups) {
+        String[] sorted = groups.stream().map(GroupIndex::key).distinct().sorted().toArray(String[]::new);
+        names = sorted;
+    }
+
+    synchronized void add(String group) {
+        String[] current = names;
+        int index = Arrays.binarySearch(current, key(group));
+        if (index >= 0) return;
+
+        int insert = -index - 1;
+        String[] next = new String[current.length + 1];
+        System.arraycopy(current, 0, next, 0, insert);
+        next[insert] = key(group);
+        System.arraycopy(current, insert, next, insert + 1, current.length - insert);
+        names = next;
+    }
+
+    synchronized void remove(String group) {
+        String[] current = names;
+        int index = Arrays.binarySearch(current, key(group));
+        if (index < 0) return;
+
+        String[] next = new String[current.length - 1];
+        System.arraycopy(current, 0, next, 0, index);
+        System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        names = next;
+    }
+
+    boolean contains(String group) {
+        return Arrays.binarySearch(names, key(group)) >= 0;
+    }
+
+    /**
+     * Up to {@code limit} names starting with the prefix, in alphabetical order.
+     */
+    List<String> withPrefix(String prefix, int limit) {
+        String[] current = names;
+        String key = key(prefix);
+        int index = Arrays.binarySearch(current, key);
+        if (index < 0) index = -index - 1;
+
+        List<String> out = new ArrayList<>();
+        for (int i = index; i < current.length && out.size() < limit && current[i].startsWith(key); i++) {
+            out.add(current[i]);
+        }
+        return out;
+    }
+
+    int size() {
+        return names.length;
+    }
+}
@@ -2,26 +2,137 @@ package dev.nxms.codes.hooks;
 
 import net.luckperms.api.LuckPerms;
 import net.luckperms.api.LuckPermsProvider;
+import net.luckperms.api.event.EventBus;
+import net.luckperms.api.event.EventSubscription;
+import net.luckperms.api.event.group.GroupCreateEvent;
+import net.luckperms.api.event.group.GroupDeleteEvent;
+import net.luckperms.api.event.group.GroupLoadAllEvent;
+import net.luckperms.api.event.group.GroupLoadEvent;
+import net.luckperms.api.model.data.DataMutateResult;
 import net.luckperms.api.model.group.Group;
-import net.luckperms.api.model.user.User;
 import net.luckperms.api.node.Node;
 import net.luckperms.api.node.types.InheritanceNode;
-import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
+/**
+ * Grants through LuckPerms. Every grant goes through {@code UserManager.modifyUser}, which loads
+ * the user if they are not loaded (e.g. they just left), applies the change and saves it. The
+ * returned futures complete on a LuckPerms thread once the change is stored, nothing here waits.
+ * <p>
+ * Grants for the same player within {@code luckperms-write-window} milliseconds are collected
+ * and applied in one {@code modifyUser} call, so a player redeeming several codes in a row (or a
+ * busy event) costs LuckPerms storage one write per player instead of one per grant.
+ * <p>
+ * Group names are kept in a local {@link GroupIndex}, filled once and then kept current from
+ * LuckPerms group events, so checking a rank or completing its name never asks LuckPerms. Only a
+ * grant of a group missing from the index asks for it, in case it is stored but not loaded.
+ */
 public class LuckPermsHook {
 
+    public enum GrantResult {
+        GRANTED,
+        ALREADY_HAD,
+        UNKNOWN_GROUP,
+        FAILED;
+
+        public boolean isSuccess() {
+            return this == GRANTED || this == ALREADY_HAD;
+        }
+    }
+
+    /** A node waiting for its player's next write. */
+    private record PendingGrant(Node node, String what, CompletableFuture<GrantResult> result) { }
+
+    private final Plugin plugin;
     private final Logger logger;
+    private final Map<UUID, List<PendingGrant>> pending = new ConcurrentHashMap<>();
+    // grants in pending, kept apart because the batches are only safe to read under their map lock
+    private final AtomicInteger pendingGrants = new AtomicInteger();
+    private volatile long windowMillis;
+    private volatile boolean closed;
+    // writes handed to LuckPerms whose grants are not completed yet
+    private final Set<CompletableFuture<?>> writing = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder grants = new LongAdder();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final LongAdder writeNanos = new LongAdder();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+
+    private final GroupIndex groups = new GroupIndex();
+    private final List<EventSubscription<?>> subscriptions = new ArrayList<>();
     private LuckPerms luckPerms;
 
-    public LuckPermsHook(Logger logger) {
-        this.logger = logger;
+    public LuckPermsHook(Plugin plugin) {
+        this.plugin = plugin;
+        this.logger = plugin.getLogger();
+        reload();
         try {
             this.luckPerms = LuckPermsProvider.get();
         } catch (Exception e) {
             this.luckPerms = null;
             logger.warning("Nie można połączyć z LuckPerms: " + e.getMessage());
+            return;
+        }
+
+        EventBus bus = luckPerms.getEventBus();
+        subscriptions.add(bus.subscribe(plugin, GroupCreateEvent.class, e -> groups.add(e.getGroup().getName())));
+        subscriptions.add(bus.subscribe(plugin, GroupLoadEvent.class, e -> groups.add(e.getGroup().getName())));
+        subscriptions.add(bus.subscribe(plugin, GroupDeleteEvent.class, e -> groups.remove(e.getGroupName())));
+        subscriptions.add(bus.subscribe(plugin, GroupLoadAllEvent.class, e -> indexGroups()));
+        indexGroups();
+    }
+
+    private void indexGroups() {
+        List<String> names = new ArrayList<>();
+        for (Group group : luckPerms.getGroupManager().getLoadedGroups()) {
+            names.add(group.getName());
+        }
+        groups.replaceAll(names);
+    }
+
+    public void reload() {
+        this.windowMillis = Math.max(0, plugin.getConfig().getLong("luckperms-write-window", 50));
+    }
+
+    /**
+     * Unsubscribes from LuckPerms, writes everything still waiting for its window and waits up to
+     * the timeout for all writes, so every grant's future is completed before the plugin stops.
+     */
+    public void close(long timeout, TimeUnit unit) {
+        closed = true;
+        for (EventSubscription<?> subscription : subscriptions) {
+            subscription.close();
+        }
+        subscriptions.clear();
+        for (UUID player : List.copyOf(pending.keySet())) {
+            flush(player);
+        }
+
+        List<CompletableFuture<?>> unfinished = List.copyOf(writing);
+        try {
+            CompletableFuture.allOf(unfinished.toArray(CompletableFuture[]::new)).get(timeout, unit);
+        } catch (TimeoutException e) {
+            logger.warning("LuckPerms nie zapisał na czas " + writing.size() + " zmian, ich użycia nie zostaną zapisane!");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+            // failed writes are reported with their grants
         }
     }
 
@@ -29,65 +140,253 @@ public class LuckPermsHook {
         return luckPerms != null;
     }
 
-    public boolean grantPermission(Player player, String permission) {
+    public CompletableFuture<GrantResult> grantPermission(UUID player, String playerName, String permission) {
         if (luckPerms == null) {
-            return false;
+            return CompletableFuture.completedFuture(GrantResult.FAILED);
         }
 
         try {
-            User user = luckPerms.getUserManager().getUser(player.getUniqueId());
-            if (user != null) {
-                user.data().add(Node.builder(permission).build());
-                luckPerms.getUserManager().saveUser(user);
-                logger.info("Nadano permisję " + permission + " graczowi " + player.getName() + " przez LuckPerms");
-                return true;
-            }
+            return modifyUser(player, Node.builder(permission).build(), "permisję " + permission + " graczowi " + playerName);
         } catch (Exception e) {
             logger.warning("Błąd przy nadawaniu permisji przez LuckPerms: " + e.getMessage());
+            return CompletableFuture.completedFuture(GrantResult.FAILED);
+        }
+    }
+
+    public CompletableFuture<GrantResult> grantRank(UUID player, String playerName, String rankName) {
+        if (luckPerms == null) {
+            return CompletableFuture.completedFuture(GrantResult.FAILED);
         }
 
-        return false;
+        return groupExists(rankName).thenCompose(exists -> {
+            if (!exists) {
+                logger.warning("Ranga '" + rankName + "' nie istnieje w LuckPerms!");
+                return CompletableFuture.completedFuture(GrantResult.UNKNOWN_GROUP);
+            }
+
+            try {
+                InheritanceNode node = InheritanceNode.builder(GroupIndex.key(rankName)).build();
+                return modifyUser(player, node, "rangę " + rankName + " graczowi " + playerName);
+            } catch (Exception e) {
+                logger.warning("Błąd przy nadawaniu rangi przez LuckPerms: " + e.getMessage());
+                return CompletableFuture.completedFuture(GrantResult.FAILED);
+            }
+        });
     }
 
-    public boolean grantRank(Player player, String rankName) {
+    /**
+     * Grants the permissions and ranks of a bundle in one write.
+     *
+     * @return {@link GrantResult#GRANTED} if everything was granted or already there, otherwise
+     *         the first failure in the order permissions, then ranks
+     */
+    public CompletableFuture<GrantResult> grantAll(UUID player, String playerName, List<String> permissions, List<String> ranks) {
         if (luckPerms == null) {
-            return false;
+            return CompletableFuture.completedFuture(GrantResult.FAILED);
         }
 
+        List<CompletableFuture<Boolean>> exists = new ArrayList<>(ranks.size());
+        for (String rank : ranks) {
+            exists.add(groupExists(rank));
+        }
+        return CompletableFuture.allOf(exists.toArray(CompletableFuture[]::new))
+                .thenCompose(ignored -> grantAll(player, playerName, permissions, ranks, exists));
+    }
+
+    private CompletableFuture<GrantResult> grantAll(UUID player, String playerName, List<String> permissions,
+                                                    List<String> ranks, List<CompletableFuture<Boolean>> exists) {
+        List<PendingGrant> grants = new ArrayList<>();
+        List<CompletableFuture<GrantResult>> results = new ArrayList<>();
         try {
-            // Sprawdź czy ranga istnieje
-            Group group = luckPerms.getGroupManager().getGroup(rankName);
-            if (group == null) {
-                logger.warning("Ranga '" + rankName + "' nie istnieje w LuckPerms!");
-                return false;
+            for (String permission : permissions) {
+                grants.add(new PendingGrant(Node.builder(permission).build(),
+                        "permisję " + permission + " graczowi " + playerName, new CompletableFuture<>()));
+            }
+            for (int i = 0; i < ranks.size(); i++) {
+                String rank = ranks.get(i);
+                if (!exists.get(i).join()) {
+                    logger.warning("Ranga '" + rank + "' nie istnieje w LuckPerms!");
+                    return CompletableFuture.completedFuture(GrantResult.UNKNOWN_GROUP);
+                }
+                grants.add(new PendingGrant(InheritanceNode.builder(GroupIndex.key(rank)).build(),
+                        "rangę " + rank + " graczowi " + playerName, new CompletableFuture<>()));
             }
+        } catch (Exception e) {
+            logger.warning("Błąd przy nadawaniu nagród przez LuckPerms: " + e.getMessage());
+            return CompletableFuture.completedFuture(GrantResult.FAILED);
+        }
+
+        for (PendingGrant grant : grants) {
+            results.add(grant.result());
+        }
+        enqueue(player, grants);
 
-            User user = luckPerms.getUserManager().getUser(player.getUniqueId());
-            if (user != null) {
-                // Dodaj gracza do grupy
-                InheritanceNode node = InheritanceNode.builder(group).build();
-                user.data().add(node);
-                luckPerms.getUserManager().saveUser(user);
-                logger.info("Nadano rangę " + rankName + " graczowi " + player.getName() + " przez LuckPerms");
-                return true;
+        return CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).thenApply(ignored -> {
+            for (CompletableFuture<GrantResult> result : results) {
+                if (!result.join().isSuccess()) return result.join();
             }
+            return GrantResult.GRANTED;
+        });
+    }
+
+    /**
+     * Whether the group exists. One missing from the index may still be stored in LuckPerms
+     * without being loaded, e.g. created on another server, so it is fetched with loadGroup
+     * before giving up. Completes on a LuckPerms thread if it had to be fetched.
+     */
+    private CompletableFuture<Boolean> groupExists(String rankName) {
+        if (groups.contains(rankName)) return CompletableFuture.completedFuture(true);
+
+        try {
+            return luckPerms.getGroupManager().loadGroup(GroupIndex.key(rankName)).handle((group, error) -> {
+                if (error != null) {
+                    logger.warning("Nie udało się wczytać rangi '" + rankName + "' z LuckPerms: " + error.getMessage());
+                    return false;
+                }
+                group.ifPresent(loaded -> groups.add(loaded.getName()));
+                return group.isPresent();
+            });
         } catch (Exception e) {
-            logger.warning("Błąd przy nadawaniu rangi przez LuckPerms: " + e.getMessage());
+            logger.warning("Nie udało się wczytać rangi '" + rankName + "' z LuckPerms: " + e.getMessage());
+            return CompletableFuture.completedFuture(false);
         }
+    }
 
-        return false;
+    /**
+     * @param what for the log, e.g. "rangę vip graczowi Steve"
+     */
+    private CompletableFuture<GrantResult> modifyUser(UUID player, Node node, String what) {
+        CompletableFuture<GrantResult> result = new CompletableFuture<>();
+        enqueue(player, List.of(new PendingGrant(node, what, result)));
+        return result;
     }
 
-    public boolean rankExists(String rankName) {
-        if (luckPerms == null) {
-            return false;
+    /**
+     * Queues the nodes for the player's next write. The first grant of a window schedules the
+     * write, later ones join it; nodes queued together always end up in the same write.
+     */
+    private void enqueue(UUID player, List<PendingGrant> grants) {
+        boolean[] first = new boolean[1];
+        pending.compute(player, (uuid, batch) -> {
+            if (batch == null) {
+                batch = new ArrayList<>();
+                first[0] = true;
+            }
+            batch.addAll(grants);
+            pendingGrants.addAndGet(grants.size());
+            return batch;
+        });
+
+        if (first[0]) {
+            long window = windowMillis;
+            if (window == 0 || closed) {
+                flush(player);
+            } else {
+                plugin.getServer().getAsyncScheduler().runDelayed(plugin, task -> flush(player), window, TimeUnit.MILLISECONDS);
+            }
         }
+    }
+
+    /**
+     * Applies all nodes queued for the player in one {@code modifyUser} and completes each
+     * grant's future with its own result.
+     */
+    private void flush(UUID player) {
+        // enqueue() adds grants inside pending.compute(), which holds the map's lock for this
+        // player's key as remove() does: a grant lands either in this batch or in a new one
+        List<PendingGrant> batch = pending.remove(player);
+        if (batch == null) return;
+        pendingGrants.addAndGet(-batch.size());
 
+        DataMutateResult[] mutations = new DataMutateResult[batch.size()];
+        long start = System.nanoTime();
+        CompletableFuture<Void> write;
         try {
-            Group group = luckPerms.getGroupManager().getGroup(rankName);
-            return group != null;
+            write = luckPerms.getUserManager().modifyUser(player, user -> {
+                for (int i = 0; i < mutations.length; i++) {
+                    mutations[i] = user.data().add(batch.get(i).node());
+                }
+            });
         } catch (Exception e) {
-            return false;
+            write = CompletableFuture.failedFuture(e);
         }
+
+        CompletableFuture<Void> done = write.whenComplete((ignored, error) -> {
+            long took = System.nanoTime() - start;
+            writes.increment();
+            grants.add(batch.size());
+            maxBatch.accumulateAndGet(batch.size(), Math::max);
+            writeNanos.add(took);
+            maxWriteNanos.accumulateAndGet(took, Math::max);
+
+            for (int i = 0; i < mutations.length; i++) {
+                PendingGrant grant = batch.get(i);
+                grant.result().complete(resultOf(grant.what(), mutations[i], error));
+            }
+        });
+        writing.add(done);
+        done.whenComplete((ignored, error) -> writing.remove(done));
+    }
+
+    private GrantResult resultOf(String what, DataMutateResult mutation, Throwable error) {
+        if (error != null) {
+            logger.warning("Nie udało się nadać przez LuckPerms: " + what + " (" + error.getMessage() + ")");
+            return GrantResult.FAILED;
+        }
+
+        if (mutation == DataMutateResult.FAIL_ALREADY_HAS) return GrantResult.ALREADY_HAD;
+        if (mutation == null || !mutation.wasSuccessful()) return GrantResult.FAILED;
+
+        logger.info("Nadano " + what + " przez LuckPerms");
+        return GrantResult.GRANTED;
+    }
+
+    public boolean rankExists(String rankName) {
+        return luckPerms != null && groups.contains(rankName);
+    }
+
+    /**
+     * LuckPerms user writes so far, each carrying one or more grants.
+     */
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * Average number of grants per write.
+     */
+    public double getAverageBatch() {
+        long count = writes.sum();
+        return count == 0 ? 0 : (double) grants.sum() / count;
+    }
+
+    public long getMaxBatch() {
+        return maxBatch.get();
+    }
+
+    /**
+     * Average time from starting a write until LuckPerms stored it, in milliseconds.
+     */
+    public double getAverageWriteMillis() {
+        long count = writes.sum();
+        return count == 0 ? 0 : writeNanos.sum() / 1_000_000.0 / count;
+    }
+
+    public double getMaxWriteMillis() {
+        return maxWriteNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * Grants waiting for their player's write.
+     */
+    public int getPending() {
+        return pendingGrants.get();
+    }
+
+    /**
+     * Group names starting with the prefix, for tab completion.
+     */
+    public List<String> suggestRanks(String prefix, int limit) {
+        return luckPerms != null ? groups.withPrefix(prefix, limit) : List.of();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,157 @@
+package dev.nxms.codes.managers;
+
+import dev.nxms.codes.Codes;
+import dev.nxms.codes.storage.BackupStore;
+import dev.nxms.codes.storage.StateSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Periodic and on-demand backups of the {@link CodeManager} state.
+ * <p>
+ * The state to back up is taken on the global region thread, used codes with their per-player uses
+ * are read by the storage, everything else (copying the codes, encoding, chunking, file I/O,
+ * retention) runs on the backups/ I/O lane, one task at a time. Callbacks are called back on the
+ * global region thread.
+ */
+public class BackupManager {
+
+    public enum RestoreResult {
+        RESTORED,
+        NOT_FOUND,
+        FAILED
+    }
+
+    private final Codes plugin;
+    private final CodeManager codeManager;
+    private final BackupStore store;
+    private final ExecutorService executor;
+    private final AtomicBoolean scheduledBackup = new AtomicBoolean();
+
+    public BackupManager(Codes plugin, CodeManager codeManager) {
+        this.plugin = plugin;
+        this.codeManager = codeManager;
+        this.store = new BackupStore(new File(plugin.getDataFolder(), "backups"));
+        this.executor = plugin.getIo().lane("backups/");
+    }
+
+    /**
+     * Schedules periodic backups when enabled in config.yml.
+     */
+    public void start() {
+        if (!plugin.getConfig().getBoolean("backups.enabled", true)) return;
+
+        long interval = Math.max(1, plugin.getConfig().getLong("backups.interval", 60)) * 60 * 20;
+        plugin.getServer().getGlobalRegionScheduler().runAtFixedRate(plugin, task -> {
+            // a slow disk must not queue up backups
+            if (!scheduledBackup.compareAndSet(false, true)) return;
+            int keep = keep();
+            codeManager.backupSnapshot(executor, state -> {
+                try {
+                    if (state != null) backup(state, true, keep);
+                } finally {
+                    scheduledBackup.set(false);
+                }
+            });
+        }, interval, interval);
+    }
+
+    /**
+     * Takes a backup right away, the callback gets it or null if it failed.
+     */
+    public void backupNow(Consumer<BackupStore.Backup> callback) {
+        int keep = keep();
+        codeManager.backupSnapshot(executor, state -> {
+            BackupStore.Backup backup = state != null ? backup(state, false, keep) : null;
+            plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> callback.accept(backup));
+        });
+    }
+
+    public void listBackups(Consumer<List<BackupStore.Backup>> callback) {
+        executor.execute(() -> {
+            List<BackupStore.Backup> backups = store.list();
+            plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> callback.accept(backups));
+        });
+    }
+
+    /**
+     * Replaces all codes with the given backup. The current state is backed up first.
+     */
+    public void restore(String id, Consumer<RestoreResult> callback) {
+        codeManager.backupSnapshot(executor, current -> {
+            if (!store.exists(id)) {
+                plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> callback.accept(RestoreResult.NOT_FOUND));
+                return;
+            }
+            if (current == null) {
+                // restoring without a backup of the current state could lose it for good
+                plugin.getLogger().severe("Cannot back up the current state, backup " + id + " was not restored!");
+                plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> callback.accept(RestoreResult.FAILED));
+                return;
+            }
+
+            // no pruning here, it could delete the backup being restored
+            backup(current, true, Integer.MAX_VALUE);
+            StateSnapshot restored;
+            try {
+                restored = store.read(id);
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().severe("Cannot read backup " + id + "!");
+                e.printStackTrace();
+                plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> callback.accept(RestoreResult.FAILED));
+                return;
+            }
+
+            plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> {
+                codeManager.replaceState(restored);
+                plugin.getLogger().info("Restored backup " + id + " (" + restored.codes().size() + " active and "
+                        + restored.usedCodes().size() + " used codes).");
+                callback.accept(RestoreResult.RESTORED);
+            });
+        });
+    }
+
+    /**
+     * Runs on the backup lane.
+     *
+     * @return the new backup, or null if it failed or the state did not change
+     */
+    private BackupStore.Backup backup(StateSnapshot state, boolean skipUnchanged, int keep) {
+        try {
+            long start = System.nanoTime();
+            BackupStore.Backup backup = store.create(state, System.currentTimeMillis(), skipUnchanged);
+            if (backup == null) return null;
+
+            plugin.getLogger().info("Created backup " + backup.id() + " (" + backup.size() / 1024 + " KB) in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms.");
+            int deleted = store.prune(keep);
+            if (deleted > 0) plugin.getLogger().info("Deleted " + deleted + " old backups.");
+            return backup;
+        } catch (IOException | RuntimeException e) {
+            plugin.getLogger().severe("Cannot create backup!");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private int keep() {
+        return plugin.getConfig().getInt("backups.keep", 48);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Backup did not finish in time!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
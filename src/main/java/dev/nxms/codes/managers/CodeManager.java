@@ -1,273 +1,477 @@
 package dev.nxms.codes.managers;
 
 import dev.nxms.codes.Codes;
+import dev.nxms.codes.hooks.LuckPermsHook;
 import dev.nxms.codes.models.Code;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.configuration.file.YamlConfiguration;
+import dev.nxms.codes.models.CodeSnapshot;
+import dev.nxms.codes.models.PlayerIds;
+import dev.nxms.codes.models.Reward;
+import dev.nxms.codes.models.UuidIntMap;
+import dev.nxms.codes.storage.BinarySnapshotFormat;
+import dev.nxms.codes.storage.CodeStorage;
+import dev.nxms.codes.storage.JournaledCodeStorage;
+import dev.nxms.codes.storage.MappedUsageStore;
+import dev.nxms.codes.storage.PlayerIdFile;
+import dev.nxms.codes.storage.ShardedCodeStorage;
+import dev.nxms.codes.storage.SqliteCodeStorage;
+import dev.nxms.codes.storage.StateSnapshot;
+import dev.nxms.codes.storage.YamlSnapshotFormat;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.IllegalPluginAccessException;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
 import java.util.*;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * Owns the active and used codes. Every change happens on the global region thread, which is the
+ * main thread on Paper, so on Folia commands are passed there from the player's region. Readers on
+ * any thread use {@link #getState()}, rewards are handed out on the player's own region.
+ */
 public class CodeManager {
 
     private final Codes plugin;
-    private final Map<String, Code> codes;
-    private final Map<String, UsedCodeInfo> usedCodes;
-    private File codesFile;
-    private FileConfiguration codesConfig;
+    // replaced on the global region thread only, read from any thread
+    private volatile CodeState state = CodeState.EMPTY;
+    private final CodeStorage storage;
+    // null keeps per-player usage on the heap
+    private final MappedUsageStore usageStore;
+    private final PlayerIdFile playerIds;
+    private final ExecutorService playerIdWriter;
+    private final ExecutorService exportWriter;
+    // global region thread only
+    private final CooldownWheel cooldowns = new CooldownWheel();
+    // global region thread only
+    private final RedeemGuard guard = new RedeemGuard();
+    // LuckPerms results waiting for the global region thread
+    private final Queue<Runnable> grantResults = new ConcurrentLinkedQueue<>();
 
     public CodeManager(Codes plugin) {
         this.plugin = plugin;
-        this.codes = new HashMap<>();
-        this.usedCodes = new LinkedHashMap<>();
+        this.usageStore = plugin.getConfig().getString("usage.store", "heap").equalsIgnoreCase("mmap")
+                ? new MappedUsageStore(plugin.getDataFolder(), plugin.getLogger())
+                : null;
+        // before any code is loaded, so players get back the IDs they had
+        this.playerIds = new PlayerIdFile(plugin.getDataFolder(), plugin.getLogger());
+        playerIds.load();
+        this.playerIdWriter = plugin.getIo().lane("players.dat");
+        this.exportWriter = plugin.getIo().lane("codes-export.yml");
+        this.storage = createStorage();
         loadCodes();
+        migrateFromYaml();
     }
 
-    public void loadCodes() {
-        codes.clear();
-        usedCodes.clear();
-        codesFile = new File(plugin.getDataFolder(), "codes.yml");
-
-        if (!codesFile.exists()) {
-            plugin.getLogger().warning("Couldn't find codes.yml file!");
+    private CodeStorage createStorage() {
+        String type = plugin.getConfig().getString("storage.type", "yaml").toLowerCase(Locale.ROOT);
+        if (type.equals("sqlite")) {
             try {
-                codesFile.createNewFile();
-                plugin.getLogger().info("Created new codes.yml file.");
-            } catch (IOException e) {
-                plugin.getLogger().severe("Cannot create codes.yml file!");
-                e.printStackTrace();
-                return;
+                return new SqliteCodeStorage(plugin);
+            } catch (SQLException e) {
+                plugin.getLogger().severe("Cannot open codes.db, falling back to codes.yml: " + e.getMessage());
             }
+        } else if (type.equals("sharded")) {
+            return new ShardedCodeStorage(plugin);
+        } else if (type.equals("binary")) {
+            return new JournaledCodeStorage(plugin, new BinarySnapshotFormat(), this::snapshot);
+        } else if (!type.equals("yaml")) {
+            plugin.getLogger().warning("Unknown storage type '" + type + "', using yaml.");
         }
+        return new JournaledCodeStorage(plugin, new YamlSnapshotFormat(plugin.getLogger()), this::snapshot);
+    }
+
+    /**
+     * Copies codes.yml into a freshly created non-YAML backend, so switching storage.type keeps existing codes.
+     * The YAML files are renamed afterwards, so codes deleted later are not imported again.
+     */
+    private void migrateFromYaml() {
+        if (storage instanceof JournaledCodeStorage journaled && journaled.getFormat() instanceof YamlSnapshotFormat) return;
+        if (!state.codes().isEmpty() || !state.usedCodes().isEmpty()) return;
 
-        codesConfig = YamlConfiguration.loadConfiguration(codesFile);
+        YamlSnapshotFormat format = new YamlSnapshotFormat(plugin.getLogger());
+        File codesFile = new File(plugin.getDataFolder(), format.fileName());
+        if (!codesFile.exists() || codesFile.length() == 0) return;
+
+        JournaledCodeStorage yaml = new JournaledCodeStorage(plugin, format, this::snapshot);
+        StateSnapshot legacy;
+        try {
+            legacy = yaml.read();
+        } finally {
+            yaml.close();
+        }
+        if (legacy.codes().isEmpty() && legacy.usedCodes().isEmpty()) return;
 
-        loadActiveCodes();
-        loadUsedCodes();
+        storage.replaceAll(legacy);
+        apply(legacy);
+        plugin.getLogger().info("Imported " + state.codes().size() + " active and " + state.usedCodes().size() + " used codes from codes.yml.");
 
-        plugin.getLogger().info("Loaded " + codes.size() + " active codes and " + usedCodes.size() + " used codes.");
+        for (String name : new String[]{format.fileName(), format.journalFileName(), format.journalFileName() + ".old",
+                format.archiveFileName()}) {
+            File file = new File(plugin.getDataFolder(), name);
+            if (!file.exists()) continue;
+            try {
+                Files.move(file.toPath(), new File(plugin.getDataFolder(), name + ".migrated").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                plugin.getLogger().warning("Cannot rename " + name + ", it will be imported again if the storage is empty: "
+                        + e.getMessage());
+            }
+        }
     }
 
-    private void loadActiveCodes() {
-        ConfigurationSection codesSection = codesConfig.getConfigurationSection("codes");
-        if (codesSection == null) return;
+    public void loadCodes() {
+        guard.configure(plugin.getConfig().getInt("redeem-guard.max-misses", 5),
+                plugin.getConfig().getInt("redeem-guard.block-time", 30));
+        apply(storage.load());
+        plugin.getLogger().info("Loaded " + state.codes().size() + " active codes and " + state.usedCodes().size() + " used codes.");
+    }
 
-        for (String codeName : codesSection.getKeys(false)) {
-            ConfigurationSection codeSection = codesSection.getConfigurationSection(codeName);
-            if (codeSection == null) continue;
+    private void apply(StateSnapshot snapshot) {
+        CodeState previous = state;
+        cooldowns.clear();
 
-            try {
-                int globalUses = codeSection.getInt("global-uses", 0);
-                int maxGlobalUses = codeSection.getInt("max-global-uses", 100);
-                int maxPlayerUses = codeSection.getInt("max-player-uses", 1);
-                int cooldown = codeSection.getInt("cooldown", 0);
-                boolean broadcast = codeSection.getBoolean("broadcast", true);
-                String rewardTypeStr = codeSection.getString("reward-type", "ITEM");
-                Code.RewardType rewardType = Code.RewardType.valueOf(rewardTypeStr);
-
-                ItemStack itemReward = null;
-                String permissionReward = null;
-                String rankReward = null;
-
-                if (rewardType == Code.RewardType.ITEM) {
-                    itemReward = codeSection.getItemStack("item-reward");
-                } else if (rewardType == Code.RewardType.PERMISSION) {
-                    permissionReward = codeSection.getString("permission-reward");
-                } else if (rewardType == Code.RewardType.RANK) {
-                    rankReward = codeSection.getString("rank-reward");
-                }
+        LinkedHashMap<String, Code> codes = new LinkedHashMap<>();
+        for (CodeSnapshot codeSnapshot : snapshot.codes()) {
+            Code code = restore(codeSnapshot);
+            codes.put(CodeState.key(codeSnapshot.name()), code);
+            codeSnapshot.playerCooldowns().forEach((msb, lsb, lastUse) ->
+                    cooldowns.schedule(code, PlayerIds.intern(msb, lsb), lastUse));
+        }
+        LinkedHashMap<String, UsedCodeInfo> usedCodes = new LinkedHashMap<>();
+        for (UsedCodeInfo info : snapshot.usedCodes()) {
+            usedCodes.put(CodeState.key(info.name()), info.summary());
+        }
+        state = previous.replace(codes, usedCodes);
 
-                Map<UUID, Integer> playerUses = new HashMap<>();
-                ConfigurationSection playerUsesSection = codeSection.getConfigurationSection("player-uses");
-                if (playerUsesSection != null) {
-                    for (String uuidStr : playerUsesSection.getKeys(false)) {
-                        try {
-                            UUID uuid = UUID.fromString(uuidStr);
-                            int uses = playerUsesSection.getInt(uuidStr);
-                            playerUses.put(uuid, uses);
-                        } catch (IllegalArgumentException ignored) {
-                        }
-                    }
-                }
+        for (Code code : previous.codes()) {
+            code.retire(Code.Status.REMOVED);
+        }
+    }
 
-                Map<UUID, Long> playerCooldowns = new HashMap<>();
-                ConfigurationSection cooldownsSection = codeSection.getConfigurationSection("player-cooldowns");
-                if (cooldownsSection != null) {
-                    for (String uuidStr : cooldownsSection.getKeys(false)) {
-                        try {
-                            UUID uuid = UUID.fromString(uuidStr);
-                            long lastUse = cooldownsSection.getLong(uuidStr);
-                            playerCooldowns.put(uuid, lastUse);
-                        } catch (IllegalArgumentException ignored) {
-                        }
-                    }
-                }
+    /**
+     * Replaces all codes and used codes with the given state, e.g. from a backup.
+     */
+    public void replaceState(StateSnapshot state) {
+        storage.replaceAll(state);
+        apply(state);
+    }
 
-                Code code = new Code(codeName, globalUses, maxGlobalUses, maxPlayerUses, cooldown, broadcast,
-                        rewardType, itemReward, permissionReward, rankReward, playerUses, playerCooldowns);
-                codes.put(codeName.toLowerCase(), code);
+    /**
+     * Persists everything right away. Blocks the calling thread, use {@link #requestSave()}
+     * during normal operation.
+     */
+    public void saveCodes() {
+        storage.flush();
+        playerIds.append();
+    }
 
-            } catch (Exception e) {
-                plugin.getLogger().warning("Cannot load active code: " + codeName + "!");
-                e.printStackTrace();
+    /**
+     * Asks the storage to persist pending changes in the background.
+     */
+    public void requestSave() {
+        storage.requestFlush();
+        playerIdWriter.execute(playerIds::append);
+    }
+
+    /**
+     * Drops cooldowns that ended, run every second.
+     */
+    public void expireCooldowns() {
+        long now = System.currentTimeMillis();
+        for (Code code : cooldowns.advance(now)) {
+            if (getCode(code.getName()) == code) {
+                storage.expireCooldowns(code, now - code.getCooldown() * 1000L);
             }
         }
     }
 
-    private void loadUsedCodes() {
-        ConfigurationSection usedSection = codesConfig.getConfigurationSection("used-codes");
-        if (usedSection == null) return;
+    /**
+     * Players still on cooldown, summed over the active codes.
+     */
+    public int countLiveCooldowns() {
+        int count = 0;
+        for (Code code : state.codes()) {
+            count += code.countCooldowns();
+        }
+        return count;
+    }
 
-        for (String codeName : usedSection.getKeys(false)) {
-            ConfigurationSection codeSection = usedSection.getConfigurationSection(codeName);
-            if (codeSection == null) continue;
+    /**
+     * Cooldowns dropped since the plugin started.
+     */
+    public long getEvictedCooldowns() {
+        return cooldowns.evicted();
+    }
 
-            try {
-                String rewardDisplay = codeSection.getString("reward", "Unknown");
-                int totalUses = codeSection.getInt("total-uses", 0);
-                int maxGlobalUses = codeSection.getInt("max-global-uses", 0);
-                int maxPlayerUses = codeSection.getInt("max-player-uses", 0);
-
-                Map<UUID, Integer> playerUses = new HashMap<>();
-                ConfigurationSection pu = codeSection.getConfigurationSection("player-uses");
-                if (pu != null) {
-                    for (String uuidStr : pu.getKeys(false)) {
-                        try {
-                            UUID uuid = UUID.fromString(uuidStr);
-                            playerUses.put(uuid, pu.getInt(uuidStr, 0));
-                        } catch (IllegalArgumentException ignored) {}
-                    }
-                }
+    /**
+     * Unknown codes rejected by the name filter without a lookup.
+     */
+    public long getFilteredMisses() {
+        return guard.filtered();
+    }
 
-                UsedCodeInfo info = new UsedCodeInfo(codeName, rewardDisplay, totalUses, maxGlobalUses, maxPlayerUses, playerUses);
-                usedCodes.put(codeName.toLowerCase(), info);
+    /**
+     * Redeem attempts dropped while the player was blocked for guessing.
+     */
+    public long getIgnoredAttempts() {
+        return guard.ignored();
+    }
 
-            } catch (Exception e) {
-                plugin.getLogger().warning("Cannot load used code: " + codeName + "!");
-            }
+    /**
+     * Blocks started for guessing.
+     */
+    public long getGuessingBlocks() {
+        return guard.blocked();
+    }
+
+    /**
+     * Players that have an ID, see {@link PlayerIds}.
+     */
+    public int countKnownPlayers() {
+        return PlayerIds.count();
+    }
+
+    /**
+     * Current codes and used codes. Safe to call from any thread, the returned view never changes.
+     */
+    public CodeState getState() {
+        return state;
+    }
+
+    /**
+     * Copies one consistent {@link CodeState} for saving. The per-player data of each code is
+     * copied under the code's own lock, uses made meanwhile go to the journal or the next save.
+     */
+    public StateSnapshot snapshot() {
+        CodeState current = state;
+        List<CodeSnapshot> active = new ArrayList<>(current.codes().size());
+        for (Code code : current.codes()) {
+            active.add(code.snapshot());
         }
+        return new StateSnapshot(active, List.copyOf(current.usedCodes()));
     }
 
-    public void saveCodes() {
-        codesConfig = new YamlConfiguration();
-
-        for (Code code : codes.values()) {
-            String path = "codes." + code.getName();
-
-            codesConfig.set(path + ".global-uses", code.getGlobalUses());
-            codesConfig.set(path + ".max-global-uses", code.getMaxGlobalUses());
-            codesConfig.set(path + ".max-player-uses", code.getMaxPlayerUses());
-            codesConfig.set(path + ".cooldown", code.getCooldown());
-            codesConfig.set(path + ".broadcast", code.isBroadcast());
-            codesConfig.set(path + ".reward-type", code.getRewardType().name());
-
-            if (code.getRewardType() == Code.RewardType.ITEM) {
-                codesConfig.set(path + ".item-reward", code.getItemReward());
-            } else if (code.getRewardType() == Code.RewardType.PERMISSION) {
-                codesConfig.set(path + ".permission-reward", code.getPermissionReward());
-            } else if (code.getRewardType() == Code.RewardType.RANK) {
-                codesConfig.set(path + ".rank-reward", code.getRankReward());
-            }
+    /**
+     * Like {@link #snapshot()}, but used codes come with their per-player uses, read from the
+     * storage. Only the current state is taken here, the codes are copied on the given executor,
+     * where the callback runs too, with null if the used codes cannot be read.
+     */
+    public void backupSnapshot(Executor executor, Consumer<StateSnapshot> callback) {
+        backupSnapshot(executor, callback, false);
+    }
 
-            for (Map.Entry<UUID, Integer> entry : code.getPlayerUses().entrySet()) {
-                codesConfig.set(path + ".player-uses." + entry.getKey().toString(), entry.getValue());
+    private void backupSnapshot(Executor executor, Consumer<StateSnapshot> callback, boolean copyHere) {
+        CodeState current = state;
+        List<CodeSnapshot> copied = copyHere ? copyActive(current) : null;
+        storage.loadArchive().whenCompleteAsync((usedCodes, error) -> {
+            if (error != null) {
+                plugin.getLogger().severe("Cannot read used codes for a backup!");
+                error.printStackTrace();
+            }
+            if (usedCodes == null) {
+                callback.accept(null);
+                return;
             }
 
-            for (Map.Entry<UUID, Long> entry : code.getPlayerCooldowns().entrySet()) {
-                codesConfig.set(path + ".player-cooldowns." + entry.getKey().toString(), entry.getValue());
+            List<CodeSnapshot> active = copied != null ? copied : copyActive(current);
+            if (active == null) {
+                // a code was archived or removed while copying and its per-player data is gone,
+                // the global region thread sees no such code
+                plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> backupSnapshot(executor, callback, true));
+                return;
             }
-        }
+            callback.accept(new StateSnapshot(active, usedCodes));
+        }, executor);
+    }
 
-        for (UsedCodeInfo info : usedCodes.values()) {
-            String path = "used-codes." + info.name();
-            codesConfig.set(path + ".reward", info.rewardDisplay());
-            codesConfig.set(path + ".total-uses", info.totalUses());
-            codesConfig.set(path + ".max-global-uses", info.maxGlobalUses());
-            codesConfig.set(path + ".max-player-uses", info.maxPlayerUses());
+    /**
+     * Copies the codes of the given state, or returns null if one of them is no longer active.
+     */
+    private static List<CodeSnapshot> copyActive(CodeState current) {
+        List<CodeSnapshot> active = new ArrayList<>(current.codes().size());
+        for (Code code : current.codes()) {
+            active.add(code.snapshot());
+            if (code.getStatus() != Code.Status.ACTIVE) return null;
+        }
+        return active;
+    }
 
-            if (info.playerUses() != null) {
-                for (Map.Entry<UUID, Integer> e : info.playerUses().entrySet()) {
-                    codesConfig.set(path + ".player-uses." + e.getKey().toString(), e.getValue());
-                }
+    /**
+     * Writes the current state as human-readable YAML to {@code codes-export.yml} in the background.
+     * The callback runs on the global region thread with the written file, or null if writing failed.
+     * Used codes are exported as summaries, their per-player uses stay in the storage.
+     */
+    public void exportYaml(Consumer<File> callback) {
+        StateSnapshot state = snapshot();
+        File target = new File(plugin.getDataFolder(), "codes-export.yml");
+
+        exportWriter.execute(() -> {
+            File result = target;
+            try {
+                Files.writeString(target.toPath(), YamlSnapshotFormat.serializeReadable(state), StandardCharsets.UTF_8);
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().severe("Cannot write " + target.getName() + " file!");
+                e.printStackTrace();
+                result = null;
             }
+            File written = result;
+            plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> callback.accept(written));
+        });
+    }
+
+    public void shutdown() {
+        storage.close();
+        playerIds.append();
+        for (Code code : state.codes()) {
+            code.release();
         }
+        if (usageStore != null) usageStore.close();
+    }
 
-        try {
-            codesConfig.save(codesFile);
-        } catch (IOException e) {
-            plugin.getLogger().severe("Cannot save codes.yml file!");
-            e.printStackTrace();
+    private Code restore(CodeSnapshot snapshot) {
+        if (usageStore == null) return new Code(snapshot);
+        return new Code(snapshot, usageStore.createTable(snapshot.playerUses().size()));
+    }
+
+    /**
+     * Moves a newly created code into the mapped usage store when it is enabled.
+     */
+    private Code track(Code code) {
+        return usageStore == null ? code : restore(code.snapshot());
+    }
+
+    public CodeStorage getStorage() {
+        return storage;
+    }
+
+    private void saveUse(Code code, UUID playerUuid, long timestamp) {
+        storage.incrementUse(code, playerUuid);
+        if (code.hasCooldown()) {
+            storage.setCooldown(code, playerUuid, timestamp);
         }
     }
 
     public boolean createCode(String name, int maxGlobalUses, int maxPlayerUses, int cooldown, boolean broadcast, ItemStack itemReward) {
-        if (codes.containsKey(name.toLowerCase())) {
+        if (state.getCode(name) != null) {
             return false;
         }
 
-        Code code = new Code(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast, itemReward);
-        codes.put(name.toLowerCase(), code);
-        saveCodes();
+        Code code = track(new Code(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast, itemReward));
+        state = state.withCode(code);
+        storage.upsertCode(code, false);
         return true;
     }
 
     public boolean createCodeWithPermission(String name, int maxGlobalUses, int maxPlayerUses, int cooldown, boolean broadcast, String permission) {
-        if (codes.containsKey(name.toLowerCase())) {
+        if (state.getCode(name) != null) {
             return false;
         }
 
-        Code code = new Code(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast, permission, Code.RewardType.PERMISSION);
-        codes.put(name.toLowerCase(), code);
-        saveCodes();
+        Code code = track(new Code(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast, permission, Code.RewardType.PERMISSION));
+        state = state.withCode(code);
+        storage.upsertCode(code, false);
         return true;
     }
 
     public boolean createCodeWithRank(String name, int maxGlobalUses, int maxPlayerUses, int cooldown, boolean broadcast, String rank) {
-        if (codes.containsKey(name.toLowerCase())) {
+        if (state.getCode(name) != null) {
+            return false;
+        }
+
+        Code code = track(new Code(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast, rank, Code.RewardType.RANK));
+        state = state.withCode(code);
+        storage.upsertCode(code, false);
+        return true;
+    }
+
+    public boolean createBundleCode(String name, int maxGlobalUses, int maxPlayerUses, int cooldown, boolean broadcast, List<Reward> rewards) {
+        if (state.getCode(name) != null) {
             return false;
         }
 
-        Code code = new Code(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast, rank, Code.RewardType.RANK);
-        codes.put(name.toLowerCase(), code);
-        saveCodes();
+        Code code = track(new Code(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast, rewards));
+        state = state.withCode(code);
+        storage.upsertCode(code, false);
         return true;
     }
 
     public boolean deleteCode(String name) {
-        Code removed = codes.remove(name.toLowerCase());
+        Code removed = state.getCode(name);
         if (removed != null) {
-            saveCodes();
+            state = state.withoutCode(name);
+            storage.deleteCode(removed.getName());
+            removed.retire(Code.Status.REMOVED);
             return true;
         }
         return false;
     }
 
     public Code getCode(String name) {
-        return codes.get(name.toLowerCase());
+        return state.getCode(name);
     }
 
+    /**
+     * Active codes of the current {@link CodeState}, unmodifiable and safe to iterate from any thread.
+     */
     public Collection<Code> getAllCodes() {
-        return codes.values();
+        return state.codes();
     }
 
     public Set<String> getCodeNames() {
-        return codes.keySet();
+        return state.codeNames();
     }
 
+    /**
+     * Summaries of used codes, see {@link UsedCodeInfo#summary()}.
+     */
     public Collection<UsedCodeInfo> getUsedCodes() {
-        return usedCodes.values();
+        return state.usedCodes();
+    }
+
+    public UsedCodeInfo getUsedCode(String name) {
+        return state.getUsedCode(name);
+    }
+
+    /**
+     * Uses of the given used codes by the player, in the same order, read from the storage.
+     * The callback runs on the global region thread.
+     */
+    public void getArchivedUses(List<String> codeNames, UUID player, Consumer<List<Integer>> callback) {
+        List<CompletableFuture<Integer>> lookups = new ArrayList<>(codeNames.size());
+        for (String codeName : codeNames) {
+            lookups.add(storage.loadArchivedUses(codeName, player).exceptionally(error -> 0));
+        }
+        CompletableFuture.allOf(lookups.toArray(CompletableFuture[]::new)).thenRun(() -> {
+            List<Integer> uses = lookups.stream().map(CompletableFuture::join).toList();
+            plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> callback.accept(uses));
+        });
+    }
+
+    /**
+     * Number of players who used a used code, read from the storage. The callback runs on the global region thread.
+     */
+    public void countArchivedPlayers(String codeName, Consumer<Integer> callback) {
+        storage.countArchivedPlayers(codeName).whenComplete((players, error) -> {
+            int count = players != null ? players : 0;
+            plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> callback.accept(count));
+        });
     }
 
     public boolean clearUsedCodes() {
-        if (usedCodes.isEmpty()) {
+        if (state.usedCodes().isEmpty()) {
             return false;
         }
-        usedCodes.clear();
-        saveCodes();
+        state = state.withoutUsedCodes();
+        storage.clearArchive();
         return true;
     }
 
@@ -275,93 +479,317 @@ public class CodeManager {
         SUCCESS_ITEM,
         SUCCESS_PERMISSION,
         SUCCESS_RANK,
+        SUCCESS_BUNDLE,
         COOLDOWN,
+        EXPIRED,
+        ALREADY_USED,
         NOT_FOUND,
-        RANK_ERROR
+        RANK_ERROR,
+        // LuckPerms could not store the rank, the use was given back
+        GRANT_FAILED,
+        // too many unknown codes in a row, the player is now blocked
+        BLOCKED,
+        // dropped during a block, nothing is shown
+        IGNORED
     }
 
-    public RedeemResult redeemCode(Player player, String codeName) {
-        Code code = getCode(codeName);
-        if (code == null) {
-            return RedeemResult.NOT_FOUND;
+    /**
+     * @param code             the redeemed code, null if it was not found
+     * @param remainingSeconds seconds left for {@link RedeemResult#COOLDOWN} and {@link RedeemResult#BLOCKED}
+     */
+    public record Redemption(RedeemResult result, Code code, int remainingSeconds) { }
+
+    /**
+     * Redeems a code for the player, called on the global region thread. The use is reserved in
+     * the background with {@link Code#tryUse}, so checking the limits and taking the use cannot
+     * interleave with other redemptions. Saving the use happens back on the global region thread,
+     * where the callback runs afterwards. Items and permissions without LuckPerms are queued on the
+     * {@link WorkScheduler} and given on the player's region.
+     * <p>
+     * LuckPerms grants keep the use reserved until LuckPerms has stored them, only then is the use
+     * saved and the callback called. A failed rank grant gives the use back.
+     * <p>
+     * Blocked players and names the {@link CodeState#mightExist name filter} rules out are
+     * answered right away, before the callback returns.
+     */
+    public void redeemCode(Player player, String codeName, Consumer<Redemption> callback) {
+        UUID playerUuid = player.getUniqueId();
+        long attempt = System.currentTimeMillis();
+        if (guard.isBlocked(playerUuid, attempt)) {
+            callback.accept(new Redemption(RedeemResult.IGNORED, null, 0));
+            return;
+        }
+        if (!state.mightExist(codeName)) {
+            callback.accept(missingCode(playerUuid, codeName, attempt, true));
+            return;
         }
 
-        if (code.isOnCooldown(player.getUniqueId())) {
-            return RedeemResult.COOLDOWN;
+        int playerId = PlayerIds.intern(playerUuid);
+        plugin.getServer().getAsyncScheduler().runNow(plugin, task -> {
+            Code code = getCode(codeName);
+            long now = System.currentTimeMillis();
+            Code.UseResult use = code != null ? code.tryUse(playerId, now) : null;
+            int remainingCooldown = use == Code.UseResult.COOLDOWN ? code.getRemainingCooldown(playerId) : 0;
+
+            plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> {
+                if (code == null) {
+                    callback.accept(missingCode(playerUuid, codeName, now, false));
+                } else {
+                    completeRedemption(player, playerId, code, use, now, remainingCooldown, callback);
+                }
+            });
+        });
+    }
+
+    /**
+     * No active code has the name. Names of used codes are not counted as guesses.
+     *
+     * @param filtered whether the name filter answered without a lookup
+     */
+    private Redemption missingCode(UUID player, String codeName, long now, boolean filtered) {
+        if (!filtered && state.getUsedCode(codeName) != null) {
+            return new Redemption(RedeemResult.EXPIRED, null, 0);
         }
+        int blockedFor = guard.recordMiss(player, now, filtered);
+        return new Redemption(blockedFor > 0 ? RedeemResult.BLOCKED : RedeemResult.NOT_FOUND, null, blockedFor);
+    }
 
-        code.use(player.getUniqueId());
+    private void completeRedemption(Player player, int playerId, Code code, Code.UseResult use, long timestamp,
+                                    int remainingCooldown, Consumer<Redemption> callback) {
+        if (code.getStatus() == Code.Status.REMOVED) {
+            // deleted or overwritten while the use was reserved, the reservation went with it
+            callback.accept(new Redemption(RedeemResult.NOT_FOUND, null, 0));
+            return;
+        }
+
+        switch (use) {
+            case COOLDOWN -> {
+                callback.accept(new Redemption(RedeemResult.COOLDOWN, code, remainingCooldown));
+                return;
+            }
+            case GLOBAL_LIMIT -> {
+                callback.accept(new Redemption(RedeemResult.EXPIRED, code, 0));
+                return;
+            }
+            case PLAYER_LIMIT -> {
+                callback.accept(new Redemption(RedeemResult.ALREADY_USED, code, 0));
+                return;
+            }
+            default -> { }
+        }
 
-        code.use(player.getUniqueId());
 
-        RedeemResult result = RedeemResult.SUCCESS_ITEM;
+        LuckPermsHook hook = plugin.isLuckPermsEnabled() ? plugin.getLuckPermsHook() : null;
+        UUID uuid = player.getUniqueId();
 
-        if (code.getRewardType() == Code.RewardType.ITEM) {
-            ItemStack reward = code.getItemReward();
-            if (reward != null) {
-                HashMap<Integer, ItemStack> overflow = player.getInventory().addItem(reward);
-                for (ItemStack item : overflow.values()) {
-                    player.getWorld().dropItemNaturally(player.getLocation(), item);
+        switch (code.getRewardType()) {
+            case ITEM -> {
+                ItemStack reward = code.getItemReward();
+                if (reward != null) {
+                    String what = "item from code " + code.getName();
+                    deliver(WorkScheduler.Priority.GRANT, player, what, () -> {
+                        HashMap<Integer, ItemStack> overflow = player.getInventory().addItem(reward);
+                        for (ItemStack item : overflow.values()) {
+                            deliver(WorkScheduler.Priority.DROP, player, what,
+                                    () -> player.getWorld().dropItemNaturally(player.getLocation(), item));
+                        }
+                    });
                 }
+                callback.accept(commitUse(uuid, playerId, code, timestamp, RedeemResult.SUCCESS_ITEM));
             }
-            result = RedeemResult.SUCCESS_ITEM;
-        } else if (code.getRewardType() == Code.RewardType.PERMISSION) {
-            String permission = code.getPermissionReward();
-            if (permission != null && !permission.isEmpty()) {
-                grantPermission(player, permission);
+            case PERMISSION -> {
+                String permission = code.getPermissionReward();
+                if (permission == null || permission.isEmpty() || hook == null) {
+                    grantAttachmentPermission(player, permission);
+                    callback.accept(commitUse(uuid, playerId, code, timestamp, RedeemResult.SUCCESS_PERMISSION));
+                    return;
+                }
+                afterGrant(hook.grantPermission(uuid, player.getName(), permission), granted -> {
+                    // the use is not taken back, a permission without LuckPerms is better than none
+                    if (!granted.isSuccess()) grantAttachmentPermission(player, permission);
+                    callback.accept(commitUse(uuid, playerId, code, timestamp, RedeemResult.SUCCESS_PERMISSION));
+                });
             }
-            result = RedeemResult.SUCCESS_PERMISSION;
-        } else if (code.getRewardType() == Code.RewardType.RANK) {
-            String rank = code.getRankReward();
-            if (rank != null && !rank.isEmpty()) {
-                if (!grantRank(player, rank)) {
-                    result = RedeemResult.RANK_ERROR;
-                } else {
-                    result = RedeemResult.SUCCESS_RANK;
+            case RANK -> {
+                String rank = code.getRankReward();
+                if (rank == null || rank.isEmpty()) {
+                    callback.accept(commitUse(uuid, playerId, code, timestamp, RedeemResult.SUCCESS_RANK));
+                    return;
                 }
+                if (hook == null) {
+                    code.releaseUse(playerId, timestamp);
+                    callback.accept(new Redemption(RedeemResult.RANK_ERROR, code, 0));
+                    return;
+                }
+                afterGrant(hook.grantRank(uuid, player.getName(), rank), granted -> {
+                    if (granted.isSuccess()) {
+                        callback.accept(commitUse(uuid, playerId, code, timestamp, RedeemResult.SUCCESS_RANK));
+                    } else {
+                        code.releaseUse(playerId, timestamp);
+                        callback.accept(new Redemption(RedeemResult.GRANT_FAILED, code, 0));
+                    }
+                });
             }
+            case BUNDLE -> completeBundle(player, playerId, code, timestamp, hook, callback);
         }
+    }
 
-        if (!code.isGlobalUnlimited() && !code.canBeUsed()) {
-            archiveCode(code);
+    /**
+     * Gives all rewards of a bundle in one pass: LuckPerms nodes in one write, then every item in
+     * one inventory insert and the permissions without LuckPerms on one recalculation, and saves
+     * the use once. Ranks are checked first, so a failed rank gives the use back before anything
+     * is handed out.
+     */
+    private void completeBundle(Player player, int playerId, Code code, long timestamp, LuckPermsHook hook,
+                                Consumer<Redemption> callback) {
+        UUID uuid = player.getUniqueId();
+        List<ItemStack> items = new ArrayList<>();
+        List<String> permissions = new ArrayList<>();
+        List<String> ranks = new ArrayList<>();
+        for (Reward reward : code.getBundle()) {
+            switch (reward.type()) {
+                case ITEM -> items.add(reward.item().item());
+                case PERMISSION -> permissions.add(reward.value());
+                case RANK -> ranks.add(reward.value());
+                default -> { }
+            }
         }
 
-        saveCodes();
-        return result;
-    }
+        Runnable handOut = () -> {
+            if (!items.isEmpty()) {
+                String what = "items from code " + code.getName();
+                deliver(WorkScheduler.Priority.GRANT, player, what, () -> {
+                    HashMap<Integer, ItemStack> overflow = player.getInventory().addItem(items.toArray(ItemStack[]::new));
+                    for (ItemStack item : overflow.values()) {
+                        deliver(WorkScheduler.Priority.DROP, player, what,
+                                () -> player.getWorld().dropItemNaturally(player.getLocation(), item));
+                    }
+                });
+            }
+            callback.accept(commitUse(uuid, playerId, code, timestamp, RedeemResult.SUCCESS_BUNDLE));
+        };
 
-    private void archiveCode(Code code) {
-        UsedCodeInfo info = new UsedCodeInfo(
-                code.getName(),
-                code.getRewardDisplay(),
-                code.getGlobalUses(),
-                code.getMaxGlobalUses(),
-                code.getMaxPlayerUses(),
-                new HashMap<>(code.getPlayerUses())
-        );
-
-        usedCodes.put(code.getName().toLowerCase(), info);
-        codes.remove(code.getName().toLowerCase());
+        if (hook == null) {
+            if (!ranks.isEmpty()) {
+                code.releaseUse(playerId, timestamp);
+                callback.accept(new Redemption(RedeemResult.RANK_ERROR, code, 0));
+                return;
+            }
+            for (String permission : permissions) {
+                grantAttachmentPermission(player, permission);
+            }
+            handOut.run();
+            return;
+        }
+        if (permissions.isEmpty() && ranks.isEmpty()) {
+            handOut.run();
+            return;
+        }
 
-        plugin.getLogger().info("Kod '" + code.getName() + "' został zużyty i zarchiwizowany.");
+        afterGrant(hook.grantAll(uuid, player.getName(), permissions, ranks), granted -> {
+            if (granted.isSuccess()) {
+                handOut.run();
+            } else if (ranks.isEmpty()) {
+                // as with a single permission, a permission without LuckPerms is better than none
+                for (String permission : permissions) {
+                    grantAttachmentPermission(player, permission);
+                }
+                handOut.run();
+            } else {
+                code.releaseUse(playerId, timestamp);
+                callback.accept(new Redemption(RedeemResult.GRANT_FAILED, code, 0));
+            }
+        });
     }
 
-    private void grantPermission(Player player, String permission) {
-        if (plugin.isLuckPermsEnabled() && plugin.getLuckPermsHook() != null) {
-            if (plugin.getLuckPermsHook().grantPermission(player, permission)) {
-                return;
+    /**
+     * Continues on the global region thread once LuckPerms is done. The tick never waits for it.
+     */
+    private void afterGrant(CompletableFuture<LuckPermsHook.GrantResult> grant, Consumer<LuckPermsHook.GrantResult> then) {
+        grant.whenComplete((result, error) -> {
+            LuckPermsHook.GrantResult granted = error != null || result == null ? LuckPermsHook.GrantResult.FAILED : result;
+            grantResults.add(() -> then.accept(granted));
+            // a stopping plugin cannot schedule, onDisable runs what is left
+            if (!plugin.isEnabled()) return;
+            try {
+                plugin.getServer().getGlobalRegionScheduler().execute(plugin, this::runGrantResults);
+            } catch (IllegalPluginAccessException ignored) {
             }
+        });
+    }
+
+    /**
+     * Finishes redemptions whose LuckPerms grant completed. Runs on the global region thread, and
+     * once more while the plugin stops, after {@link LuckPermsHook#close} waited for the last writes.
+     */
+    public void runGrantResults() {
+        Runnable next;
+        while ((next = grantResults.poll()) != null) {
+            next.run();
         }
+    }
+
+    /**
+     * Saves a use whose reward has been given, archiving the code once its last use is settled.
+     */
+    private Redemption commitUse(UUID player, int playerId, Code code, long timestamp, RedeemResult result) {
+        code.commitUse(playerId, timestamp);
+        boolean active = code.getStatus() == Code.Status.ACTIVE;
+        if (active) {
+            saveUse(code, player, timestamp);
+            cooldowns.schedule(code, playerId, timestamp);
+        }
+        guard.recordSuccess(player);
 
-        player.addAttachment(plugin, permission, true);
-        plugin.getLogger().info("Granted permission " + permission + " to a player " + player.getName() + " (temporarily)");
+        // with uses still reserved the last of them to be committed archives the code
+        if (active && !code.isGlobalUnlimited() && !code.canBeUsed() && !code.hasReservedUses()) {
+            archiveCode(code);
+        }
+        return new Redemption(result, code, 0);
     }
 
-    private boolean grantRank(Player player, String rank) {
-        if (plugin.isLuckPermsEnabled() && plugin.getLuckPermsHook() != null) {
-            return plugin.getLuckPermsHook().grantRank(player, rank);
+    private void archiveCode(Code code) {
+        if (state.getCode(code.getName()) != code) {
+            return;
         }
-        return false;
+        UsedCodeInfo info = UsedCodeInfo.of(code);
+
+        state = state.withArchived(info.summary());
+        storage.archiveCode(info);
+        code.retire(Code.Status.ARCHIVED);
+
+        plugin.getLogger().info("Kod '" + code.getName() + "' został zużyty i zarchiwizowany.");
+    }
+
+    private void grantAttachmentPermission(Player player, String permission) {
+        if (permission == null || permission.isEmpty()) return;
+
+        PermissionGrants grants = plugin.getPermissionGrants();
+        if (grants.grant(player.getUniqueId(), permission)) {
+            // later grants before this runs join it, if the player leaves first they get it on join
+            deliver(WorkScheduler.Priority.GRANT, player, "permission " + permission, () -> grants.apply(player));
+        }
+        plugin.getLogger().info("Granted permission " + permission + " to a player " + player.getName() + " (without LuckPerms)");
+    }
+
+    /**
+     * Queues a task that touches the player on the {@link WorkScheduler}. When its turn comes it
+     * runs on the thread owning the player: right away on Paper, on the player's region with
+     * Folia. Logs what was lost if the player left before that.
+     */
+    private void deliver(WorkScheduler.Priority priority, Player player, String what, Runnable task) {
+        Runnable retired = () -> plugin.getLogger().warning(
+                "Player " + player.getName() + " left before receiving " + what + "!");
+
+        plugin.getWorkScheduler().submit(priority, () -> {
+            if (!plugin.getServer().isOwnedByCurrentRegion(player)) {
+                player.getScheduler().execute(plugin, task, retired, 1);
+            } else if (player.isOnline()) {
+                task.run();
+            } else {
+                retired.run();
+            }
+        });
     }
 
     public boolean isLuckPermsAvailable() {
@@ -375,47 +803,82 @@ public class CodeManager {
         return false;
     }
 
+    public List<String> suggestRanks(String prefix, int limit) {
+        if (plugin.getLuckPermsHook() != null) {
+            return plugin.getLuckPermsHook().suggestRanks(prefix, limit);
+        }
+        return List.of();
+    }
+
     public boolean existsAny(String name) {
-        String key = name.toLowerCase(Locale.ROOT);
-        return codes.containsKey(key) || usedCodes.containsKey(key);
+        return state.exists(name);
     }
 
-    private void removeAny(String name) {
-        String key = name.toLowerCase(Locale.ROOT);
-        codes.remove(key);
-        usedCodes.remove(key);
+    /**
+     * Publishes the code in place of an active or used code of the same name.
+     */
+    private void replaceAny(Code code) {
+        Code removed = state.getCode(code.getName());
+        state = state.withoutUsedCode(code.getName()).withCode(code);
+        if (removed != null) removed.retire(Code.Status.REMOVED);
     }
 
     public boolean overwriteCode(String name, int maxGlobalUses, int maxPlayerUses, int delaySeconds, boolean broadcast, ItemStack itemReward) {
-        removeAny(name);
-        Code code = new Code(name, maxGlobalUses, maxPlayerUses, delaySeconds, broadcast, itemReward);
-        codes.put(name.toLowerCase(Locale.ROOT), code);
-        saveCodes();
+        Code code = track(new Code(name, maxGlobalUses, maxPlayerUses, delaySeconds, broadcast, itemReward));
+        replaceAny(code);
+        storage.upsertCode(code, true);
         return true;
     }
 
     public boolean overwriteCodeWithPermission(String name, int maxGlobalUses, int maxPlayerUses, int delaySeconds, boolean broadcast, String permission) {
-        removeAny(name);
-        Code code = new Code(name, maxGlobalUses, maxPlayerUses, delaySeconds, broadcast, permission, Code.RewardType.PERMISSION);
-        codes.put(name.toLowerCase(Locale.ROOT), code);
-        saveCodes();
+        Code code = track(new Code(name, maxGlobalUses, maxPlayerUses, delaySeconds, broadcast, permission, Code.RewardType.PERMISSION));
+        replaceAny(code);
+        storage.upsertCode(code, true);
         return true;
     }
 
     public boolean overwriteCodeWithRank(String name, int maxGlobalUses, int maxPlayerUses, int delaySeconds, boolean broadcast, String rank) {
-        removeAny(name);
-        Code code = new Code(name, maxGlobalUses, maxPlayerUses, delaySeconds, broadcast, rank, Code.RewardType.RANK);
-        codes.put(name.toLowerCase(Locale.ROOT), code);
-        saveCodes();
+        Code code = track(new Code(name, maxGlobalUses, maxPlayerUses, delaySeconds, broadcast, rank, Code.RewardType.RANK));
+        replaceAny(code);
+        storage.upsertCode(code, true);
+        return true;
+    }
+
+    public boolean overwriteBundleCode(String name, int maxGlobalUses, int maxPlayerUses, int delaySeconds, boolean broadcast, List<Reward> rewards) {
+        Code code = track(new Code(name, maxGlobalUses, maxPlayerUses, delaySeconds, broadcast, rewards));
+        replaceAny(code);
+        storage.upsertCode(code, true);
         return true;
     }
 
+    /**
+     * A used code. {@code playerUses} is null in the summaries kept by the manager.
+     */
     public record UsedCodeInfo(
             String name,
             String rewardDisplay,
             int totalUses,
             int maxGlobalUses,
             int maxPlayerUses,
-            Map<UUID, Integer> playerUses
-    ) { }
+            UuidIntMap playerUses
+    ) {
+        public static UsedCodeInfo of(Code code) {
+            return new UsedCodeInfo(
+                    code.getName(),
+                    code.getRewardDisplay(),
+                    code.getGlobalUses(),
+                    code.getMaxGlobalUses(),
+                    code.getMaxPlayerUses(),
+                    code.getPlayerUses()
+            );
+        }
+
+        /**
+         * Copy without the per-player map, which is what the manager keeps in memory.
+         */
+        public UsedCodeInfo summary() {
+            return playerUses == null ? this
+                    : new UsedCodeInfo(name, rewardDisplay, totalUses, maxGlobalUses, maxPlayerUses, null);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+package dev.nxms.codes.managers;
+
+import dev.nxms.codes.models.Code;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable view of the active and used codes, keyed by lower-case name. {@link CodeManager}
+ * publishes a new one after every change, so readers on any thread see both lists change
+ * together without taking a lock. The codes themselves stay live, their uses keep changing.
+ * <p>
+ * Changes copy the affected map and rebuild the {@link NameFilter} of all names, which is cheap
+ * for the few writes an admin makes.
+ */
+public final class CodeState {
+
+    static final CodeState EMPTY = new CodeState(Map.of(), Map.of(), 0);
+
+    private final Map<String, Code> codes;
+    private final Map<String, CodeManager.UsedCodeInfo> usedCodes;
+    private final long version;
+    private final NameFilter names;
+
+    private CodeState(Map<String, Code> codes, Map<String, CodeManager.UsedCodeInfo> usedCodes, long version) {
+        this.codes = codes;
+        this.usedCodes = usedCodes;
+        this.version = version;
+        this.names = new NameFilter(codes.keySet(), usedCodes.keySet());
+    }
+
+    static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Takes ownership of the given maps.
+     */
+    CodeState replace(LinkedHashMap<String, Code> codes, LinkedHashMap<String, CodeManager.UsedCodeInfo> usedCodes) {
+        return new CodeState(Collections.unmodifiableMap(codes), Collections.unmodifiableMap(usedCodes), version + 1);
+    }
+
+    CodeState withCode(Code code) {
+        LinkedHashMap<String, Code> copy = new LinkedHashMap<>(codes);
+        copy.put(key(code.getName()), code);
+        return new CodeState(Collections.unmodifiableMap(copy), usedCodes, version + 1);
+    }
+
+    CodeState withoutCode(String name) {
+        if (!codes.containsKey(key(name))) return this;
+        LinkedHashMap<String, Code> copy = new LinkedHashMap<>(codes);
+        copy.remove(key(name));
+        return new CodeState(Collections.unmodifiableMap(copy), usedCodes, version + 1);
+    }
+
+    /**
+     * Moves an active code to the used codes in one step.
+     */
+    CodeState withArchived(CodeManager.UsedCodeInfo info) {
+        LinkedHashMap<String, Code> active = new LinkedHashMap<>(codes);
+        active.remove(key(info.name()));
+        LinkedHashMap<String, CodeManager.UsedCodeInfo> used = new LinkedHashMap<>(usedCodes);
+        used.put(key(info.name()), info);
+        return new CodeState(Collections.unmodifiableMap(active), Collections.unmodifiableMap(used), version + 1);
+    }
+
+    CodeState withoutUsedCode(String name) {
+        if (!usedCodes.containsKey(key(name))) return this;
+        LinkedHashMap<String, CodeManager.UsedCodeInfo> copy = new LinkedHashMap<>(usedCodes);
+        copy.remove(key(name));
+        return new CodeState(codes, Collections.unmodifiableMap(copy), version + 1);
+    }
+
+    CodeState withoutUsedCodes() {
+        return new CodeState(codes, Map.of(), version + 1);
+    }
+
+    public Code getCode(String name) {
+        return codes.get(key(name));
+    }
+
+    public CodeManager.UsedCodeInfo getUsedCode(String name) {
+        return usedCodes.get(key(name));
+    }
+
+    /**
+     * False if there is certainly no active or used code with the name, in a few nanoseconds.
+     * True answers may be wrong, confirm them with {@link #getCode} or {@link #getUsedCode}.
+     */
+    public boolean mightExist(String name) {
+        return names.mightContain(name);
+    }
+
+    public boolean exists(String name) {
+        String key = key(name);
+        return codes.containsKey(key) || usedCodes.containsKey(key);
+    }
+
+    public Collection<Code> codes() {
+        return codes.values();
+    }
+
+    /**
+     * Lower-case names of the active codes.
+     */
+    public Set<String> codeNames() {
+        return codes.keySet();
+    }
+
+    /**
+     * Summaries of the used codes in archive order, see {@link CodeManager.UsedCodeInfo#summary()}.
+     */
+    public Collection<CodeManager.UsedCodeInfo> usedCodes() {
+        return usedCodes.values();
+    }
+
+    /**
+     * Grows with every change, two reads with the same version saw the same codes.
+     */
+    public long version() {
+        return version;
+    }
+}
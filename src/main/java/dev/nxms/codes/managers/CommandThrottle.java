@@ -0,0 +1,110 @@
+package dev.nxms.codes.managers;
+
+import dev.nxms.codes.Codes;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Rate limits for /code, with separate budgets for redeeming and for the other subcommands.
+ * Each budget is checked per player UUID and per connection address, so neither several accounts
+ * behind one address nor one account reconnecting can get around it. The console is not limited.
+ */
+public class CommandThrottle {
+
+    private record Budget(RateLimiter players, RateLimiter addresses) {
+
+        boolean tryAcquire(Player player) {
+            if (!players.tryAcquire(player.getUniqueId())) return false;
+            InetSocketAddress socket = player.getAddress();
+            InetAddress address = socket != null ? socket.getAddress() : null;
+            if (address == null || addresses.tryAcquire(address)) return true;
+
+            // refused for the address, the player's own budget is not spent on it
+            players.refund(player.getUniqueId());
+            return false;
+        }
+
+        void prune() {
+            players.prune();
+            addresses.prune();
+        }
+
+        int size() {
+            return players.size() + addresses.size();
+        }
+
+        long rejected() {
+            return players.rejected() + addresses.rejected();
+        }
+    }
+
+    private final Codes plugin;
+
+    // replaced as a whole on reload, commands may run while the config is read
+    private volatile boolean enabled;
+    private volatile Budget redeem;
+    private volatile Budget admin;
+
+    public CommandThrottle(Codes plugin) {
+        this.plugin = plugin;
+        reload();
+    }
+
+    public void reload() {
+        FileConfiguration config = plugin.getConfig();
+        this.redeem = budget(config.getConfigurationSection("rate-limit.redeem"), 5, 20, 15, 60);
+        this.admin = budget(config.getConfigurationSection("rate-limit.admin"), 20, 120, 40, 240);
+        this.enabled = config.getBoolean("rate-limit.enabled", true);
+    }
+
+    private static Budget budget(ConfigurationSection section, int playerBurst, int playerRate,
+                                 int addressBurst, int addressRate) {
+        if (section != null) {
+            playerBurst = section.getInt("player.burst", playerBurst);
+            playerRate = section.getInt("player.per-minute", playerRate);
+            addressBurst = section.getInt("address.burst", addressBurst);
+            addressRate = section.getInt("address.per-minute", addressRate);
+        }
+        return new Budget(new RateLimiter(playerBurst, playerRate), new RateLimiter(addressBurst, addressRate));
+    }
+
+    /**
+     * Takes a token for a code redemption.
+     *
+     * @return false if the player or their address is over the limit
+     */
+    public boolean tryRedeem(Player player) {
+        return !enabled || redeem.tryAcquire(player);
+    }
+
+    /**
+     * Takes a token for any other subcommand, help included.
+     */
+    public boolean tryCommand(Player player) {
+        return !enabled || admin.tryAcquire(player);
+    }
+
+    /**
+     * Drops the buckets of players and addresses that have been quiet long enough to be full
+     * again, which covers everyone who left. Safe from any thread.
+     */
+    public void prune() {
+        redeem.prune();
+        admin.prune();
+    }
+
+    public int countBuckets() {
+        return redeem.size() + admin.size();
+    }
+
+    /**
+     * Commands refused since the last reload.
+     */
+    public long getRejected() {
+        return redeem.rejected() + admin.rejected();
+    }
+}
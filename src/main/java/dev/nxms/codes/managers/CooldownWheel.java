@@ -0,0 +1,97 @@
+package dev.nxms.codes.managers;
+
+import dev.nxms.codes.models.Code;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hashed timing wheel that ends per-player cooldowns. A use with a cooldown is filed under the
+ * second it runs out, {@link #advance} clears the last use of every entry that is due, so ended
+ * cooldowns neither stay in the usage tables nor get persisted. One turn of the wheel is
+ * {@value #SLOTS} seconds, longer cooldowns stay in their slot for several turns.
+ * <p>
+ * Global region thread only.
+ */
+class CooldownWheel {
+
+    private static final int SLOTS = 512;
+
+    private record Entry(Code code, int player, long lastUse, long dueSecond) { }
+
+    private final List<List<Entry>> slots = new ArrayList<>(SLOTS);
+    // last second whose slot was processed
+    private long currentSecond;
+    private long evicted;
+
+    CooldownWheel() {
+        for (int i = 0; i < SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+        currentSecond = System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Files a use made at {@code lastUse}. A cooldown that already ended is cleared right away.
+     */
+    void schedule(Code code, int player, long lastUse) {
+        if (!code.hasCooldown() || lastUse == 0) return;
+
+        long endsAt = lastUse + code.getCooldown() * 1000L;
+        // rounded up, so the entry is only looked at once the cooldown is over
+        long dueSecond = (endsAt + 999) / 1000;
+        if (dueSecond <= currentSecond) {
+            if (code.expireCooldown(player, lastUse)) evicted++;
+            return;
+        }
+
+        slots.get((int) (dueSecond % SLOTS)).add(new Entry(code, player, lastUse, dueSecond));
+    }
+
+    /**
+     * Processes every second up to {@code now}, catching up after lag.
+     *
+     * @return codes that had cooldowns cleared
+     */
+    Set<Code> advance(long now) {
+        Set<Code> expired = new LinkedHashSet<>();
+        long target = now / 1000;
+        // after a long pause one turn covers every slot
+        long from = Math.max(currentSecond + 1, target - SLOTS + 1);
+
+        for (long second = from; second <= target; second++) {
+            List<Entry> slot = slots.get((int) (second % SLOTS));
+            for (int i = slot.size() - 1; i >= 0; i--) {
+                Entry entry = slot.get(i);
+                if (entry.dueSecond() > target) continue;
+
+                // swap-remove, order within a slot does not matter
+                slot.set(i, slot.get(slot.size() - 1));
+                slot.remove(slot.size() - 1);
+
+                // a later use of the same player has its own entry and keeps the cooldown
+                if (entry.code().expireCooldown(entry.player(), entry.lastUse())) {
+                    evicted++;
+                    expired.add(entry.code());
+                }
+            }
+        }
+        currentSecond = Math.max(currentSecond, target);
+        return expired;
+    }
+
+    void clear() {
+        for (List<Entry> slot : slots) {
+            slot.clear();
+        }
+    }
+
+    /**
+     * Cooldowns cleared since the plugin started.
+     */
+    long evicted() {
+        return evicted;
+    }
+}
@@ -0,0 +1,81 @@
+package dev.nxms.codes.managers;
+
+import java.util.Collection;
+
+/**
+ * Bloom filter of code names: 10 bits and 7 probes per name, about 1% false positives.
+ * Answers "certainly no such code" without touching the code maps or allocating. Names are
+ * compared ignoring ASCII case; a name with other characters is always reported as possible,
+ * the maps decide those.
+ */
+final class NameFilter {
+
+    private static final int BITS_PER_NAME = 10;
+    private static final int PROBES = 7;
+
+    private final long[] bits;
+    private final int mask;
+
+    /**
+     * @param keys lower-case names
+     */
+    @SafeVarargs
+    NameFilter(Collection<String>... keys) {
+        int names = 0;
+        for (Collection<String> collection : keys) {
+            names += collection.size();
+        }
+        int size = 64;
+        while (size < names * BITS_PER_NAME && size < 1 << 30) {
+            size <<= 1;
+        }
+        this.bits = new long[size / 64];
+        this.mask = size - 1;
+
+        for (Collection<String> collection : keys) {
+            for (String key : collection) {
+                long hash = hash(key);
+                if (hash != 0) add(hash);
+            }
+        }
+    }
+
+    boolean mightContain(String name) {
+        long hash = hash(name);
+        if (hash == 0) return true;
+
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private void add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * FNV-1a over the lower-cased name, mixed. 0 for names with non-ASCII characters.
+     */
+    private static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80) return 0;
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            h = (h ^ c) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
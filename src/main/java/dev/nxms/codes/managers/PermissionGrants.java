@@ -0,0 +1,181 @@
+package dev.nxms.codes.managers;
+
+import dev.nxms.codes.Codes;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.permissions.PermissionAttachment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Permission rewards given without LuckPerms. Every online player who has any gets one
+ * {@link PermissionAttachment}; grants made in the same tick are set on it together, so the
+ * player's permissions are recalculated once instead of once per grant.
+ * <p>
+ * Grants are kept in {@code permissions.yml}, the attachment is rebuilt from it on join and
+ * dropped on quit, so these permissions survive a relog and a restart.
+ */
+public class PermissionGrants implements Listener {
+
+    private final Codes plugin;
+    private final Path file;
+    private final ExecutorService writer;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    private final Map<UUID, Set<String>> granted = new ConcurrentHashMap<>();
+    // granted but not yet on the attachment, taken as a whole by apply()
+    private final Map<UUID, Set<String>> waiting = new ConcurrentHashMap<>();
+    // touched only on the thread owning the player
+    private final Map<UUID, PermissionAttachment> attachments = new ConcurrentHashMap<>();
+
+    public PermissionGrants(Codes plugin) {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), "permissions.yml").toPath();
+        this.writer = plugin.getIo().lane("permissions.yml");
+        load();
+    }
+
+    private void load() {
+        if (!Files.exists(file)) return;
+
+        YamlConfiguration yaml = YamlConfiguration.loadConfiguration(file.toFile());
+        for (String key : yaml.getKeys(false)) {
+            try {
+                Set<String> permissions = ConcurrentHashMap.newKeySet();
+                permissions.addAll(yaml.getStringList(key));
+                granted.put(UUID.fromString(key), permissions);
+            } catch (IllegalArgumentException e) {
+                plugin.getLogger().warning("Skipping invalid player '" + key + "' in permissions.yml");
+            }
+        }
+    }
+
+    /**
+     * Gives attachments to players who were online before the plugin started, e.g. after /reload.
+     */
+    public void start() {
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            player.getScheduler().execute(plugin, () -> attach(player), null, 1);
+        }
+    }
+
+    /**
+     * Records the grant. Safe from any thread.
+     *
+     * @return true if the player had nothing else waiting, the caller then schedules
+     *         {@link #apply} on the player's thread; otherwise the grant joins that call
+     */
+    public boolean grant(UUID player, String permission) {
+        if (granted.computeIfAbsent(player, uuid -> ConcurrentHashMap.newKeySet()).add(permission)) {
+            save();
+        }
+
+        boolean[] first = new boolean[1];
+        waiting.compute(player, (uuid, batch) -> {
+            if (batch == null) {
+                batch = new HashSet<>();
+                first[0] = true;
+            }
+            batch.add(permission);
+            return batch;
+        });
+        return first[0];
+    }
+
+    /**
+     * Puts everything waiting for the player on their attachment. Runs on the player's thread.
+     */
+    public void apply(Player player) {
+        Set<String> batch = waiting.remove(player.getUniqueId());
+        if (batch == null) return;
+
+        PermissionAttachment attachment = attachments.get(player.getUniqueId());
+        if (attachment == null) {
+            attach(player);
+            return;
+        }
+        attachment.setPermissions(asValues(batch));
+    }
+
+    private void attach(Player player) {
+        UUID uuid = player.getUniqueId();
+        waiting.remove(uuid);
+
+        Set<String> permissions = granted.get(uuid);
+        if (permissions == null || permissions.isEmpty() || attachments.containsKey(uuid)) return;
+
+        PermissionAttachment attachment = player.addAttachment(plugin);
+        attachment.setPermissions(asValues(permissions));
+        attachments.put(uuid, attachment);
+    }
+
+    private static Map<String, Boolean> asValues(Set<String> permissions) {
+        Map<String, Boolean> values = new HashMap<>();
+        for (String permission : permissions) {
+            values.put(permission, true);
+        }
+        return values;
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onJoin(PlayerJoinEvent event) {
+        attach(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        // the attachment goes away with the player, grants stay in permissions.yml
+        UUID uuid = event.getPlayer().getUniqueId();
+        attachments.remove(uuid);
+        waiting.remove(uuid);
+    }
+
+    /**
+     * Writes permissions.yml in the background. Grants made before the write starts are part of
+     * it, so a burst of grants is one write.
+     */
+    private void save() {
+        if (!dirty.compareAndSet(false, true)) return;
+
+        writer.execute(() -> {
+            dirty.set(false);
+            YamlConfiguration yaml = new YamlConfiguration();
+            for (Map.Entry<UUID, Set<String>> entry : granted.entrySet()) {
+                yaml.set(entry.getKey().toString(), new ArrayList<>(entry.getValue()));
+            }
+
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.writeString(temp, yaml.saveToString(), StandardCharsets.UTF_8);
+                try {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                plugin.getLogger().severe("Cannot save permissions.yml: " + e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+}
@@ -0,0 +1,121 @@
+package dev.nxms.codes.managers;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets for any number of keys. Each bucket is a single {@link AtomicLong} holding the
+ * time of the last refill and the tokens left, changed with a CAS, so taking a token never locks
+ * and a rejection writes and allocates nothing once the key has a bucket.
+ * <p>
+ * A bucket that has refilled completely is the same as none, {@link #prune()} drops those, so
+ * only keys used within the last refill period take memory. Beyond {@value #MAX_BUCKETS} keys
+ * new ones are let through untracked instead of growing further.
+ */
+public class RateLimiter {
+
+    static final int MAX_BUCKETS = 65536;
+
+    // one token, so refilling by tokens per minute is a whole number of units per millisecond
+    private static final long UNIT = 60_000;
+    private static final int TOKEN_BITS = 26;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    public static final int MAX_BURST = (int) (TOKEN_MASK / UNIT);
+
+    private final long capacity;
+    private final long refillPerMillis;
+    private final long origin = System.nanoTime();
+    private final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param burst     tokens a new or idle key starts with, at most {@link #MAX_BURST}
+     * @param perMinute tokens regained per minute
+     */
+    public RateLimiter(int burst, int perMinute) {
+        this.capacity = Math.max(1, Math.min(burst, MAX_BURST)) * UNIT;
+        this.refillPerMillis = Math.max(1, perMinute);
+    }
+
+    /**
+     * Takes a token for the key.
+     *
+     * @return false if the key has none left
+     */
+    public boolean tryAcquire(Object key) {
+        long now = millis();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_BUCKETS) {
+                prune();
+                if (buckets.size() >= MAX_BUCKETS) return true;
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(pack(now, capacity)));
+        }
+
+        while (true) {
+            long state = bucket.get();
+            long tokens = refill(state, now);
+            if (tokens < UNIT) {
+                rejected.increment();
+                return false;
+            }
+            if (bucket.compareAndSet(state, pack(Math.max(now, state >>> TOKEN_BITS), tokens - UNIT))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token {@link #tryAcquire} took for a request that was then refused elsewhere.
+     */
+    public void refund(Object key) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) return;
+
+        while (true) {
+            long state = bucket.get();
+            long tokens = Math.min(capacity, (state & TOKEN_MASK) + UNIT);
+            if (bucket.compareAndSet(state, pack(state >>> TOKEN_BITS, tokens))) return;
+        }
+    }
+
+    /**
+     * Drops buckets that have refilled completely.
+     */
+    public void prune() {
+        long now = millis();
+        Iterator<AtomicLong> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (refill(it.next().get(), now) >= capacity) it.remove();
+        }
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Requests refused since the limiter was created.
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    private long millis() {
+        return (System.nanoTime() - origin) / 1_000_000;
+    }
+
+    private long refill(long state, long now) {
+        long elapsed = Math.max(0, now - (state >>> TOKEN_BITS));
+        long tokens = state & TOKEN_MASK;
+        // elapsed is capped so the product cannot overflow
+        return Math.min(capacity, tokens + Math.min(elapsed, capacity) * refillPerMillis);
+    }
+
+    private static long pack(long millis, long tokens) {
+        return millis << TOKEN_BITS | tokens;
+    }
+}
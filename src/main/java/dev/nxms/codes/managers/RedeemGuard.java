@@ -0,0 +1,117 @@
+package dev.nxms.codes.managers;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Slows down guessing: a player who enters {@code maxMisses} unknown codes in a row is blocked
+ * for {@code blockTime} seconds, twice as long for every further block up to an hour. Attempts
+ * during a block are dropped without a message. A redeemed code or ten quiet minutes reset it.
+ * <p>
+ * Global region thread only.
+ */
+class RedeemGuard {
+
+    private static final long FORGET_AFTER = 10 * 60 * 1000L;
+    private static final int MAX_BLOCK_TIME = 60 * 60;
+    private static final int PRUNE_INTERVAL = 1024;
+
+    private static final class Streak {
+        int misses;
+        int blocks;
+        long lastMiss;
+        long blockedUntil;
+    }
+
+    private final Map<UUID, Streak> streaks = new HashMap<>();
+    private int maxMisses;
+    private int blockTime;
+    private int missesSincePrune;
+
+    private long filtered;
+    private long ignored;
+    private long blocked;
+
+    /**
+     * @param maxMisses misses in a row before a block, 0 turns blocking off
+     * @param blockTime length of the first block in seconds
+     */
+    void configure(int maxMisses, int blockTime) {
+        this.maxMisses = Math.max(0, maxMisses);
+        this.blockTime = Math.max(1, blockTime);
+    }
+
+    /**
+     * Counts the attempt as ignored if the player is blocked.
+     */
+    boolean isBlocked(UUID player, long now) {
+        Streak streak = streaks.get(player);
+        if (streak == null || now >= streak.blockedUntil) return false;
+        ignored++;
+        return true;
+    }
+
+    /**
+     * @param filtered whether the name filter rejected the attempt without a lookup
+     * @return seconds the player is now blocked for, 0 if the miss did not start a block
+     */
+    int recordMiss(UUID player, long now, boolean filtered) {
+        if (filtered) this.filtered++;
+        if (maxMisses == 0) return 0;
+
+        if (++missesSincePrune >= PRUNE_INTERVAL) {
+            prune(now);
+        }
+
+        Streak streak = streaks.computeIfAbsent(player, uuid -> new Streak());
+        if (now - streak.lastMiss > FORGET_AFTER && now >= streak.blockedUntil) {
+            streak.misses = 0;
+            streak.blocks = 0;
+        }
+        streak.lastMiss = now;
+        if (++streak.misses < maxMisses) return 0;
+
+        int seconds = (int) Math.min(MAX_BLOCK_TIME, (long) blockTime << Math.min(streak.blocks, 20));
+        streak.misses = 0;
+        streak.blocks++;
+        streak.blockedUntil = now + seconds * 1000L;
+        blocked++;
+        return seconds;
+    }
+
+    void recordSuccess(UUID player) {
+        streaks.remove(player);
+    }
+
+    private void prune(long now) {
+        missesSincePrune = 0;
+        Iterator<Streak> it = streaks.values().iterator();
+        while (it.hasNext()) {
+            Streak streak = it.next();
+            if (now - streak.lastMiss > FORGET_AFTER && now >= streak.blockedUntil) it.remove();
+        }
+    }
+
+    /**
+     * Unknown codes rejected by the name filter alone.
+     */
+    long filtered() {
+        return filtered;
+    }
+
+    /**
+     * Attempts dropped while a player was blocked.
+     */
+    long ignored() {
+        return ignored;
+    }
+
+    /**
+     * Blocks started.
+     */
+    long blocked() {
+        return blocked;
+    }
+}
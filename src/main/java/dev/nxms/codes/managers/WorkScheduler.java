@@ -0,0 +1,152 @@
+package dev.nxms.codes.managers;
+
+import dev.nxms.codes.Codes;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads reward delivery and announcements over ticks. Work is queued from any thread and run
+ * on the global region thread (the main thread on Paper), highest priority first, until the
+ * tick's budget from {@code work.tick-budget} is used up. The rest waits for the next tick, so a
+ * code redeemed by hundreds of players at once does not land in a single tick.
+ * <p>
+ * At least one task runs every tick, so a budget smaller than a task still makes progress.
+ */
+public class WorkScheduler {
+
+    public enum Priority {
+        /** Items and permissions. */
+        GRANT,
+        /** Items that did not fit into the inventory. */
+        DROP,
+        /** Chat announcements. */
+        ANNOUNCE
+    }
+
+    private record Task(Runnable work, long queuedAt) { }
+
+    private final Codes plugin;
+    private final Queue<Task>[] queues;
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile long budgetNanos;
+
+    // global region thread only
+    private long lastTickNanos;
+    private long maxTickNanos;
+    private long busyNanos;
+    private long busyTicks;
+    private long lastLagMillis;
+
+    @SuppressWarnings("unchecked")
+    public WorkScheduler(Codes plugin) {
+        this.plugin = plugin;
+        this.queues = new Queue[Priority.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+        reload();
+    }
+
+    public void reload() {
+        this.budgetNanos = Math.max(1, plugin.getConfig().getLong("work.tick-budget", 2000)) * 1000;
+    }
+
+    public void start() {
+        plugin.getServer().getGlobalRegionScheduler().runAtFixedRate(plugin, task -> tick(), 1, 1);
+    }
+
+    /**
+     * Queues work for one of the next ticks. Safe from any thread.
+     */
+    public void submit(Priority priority, Runnable work) {
+        queues[priority.ordinal()].add(new Task(work, System.nanoTime()));
+        queued.incrementAndGet();
+    }
+
+    private void tick() {
+        if (queued.get() == 0) {
+            lastTickNanos = 0;
+            return;
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + budgetNanos;
+        long now = start;
+        do {
+            Task task = poll();
+            if (task == null) break;
+
+            lastLagMillis = (now - task.queuedAt()) / 1_000_000;
+            try {
+                task.work().run();
+            } catch (Throwable t) {
+                plugin.getLogger().severe("Queued reward or announcement failed!");
+                t.printStackTrace();
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+
+        lastTickNanos = now - start;
+        maxTickNanos = Math.max(maxTickNanos, lastTickNanos);
+        busyNanos += lastTickNanos;
+        busyTicks++;
+    }
+
+    private Task poll() {
+        for (Queue<Task> queue : queues) {
+            Task task = queue.poll();
+            if (task != null) {
+                queued.decrementAndGet();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs everything still queued regardless of the budget, e.g. before the plugin stops.
+     */
+    public void runAll() {
+        Task task;
+        while ((task = poll()) != null) {
+            try {
+                task.work().run();
+            } catch (Throwable t) {
+                plugin.getLogger().severe("Queued reward or announcement failed!");
+                t.printStackTrace();
+            }
+        }
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Milliseconds the most recently run task had waited in the queue.
+     */
+    public long getLagMillis() {
+        return lastLagMillis;
+    }
+
+    public long getLastTickMicros() {
+        return lastTickNanos / 1000;
+    }
+
+    /**
+     * Average time per tick that had work, in microseconds.
+     */
+    public long getAverageTickMicros() {
+        return busyTicks == 0 ? 0 : busyNanos / busyTicks / 1000;
+    }
+
+    public long getMaxTickMicros() {
+        return maxTickNanos / 1000;
+    }
+
+    public long getBudgetMicros() {
+        return budgetNanos / 1000;
+    }
+}
@@ -2,53 +2,95 @@ package dev.nxms.codes.models;
 
 import org.bukkit.inventory.ItemStack;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Code {
 
     public enum RewardType {
         ITEM,
         PERMISSION,
-        RANK
+        RANK,
+        /** Several of the above, given together in order. */
+        BUNDLE
+    }
+
+    /**
+     * Outcome of {@link #tryUse}.
+     */
+    public enum UseResult {
+        USED,
+        COOLDOWN,
+        PLAYER_LIMIT,
+        GLOBAL_LIMIT
+    }
+
+    /**
+     * Whether the code can still be redeemed, or why the manager stopped tracking it.
+     */
+    public enum Status {
+        ACTIVE,
+        /** Every use was taken, the code moved to the used codes list. */
+        ARCHIVED,
+        /** Deleted, overwritten or dropped by a reload. */
+        REMOVED
     }
 
     public static final int UNLIMITED = 0;
 
     private final String name;
-    private int globalUses;
+    private final AtomicInteger globalUses;
     private final int maxGlobalUses;
     private final int maxPlayerUses;
     private final int cooldown;
     private final boolean broadcast;
     private final RewardType rewardType;
-    private final ItemStack itemReward;
+    private final ItemBlob itemReward;
     private final String permissionReward;
     private final String rankReward;
-    private final Map<UUID, Integer> playerUses;
-    private final Map<UUID, Long> playerCooldowns;
+    private final List<Reward> bundle;
+    private final UsageTable usage;
+    // uses taken by tryUse that were neither committed nor released yet
+    private final AtomicInteger reservedUses = new AtomicInteger();
+    // the same uses by player, as the timestamps they were taken at
+    private final Map<Integer, List<Long>> reservations = new ConcurrentHashMap<>();
+    // shared by changes to the uses, held exclusively by snapshot() so it sees no use half taken
+    private final ReadWriteLock useLock = new ReentrantReadWriteLock();
+    private volatile Status status = Status.ACTIVE;
 
     // Konstruktor dla ITEM
     public Code(String name, int maxGlobalUses, int maxPlayerUses, int cooldown, boolean broadcast, ItemStack itemReward) {
+        this(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast, ItemBlob.of(itemReward));
+    }
+
+    // Konstruktor dla ITEM z już zserializowanym przedmiotem
+    public Code(String name, int maxGlobalUses, int maxPlayerUses, int cooldown, boolean broadcast, ItemBlob itemReward) {
         this.name = name;
-        this.globalUses = 0;
+        this.globalUses = new AtomicInteger();
         this.maxGlobalUses = maxGlobalUses;
         this.maxPlayerUses = maxPlayerUses;
         this.cooldown = cooldown;
         this.broadcast = broadcast;
         this.rewardType = RewardType.ITEM;
-        this.itemReward = itemReward.clone();
+        this.itemReward = itemReward;
         this.permissionReward = null;
         this.rankReward = null;
-        this.playerUses = new HashMap<>();
-        this.playerCooldowns = new HashMap<>();
+        this.bundle = List.of();
+        this.usage = new HeapUsageTable();
     }
 
     // Konstruktor dla PERMISSION lub RANK
     public Code(String name, int maxGlobalUses, int maxPlayerUses, int cooldown, boolean broadcast, String reward, RewardType type) {
         this.name = name;
-        this.globalUses = 0;
+        this.globalUses = new AtomicInteger();
         this.maxGlobalUses = maxGlobalUses;
         this.maxPlayerUses = maxPlayerUses;
         this.cooldown = cooldown;
@@ -67,16 +109,37 @@ public class Code {
             this.rankReward = null;
         }
 
-        this.playerUses = new HashMap<>();
-        this.playerCooldowns = new HashMap<>();
+        this.bundle = List.of();
+        this.usage = new HeapUsageTable();
+    }
+
+    // Konstruktor dla BUNDLE
+    public Code(String name, int maxGlobalUses, int maxPlayerUses, int cooldown, boolean broadcast, List<Reward> bundle) {
+        this(name, 0, maxGlobalUses, maxPlayerUses, cooldown, broadcast, RewardType.BUNDLE, null, null, null,
+                List.copyOf(bundle), new HeapUsageTable());
+    }
+
+    public Code(CodeSnapshot snapshot) {
+        this(snapshot, new HeapUsageTable(snapshot.playerUses().size()));
+    }
+
+    /**
+     * Restores a code keeping its per-player data in the given table.
+     */
+    public Code(CodeSnapshot snapshot, UsageTable usage) {
+        this(snapshot.name(), snapshot.globalUses(), snapshot.maxGlobalUses(), snapshot.maxPlayerUses(),
+                snapshot.cooldown(), snapshot.broadcast(), snapshot.rewardType(), snapshot.itemReward(),
+                snapshot.permissionReward(), snapshot.rankReward(), snapshot.bundle(), usage);
+
+        snapshot.playerUses().forEach((msb, lsb, uses) -> usage.setUses(PlayerIds.intern(msb, lsb), uses));
+        snapshot.playerCooldowns().forEach((msb, lsb, lastUse) -> usage.setLastUse(PlayerIds.intern(msb, lsb), lastUse));
     }
 
-    // Konstruktor do ładowania z pliku
-    public Code(String name, int globalUses, int maxGlobalUses, int maxPlayerUses, int cooldown, boolean broadcast,
-                RewardType rewardType, ItemStack itemReward, String permissionReward,
-                String rankReward, Map<UUID, Integer> playerUses, Map<UUID, Long> playerCooldowns) {
+    private Code(String name, int globalUses, int maxGlobalUses, int maxPlayerUses, int cooldown, boolean broadcast,
+                 RewardType rewardType, ItemBlob itemReward, String permissionReward, String rankReward,
+                 List<Reward> bundle, UsageTable usage) {
         this.name = name;
-        this.globalUses = globalUses;
+        this.globalUses = new AtomicInteger(globalUses);
         this.maxGlobalUses = maxGlobalUses;
         this.maxPlayerUses = maxPlayerUses;
         this.cooldown = cooldown;
@@ -85,8 +148,8 @@ public class Code {
         this.itemReward = itemReward;
         this.permissionReward = permissionReward;
         this.rankReward = rankReward;
-        this.playerUses = new HashMap<>(playerUses);
-        this.playerCooldowns = new HashMap<>(playerCooldowns);
+        this.bundle = bundle;
+        this.usage = usage;
     }
 
     public String getName() {
@@ -94,7 +157,7 @@ public class Code {
     }
 
     public int getGlobalUses() {
-        return globalUses;
+        return globalUses.get();
     }
 
     public int getMaxGlobalUses() {
@@ -129,14 +192,14 @@ public class Code {
         if (isGlobalUnlimited()) {
             return -1;
         }
-        return maxGlobalUses - globalUses;
+        return maxGlobalUses - globalUses.get();
     }
 
-    public int getRemainingPlayerUses(UUID playerUuid) {
+    public int getRemainingPlayerUses(int playerId) {
         if (isPlayerUnlimited()) {
             return -1;
         }
-        return maxPlayerUses - getPlayerUseCount(playerUuid);
+        return maxPlayerUses - getPlayerUseCount(playerId);
     }
 
     public RewardType getRewardType() {
@@ -144,7 +207,11 @@ public class Code {
     }
 
     public ItemStack getItemReward() {
-        return itemReward != null ? itemReward.clone() : null;
+        return itemReward != null ? itemReward.item() : null;
+    }
+
+    public ItemBlob getItemBlob() {
+        return itemReward;
     }
 
     public String getPermissionReward() {
@@ -155,60 +222,236 @@ public class Code {
         return rankReward;
     }
 
-    public Map<UUID, Integer> getPlayerUses() {
-        return new HashMap<>(playerUses);
+    /**
+     * Rewards of a {@link RewardType#BUNDLE} code in the order they are given, empty otherwise.
+     */
+    public List<Reward> getBundle() {
+        return bundle;
     }
 
-    public Map<UUID, Long> getPlayerCooldowns() {
-        return new HashMap<>(playerCooldowns);
+    public UuidIntMap getPlayerUses() {
+        return usage.copyUses();
     }
 
-    public int getPlayerUseCount(UUID playerUuid) {
-        return playerUses.getOrDefault(playerUuid, 0);
+    public UuidLongMap getPlayerCooldowns() {
+        return usage.copyLastUses();
+    }
+
+    public int getPlayerUseCount(int playerId) {
+        return usage.getUses(playerId);
     }
 
     public boolean canBeUsed() {
         if (isGlobalUnlimited()) {
             return true;
         }
-        return globalUses < maxGlobalUses;
+        return globalUses.get() < maxGlobalUses;
     }
 
-    public boolean canPlayerUse(UUID playerUuid) {
+    public boolean canPlayerUse(int playerId) {
         if (isPlayerUnlimited()) {
             return true;
         }
-        return getPlayerUseCount(playerUuid) < maxPlayerUses;
+        return getPlayerUseCount(playerId) < maxPlayerUses;
     }
 
-    public int getRemainingCooldown(UUID playerUuid) {
-        if (!hasCooldown()) {
+    public int getRemainingCooldown(int playerId) {
+        return remainingCooldown(cooldown, usage.getLastUse(playerId), System.currentTimeMillis());
+    }
+
+    /**
+     * Whole seconds left of a cooldown of {@code cooldown} seconds after a use at {@code lastUse},
+     * 0 if there was no use.
+     */
+    public static int remainingCooldown(int cooldown, long lastUse, long now) {
+        if (cooldown <= 0 || lastUse == 0) {
             return 0;
         }
 
-        Long lastUse = playerCooldowns.get(playerUuid);
-        if (lastUse == null) {
-            return 0;
+        long elapsedSeconds = (now - lastUse) / 1000;
+        return (int) Math.max(0, cooldown - elapsedSeconds);
+    }
+
+    public boolean isOnCooldown(int playerId) {
+        return getRemainingCooldown(playerId) > 0;
+    }
+
+    /**
+     * Checks the cooldown and both limits and records the use in one atomic step, safe to call
+     * from any thread. The global use is only taken while the player's entry is held, so
+     * concurrent redemptions can exceed neither the global nor the per-player limit.
+     */
+    public UseResult tryUse(int playerId, long timestamp) {
+        Lock lock = useLock.readLock();
+        lock.lock();
+        try {
+            UseResult result = usage.tryUse(playerId, maxPlayerUses, cooldown, timestamp, this::reserveGlobalUse);
+            if (result == UseResult.USED) {
+                reservations.compute(playerId, (id, times) -> {
+                    if (times == null) times = new ArrayList<>(1);
+                    times.add(timestamp);
+                    return times;
+                });
+            }
+            return result;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        long currentTime = System.currentTimeMillis();
-        long elapsedSeconds = (currentTime - lastUse) / 1000;
-        int remaining = (int) (cooldown - elapsedSeconds);
+    private boolean reserveGlobalUse() {
+        // counted before the global use, so whoever sees the use taken also sees it reserved
+        reservedUses.incrementAndGet();
+        while (true) {
+            int current = globalUses.get();
+            if (!isGlobalUnlimited() && current >= maxGlobalUses) {
+                reservedUses.decrementAndGet();
+                return false;
+            }
+            if (globalUses.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
 
-        return Math.max(0, remaining);
+    /**
+     * A successful {@link #tryUse} made at {@code timestamp} was saved and can no longer be
+     * released. From now on {@link #snapshot} counts it.
+     */
+    public void commitUse(int playerId, long timestamp) {
+        Lock lock = useLock.readLock();
+        lock.lock();
+        try {
+            settle(playerId, timestamp);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public boolean isOnCooldown(UUID playerUuid) {
-        return getRemainingCooldown(playerUuid) > 0;
+    /**
+     * Undoes a successful {@link #tryUse} made at {@code timestamp}.
+     */
+    public void releaseUse(int playerId, long timestamp) {
+        Lock lock = useLock.readLock();
+        lock.lock();
+        try {
+            usage.releaseUse(playerId, timestamp);
+            globalUses.decrementAndGet();
+            settle(playerId, timestamp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void settle(int playerId, long timestamp) {
+        reservations.computeIfPresent(playerId, (id, times) -> {
+            times.remove(Long.valueOf(timestamp));
+            return times.isEmpty() ? null : times;
+        });
+        reservedUses.decrementAndGet();
     }
 
-    public void use(UUID playerUuid) {
-        globalUses++;
-        playerUses.merge(playerUuid, 1, Integer::sum);
+    /**
+     * Whether a use taken by {@link #tryUse} may still be released. The code is not archived until
+     * it is settled, so the archive never counts a use that is given back.
+     */
+    public boolean hasReservedUses() {
+        return reservedUses.get() > 0;
+    }
 
-        if (hasCooldown()) {
-            playerCooldowns.put(playerUuid, System.currentTimeMillis());
+    public void incrementUse(int playerId) {
+        globalUses.incrementAndGet();
+        usage.incrementUse(playerId);
+    }
+
+    public void setLastUse(int playerId, long timestamp) {
+        usage.setLastUse(playerId, timestamp);
+    }
+
+    /**
+     * Drops the player's ended cooldown, unless the player used the code again since {@code lastUse}.
+     */
+    public boolean expireCooldown(int playerId, long lastUse) {
+        return usage.clearLastUse(playerId, lastUse);
+    }
+
+    /**
+     * Players whose cooldown has not been dropped yet.
+     */
+    public int countCooldowns() {
+        return usage.countLastUses();
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Marks the code archived or removed and frees its per-player data. Redemptions still in
+     * flight check the status before giving a reward, further {@link #tryUse} calls are rejected.
+     */
+    public void retire(Status status) {
+        this.status = status;
+        usage.release();
+    }
+
+    /**
+     * Frees the per-player data once the code is no longer tracked.
+     */
+    public void release() {
+        usage.release();
+    }
+
+    /**
+     * Copy with committed uses only. A reserved use is journaled once it is committed, so a
+     * snapshot taken before that must not hold it, and one that is released must never be saved.
+     */
+    public CodeSnapshot snapshot() {
+        Lock lock = useLock.writeLock();
+        lock.lock();
+        try {
+            UuidIntMap uses = usage.copyUses();
+            UuidLongMap lastUses = usage.copyLastUses();
+            if (reservations.isEmpty()) {
+                return snapshot(globalUses.get(), uses, lastUses);
+            }
+            return withoutReservations(uses, lastUses);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the reserved uses out of the copied tables. The last use of a player is dropped when
+     * it is a reserved one; the use could only be taken once the cooldown before it had ended.
+     */
+    private CodeSnapshot withoutReservations(UuidIntMap uses, UuidLongMap lastUses) {
+        UuidIntMap reserved = new UuidIntMap(reservations.size());
+        Map<UUID, List<Long>> reservedTimes = new HashMap<>();
+        int reservedTotal = 0;
+        for (Map.Entry<Integer, List<Long>> entry : reservations.entrySet()) {
+            UUID player = PlayerIds.uuid(entry.getKey());
+            reserved.put(player, entry.getValue().size());
+            reservedTimes.put(player, entry.getValue());
+            reservedTotal += entry.getValue().size();
         }
+
+        UuidIntMap committedUses = new UuidIntMap(uses.size());
+        uses.forEach((msb, lsb, count) -> {
+            int committed = count - reserved.get(msb, lsb);
+            if (committed > 0) committedUses.put(msb, lsb, committed);
+        });
+        UuidLongMap committedLastUses = new UuidLongMap(lastUses.size());
+        lastUses.forEach((msb, lsb, lastUse) -> {
+            if (reserved.get(msb, lsb) > 0 && reservedTimes.get(new UUID(msb, lsb)).contains(lastUse)) return;
+            committedLastUses.put(msb, lsb, lastUse);
+        });
+        return snapshot(globalUses.get() - reservedTotal, committedUses, committedLastUses);
+    }
+
+    private CodeSnapshot snapshot(int committedGlobalUses, UuidIntMap uses, UuidLongMap lastUses) {
+        return new CodeSnapshot(name, committedGlobalUses, maxGlobalUses, maxPlayerUses, cooldown, broadcast, rewardType,
+                itemReward, permissionReward, rankReward, bundle, uses, lastUses);
     }
 
     public String getRewardDisplay() {
@@ -217,9 +460,17 @@ public class Code {
                 return "Permisja: " + permissionReward;
             case RANK:
                 return "Ranga: " + rankReward;
+            case BUNDLE: {
+                List<String> parts = new ArrayList<>(bundle.size());
+                for (Reward reward : bundle) {
+                    parts.add(reward.display());
+                }
+                return String.join(", ", parts);
+            }
             case ITEM:
                 if (itemReward != null) {
-                    return "Przedmiot: " + itemReward.getType().name() + " x" + itemReward.getAmount();
+                    ItemStack item = itemReward.item();
+                    return "Przedmiot: " + item.getType().name() + " x" + item.getAmount();
                 }
             default:
                 return "Nieznana nagroda";
@@ -228,9 +479,9 @@ public class Code {
 
     public String getGlobalUsesDisplay() {
         if (isGlobalUnlimited()) {
-            return globalUses + "/∞";
+            return globalUses.get() + "/∞";
         }
-        return globalUses + "/" + maxGlobalUses;
+        return globalUses.get() + "/" + maxGlobalUses;
     }
 
     public String getPlayerUsesDisplay() {
@@ -0,0 +1,37 @@
+package dev.nxms.codes.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable copy of a {@link Code}, safe to hand over to another thread. The player maps
+ * must not be changed once the snapshot is created.
+ */
+public record CodeSnapshot(
+        String name,
+        int globalUses,
+        int maxGlobalUses,
+        int maxPlayerUses,
+        int cooldown,
+        boolean broadcast,
+        Code.RewardType rewardType,
+        ItemBlob itemReward,
+        String permissionReward,
+        String rankReward,
+        List<Reward> bundle,
+        UuidIntMap playerUses,
+        UuidLongMap playerCooldowns
+) {
+
+    /**
+     * Every item the code gives, for writers that store items apart from the codes.
+     */
+    public List<ItemBlob> items() {
+        List<ItemBlob> items = new ArrayList<>();
+        if (itemReward != null) items.add(itemReward);
+        for (Reward reward : bundle) {
+            if (reward.item() != null) items.add(reward.item());
+        }
+        return items;
+    }
+}
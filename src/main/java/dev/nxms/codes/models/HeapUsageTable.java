@@ -0,0 +1,93 @@
+package dev.nxms.codes.models;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Default usage table on the Java heap, a primitive open-addressing table of player IDs guarded
+ * by the table's monitor. Contention is per code, a redemption holds the lock only for a few array accesses.
+ */
+public class HeapUsageTable implements UsageTable {
+
+    private final PlayerUsageMap players;
+    private boolean released;
+
+    public HeapUsageTable() {
+        this(0);
+    }
+
+    public HeapUsageTable(int expectedPlayers) {
+        this.players = new PlayerUsageMap(expectedPlayers);
+    }
+
+    @Override
+    public synchronized int getUses(int player) {
+        return players.getUses(player);
+    }
+
+    @Override
+    public synchronized long getLastUse(int player) {
+        return players.getLastUse(player);
+    }
+
+    @Override
+    public synchronized void setUses(int player, int uses) {
+        players.setUses(player, uses);
+    }
+
+    @Override
+    public synchronized void incrementUse(int player) {
+        players.incrementUse(player);
+    }
+
+    @Override
+    public synchronized void setLastUse(int player, long timestamp) {
+        players.setLastUse(player, timestamp);
+    }
+
+    @Override
+    public synchronized boolean clearLastUse(int player, long lastUse) {
+        return players.clearLastUse(player, lastUse);
+    }
+
+    @Override
+    public synchronized int countLastUses() {
+        return players.countLastUses();
+    }
+
+    @Override
+    public synchronized Code.UseResult tryUse(int player, int maxUses, int cooldown, long timestamp,
+                                              BooleanSupplier reserveGlobal) {
+        // released once the code was archived or removed
+        if (released) return Code.UseResult.GLOBAL_LIMIT;
+        if (Code.remainingCooldown(cooldown, players.getLastUse(player), timestamp) > 0) return Code.UseResult.COOLDOWN;
+        if (maxUses != Code.UNLIMITED && players.getUses(player) >= maxUses) return Code.UseResult.PLAYER_LIMIT;
+        if (!reserveGlobal.getAsBoolean()) return Code.UseResult.GLOBAL_LIMIT;
+
+        players.incrementUse(player);
+        if (cooldown > 0) players.setLastUse(player, timestamp);
+        return Code.UseResult.USED;
+    }
+
+    @Override
+    public synchronized void releaseUse(int player, long timestamp) {
+        int uses = players.getUses(player);
+        if (uses > 0) players.setUses(player, uses - 1);
+        players.clearLastUse(player, timestamp);
+    }
+
+    @Override
+    public synchronized UuidIntMap copyUses() {
+        return players.copyUses();
+    }
+
+    @Override
+    public synchronized UuidLongMap copyLastUses() {
+        return players.copyLastUses();
+    }
+
+    @Override
+    public synchronized void release() {
+        players.clear();
+        released = true;
+    }
+}
@@ -0,0 +1,69 @@
+package dev.nxms.codes.models;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * An item reward in its {@link ItemStack#serializeAsBytes()} form. The bytes are produced once
+ * when the code is created and written as-is by every save; the ItemStack is decoded on first
+ * use and cached. The hash of the bytes identifies equal items, so snapshot files store them once.
+ */
+public final class ItemBlob {
+
+    private final byte[] data;
+    private final String hash;
+    private volatile ItemStack item;
+
+    private ItemBlob(byte[] data, ItemStack item) {
+        this.data = data;
+        this.hash = hash(data);
+        this.item = item;
+    }
+
+    public static ItemBlob of(ItemStack item) {
+        ItemStack copy = item.clone();
+        return new ItemBlob(copy.serializeAsBytes(), copy);
+    }
+
+    /**
+     * Wraps already serialized bytes, the array must not be modified afterwards.
+     */
+    public static ItemBlob of(byte[] data) {
+        return new ItemBlob(data, null);
+    }
+
+    public static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public String hash() {
+        return hash;
+    }
+
+    /**
+     * The serialized item, must not be modified.
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * Decoded copy of the item.
+     */
+    public ItemStack item() {
+        ItemStack decoded = item;
+        if (decoded == null) {
+            decoded = ItemStack.deserializeBytes(data);
+            item = decoded;
+        }
+        return decoded.clone();
+    }
+}
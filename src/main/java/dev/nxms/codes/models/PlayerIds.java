@@ -0,0 +1,72 @@
+package dev.nxms.codes.models;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Dictionary of dense int IDs for player UUIDs, shared by all codes. IDs start at 1 and are
+ * never reused, 0 stands for a player without one. Usage tables are keyed by these IDs, so a
+ * player's UUID is stored once instead of once per code.
+ * <p>
+ * Interning is synchronized, turning an ID back into a UUID takes no lock: the reverse array
+ * only grows and its entries never change once written.
+ */
+public final class PlayerIds {
+
+    private static final UuidIntMap ids = new UuidIntMap();
+    // most and least significant bits of the player with ID i at 2i and 2i + 1
+    private static volatile long[] uuids = new long[128];
+    private static int count;
+
+    private PlayerIds() {
+    }
+
+    public static int intern(UUID player) {
+        return intern(player.getMostSignificantBits(), player.getLeastSignificantBits());
+    }
+
+    /**
+     * Returns the player's ID, assigning the next free one if the player has none.
+     */
+    public static synchronized int intern(long msb, long lsb) {
+        int id = ids.get(msb, lsb);
+        if (id != 0) return id;
+
+        id = ++count;
+        long[] current = uuids;
+        if (id * 2 + 1 >= current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[id * 2] = msb;
+        current[id * 2 + 1] = lsb;
+        uuids = current;
+        ids.put(msb, lsb, id);
+        return id;
+    }
+
+    /**
+     * @return the player's ID, or 0 if none was assigned yet
+     */
+    public static synchronized int find(UUID player) {
+        return ids.get(player);
+    }
+
+    public static long msb(int id) {
+        return uuids[id * 2];
+    }
+
+    public static long lsb(int id) {
+        return uuids[id * 2 + 1];
+    }
+
+    public static UUID uuid(int id) {
+        return new UUID(msb(id), lsb(id));
+    }
+
+    /**
+     * Highest assigned ID.
+     */
+    public static synchronized int count() {
+        return count;
+    }
+}
@@ -0,0 +1,157 @@
+package dev.nxms.codes.models;
+
+import java.util.Arrays;
+
+/**
+ * Use count and last use per player ID in one open-addressing table: 16 bytes of array space
+ * per slot, a free slot has ID 0. Linear probing, doubling at 3/4 load. Missing players read as 0.
+ * Not thread-safe, {@link HeapUsageTable} guards it.
+ */
+final class PlayerUsageMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] players;
+    private int[] uses;
+    private long[] lastUses;
+    private int size;
+
+    PlayerUsageMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        players = new int[capacity];
+        uses = new int[capacity];
+        lastUses = new long[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getUses(int player) {
+        int slot = find(player);
+        return slot >= 0 ? uses[slot] : 0;
+    }
+
+    long getLastUse(int player) {
+        int slot = find(player);
+        return slot >= 0 ? lastUses[slot] : 0;
+    }
+
+    void setUses(int player, int value) {
+        // insert may grow the arrays, so the slot is taken before they are read
+        int slot = insert(player);
+        uses[slot] = value;
+    }
+
+    void setLastUse(int player, long value) {
+        int slot = insert(player);
+        lastUses[slot] = value;
+    }
+
+    boolean clearLastUse(int player, long lastUse) {
+        int slot = find(player);
+        if (slot < 0 || lastUses[slot] != lastUse) return false;
+        lastUses[slot] = 0;
+        return true;
+    }
+
+    int countLastUses() {
+        int count = 0;
+        for (int slot = 0; slot < players.length; slot++) {
+            if (players[slot] != 0 && lastUses[slot] != 0) count++;
+        }
+        return count;
+    }
+
+    void incrementUse(int player) {
+        int slot = insert(player);
+        uses[slot]++;
+    }
+
+    /**
+     * Players with at least one use, by UUID.
+     */
+    UuidIntMap copyUses() {
+        UuidIntMap copy = new UuidIntMap(size);
+        for (int slot = 0; slot < players.length; slot++) {
+            int player = players[slot];
+            if (player != 0 && uses[slot] != 0) copy.put(PlayerIds.msb(player), PlayerIds.lsb(player), uses[slot]);
+        }
+        return copy;
+    }
+
+    /**
+     * Players with a recorded last use, by UUID.
+     */
+    UuidLongMap copyLastUses() {
+        UuidLongMap copy = new UuidLongMap(size);
+        for (int slot = 0; slot < players.length; slot++) {
+            int player = players[slot];
+            if (player != 0 && lastUses[slot] != 0) copy.put(PlayerIds.msb(player), PlayerIds.lsb(player), lastUses[slot]);
+        }
+        return copy;
+    }
+
+    void clear() {
+        Arrays.fill(players, 0);
+        Arrays.fill(uses, 0);
+        Arrays.fill(lastUses, 0);
+        size = 0;
+    }
+
+    private static int hash(int player) {
+        // IDs are sequential, spread them over the table
+        int h = player * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return slot of the player, or {@code -(slot + 1)} of the free slot it belongs in
+     */
+    private int find(int player) {
+        int mask = players.length - 1;
+        int slot = hash(player) & mask;
+        while (players[slot] != 0) {
+            if (players[slot] == player) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -(slot + 1);
+    }
+
+    private int insert(int player) {
+        int slot = find(player);
+        if (slot >= 0) return slot;
+
+        if ((size + 1) * 4L > players.length * 3L) {
+            grow();
+            slot = find(player);
+        }
+        slot = -slot - 1;
+        players[slot] = player;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldPlayers = players;
+        int[] oldUses = uses;
+        long[] oldLastUses = lastUses;
+
+        allocate(oldPlayers.length * 2);
+        for (int i = 0; i < oldPlayers.length; i++) {
+            if (oldPlayers[i] == 0) continue;
+
+            int slot = -find(oldPlayers[i]) - 1;
+            players[slot] = oldPlayers[i];
+            uses[slot] = oldUses[i];
+            lastUses[slot] = oldLastUses[i];
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package dev.nxms.codes.models;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One reward of a {@link Code.RewardType#BUNDLE bundle} code: an item, a permission or a rank.
+ * <p>
+ * A bundle is written as one line of tokens separated by spaces, {@code item:<base64>},
+ * {@code permission:<node>} and {@code rank:<group>}, in the order they are given. Permission
+ * nodes and group names come from command arguments, so they never contain a space.
+ */
+public record Reward(Code.RewardType type, ItemBlob item, String value) {
+
+    public static Reward item(ItemBlob item) {
+        return new Reward(Code.RewardType.ITEM, item, null);
+    }
+
+    public static Reward permission(String permission) {
+        return new Reward(Code.RewardType.PERMISSION, null, permission);
+    }
+
+    public static Reward rank(String rank) {
+        return new Reward(Code.RewardType.RANK, null, rank);
+    }
+
+    public String token() {
+        return switch (type) {
+            case ITEM -> "item:" + Base64.getEncoder().encodeToString(item.data());
+            case PERMISSION -> "permission:" + value;
+            case RANK -> "rank:" + value;
+            case BUNDLE -> throw new IllegalStateException("A bundle cannot contain a bundle");
+        };
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token is not one written by {@link #token()}
+     */
+    public static Reward parse(String token) {
+        int colon = token.indexOf(':');
+        if (colon <= 0 || colon == token.length() - 1) {
+            throw new IllegalArgumentException("Invalid reward: " + token);
+        }
+
+        String value = token.substring(colon + 1);
+        return switch (token.substring(0, colon).toLowerCase(Locale.ROOT)) {
+            case "item" -> item(ItemBlob.of(Base64.getDecoder().decode(value)));
+            case "permission" -> permission(value);
+            case "rank" -> rank(value);
+            default -> throw new IllegalArgumentException("Invalid reward: " + token);
+        };
+    }
+
+    public static String encode(List<Reward> rewards) {
+        List<String> tokens = new ArrayList<>(rewards.size());
+        for (Reward reward : rewards) {
+            tokens.add(reward.token());
+        }
+        return String.join(" ", tokens);
+    }
+
+    public static List<Reward> decode(String line) {
+        List<Reward> rewards = new ArrayList<>();
+        for (String token : line.trim().split(" +")) {
+            if (!token.isEmpty()) rewards.add(parse(token));
+        }
+        return List.copyOf(rewards);
+    }
+
+    public String display() {
+        return switch (type) {
+            case ITEM -> {
+                ItemStack stack = item.item();
+                yield "Przedmiot: " + stack.getType().name() + " x" + stack.getAmount();
+            }
+            case PERMISSION -> "Permisja: " + value;
+            case RANK -> "Ranga: " + value;
+            case BUNDLE -> "Nieznana nagroda";
+        };
+    }
+}
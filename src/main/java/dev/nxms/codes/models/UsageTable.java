@@ -0,0 +1,67 @@
+package dev.nxms.codes.models;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Per-player use counts and last-use timestamps of a single code, keyed by {@link PlayerIds}.
+ * Implementations are thread-safe, redemptions reach them from outside the main thread.
+ */
+public interface UsageTable {
+
+    int getUses(int player);
+
+    /**
+     * @return last use in epoch millis, or 0 if the player has none recorded
+     */
+    long getLastUse(int player);
+
+    void setUses(int player, int uses);
+
+    void incrementUse(int player);
+
+    void setLastUse(int player, long timestamp);
+
+    /**
+     * Forgets the player's last use if it is still {@code lastUse}, once the cooldown is over.
+     *
+     * @return whether it was cleared
+     */
+    boolean clearLastUse(int player, long lastUse);
+
+    /**
+     * Number of players with a recorded last use.
+     */
+    int countLastUses();
+
+    /**
+     * Records a use if the player is off cooldown and below {@code maxUses} ({@link Code#UNLIMITED}
+     * for no limit) and {@code reserveGlobal} then succeeds. Atomic for the player: no other
+     * change to the player's entry can happen between the checks and the update.
+     *
+     * @param cooldown  cooldown in seconds, the last use is only recorded if it is positive
+     * @param timestamp time of the use in epoch millis
+     */
+    Code.UseResult tryUse(int player, int maxUses, int cooldown, long timestamp, BooleanSupplier reserveGlobal);
+
+    /**
+     * Takes back a use {@link #tryUse} recorded at {@code timestamp}, whose reward could not be given.
+     * The last use is only cleared if no later use replaced it.
+     */
+    void releaseUse(int player, long timestamp);
+
+    /**
+     * Players with at least one use.
+     */
+    UuidIntMap copyUses();
+
+    /**
+     * Players with a recorded last use.
+     */
+    UuidLongMap copyLastUses();
+
+    /**
+     * Frees whatever backs the table. Afterwards it reads as empty and {@link #tryUse} answers
+     * {@link Code.UseResult#GLOBAL_LIMIT}.
+     */
+    void release();
+}
@@ -0,0 +1,138 @@
+package dev.nxms.codes.models;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Open-addressing key table shared by {@link UuidIntMap} and {@link UuidLongMap}. A key is stored
+ * as the two longs of the UUID in one array, subclasses keep the values in primitive arrays indexed
+ * by the same slot, holding zeros in free slots. Linear probing, doubling at 3/4 load; entries are
+ * never removed one by one, only all at once with {@link #clear()}. Not thread-safe.
+ */
+abstract class UuidHashTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // most and least significant bits of the key in slot i at 2i and 2i + 1
+    private long[] keys;
+    private boolean[] occupied;
+    private int size;
+
+    UuidHashTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        this.keys = new long[capacity * 2];
+        this.occupied = new boolean[capacity];
+    }
+
+    UuidHashTable(UuidHashTable other) {
+        this.keys = other.keys.clone();
+        this.occupied = other.occupied.clone();
+        this.size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(UUID key) {
+        return find(key.getMostSignificantBits(), key.getLeastSignificantBits()) >= 0;
+    }
+
+    public void clear() {
+        Arrays.fill(occupied, false);
+        clearValues();
+        size = 0;
+    }
+
+    final int capacity() {
+        return occupied.length;
+    }
+
+    final boolean isOccupied(int slot) {
+        return occupied[slot];
+    }
+
+    final long msb(int slot) {
+        return keys[slot * 2];
+    }
+
+    final long lsb(int slot) {
+        return keys[slot * 2 + 1];
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = msb ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * @return slot of the key, or {@code -(slot + 1)} of the free slot it belongs in
+     */
+    final int find(long msb, long lsb) {
+        int mask = occupied.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (occupied[slot]) {
+            if (keys[slot * 2] == msb && keys[slot * 2 + 1] == lsb) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -(slot + 1);
+    }
+
+    /**
+     * Returns the slot of the key, claiming a free one if needed. A claimed slot has zero values.
+     */
+    final int insert(long msb, long lsb) {
+        int slot = find(msb, lsb);
+        if (slot >= 0) return slot;
+
+        if ((size + 1) * 4L > occupied.length * 3L) {
+            grow();
+            slot = find(msb, lsb);
+        }
+        slot = -slot - 1;
+        keys[slot * 2] = msb;
+        keys[slot * 2 + 1] = lsb;
+        occupied[slot] = true;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        boolean[] oldOccupied = occupied;
+        int[] moved = new int[oldOccupied.length];
+
+        keys = new long[oldKeys.length * 2];
+        occupied = new boolean[oldOccupied.length * 2];
+        for (int i = 0; i < oldOccupied.length; i++) {
+            if (!oldOccupied[i]) {
+                moved[i] = -1;
+                continue;
+            }
+            int slot = -find(oldKeys[i * 2], oldKeys[i * 2 + 1]) - 1;
+            keys[slot * 2] = oldKeys[i * 2];
+            keys[slot * 2 + 1] = oldKeys[i * 2 + 1];
+            occupied[slot] = true;
+            moved[i] = slot;
+        }
+        moveValues(moved, occupied.length);
+    }
+
+    /**
+     * Called after the table grew: the value of old slot {@code i} belongs in {@code moved[i]},
+     * -1 for slots that were free.
+     */
+    abstract void moveValues(int[] moved, int newCapacity);
+
+    abstract void clearValues();
+}
@@ -0,0 +1,100 @@
+package dev.nxms.codes.models;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Map from player UUIDs to ints without boxing: an entry takes 20 bytes of array space
+ * instead of a node, a boxed value and a UUID object. Lookups and updates allocate nothing.
+ * Missing keys read as 0. Not thread-safe.
+ */
+public final class UuidIntMap extends UuidHashTable {
+
+    /**
+     * @param <E> lets writers pass on their checked exceptions
+     */
+    public interface Visitor<E extends Exception> {
+        void accept(long msb, long lsb, int value) throws E;
+    }
+
+    private int[] values;
+
+    public UuidIntMap() {
+        this(0);
+    }
+
+    public UuidIntMap(int expectedSize) {
+        super(expectedSize);
+        this.values = new int[capacity()];
+    }
+
+    private UuidIntMap(UuidIntMap other) {
+        super(other);
+        this.values = other.values.clone();
+    }
+
+    public int get(UUID key) {
+        return get(key.getMostSignificantBits(), key.getLeastSignificantBits());
+    }
+
+    public int get(long msb, long lsb) {
+        int slot = find(msb, lsb);
+        return slot >= 0 ? values[slot] : 0;
+    }
+
+    public void put(UUID key, int value) {
+        put(key.getMostSignificantBits(), key.getLeastSignificantBits(), value);
+    }
+
+    public void put(long msb, long lsb, int value) {
+        // insert may grow the arrays, so the slot is taken before values is read
+        int slot = insert(msb, lsb);
+        values[slot] = value;
+    }
+
+    /**
+     * @return the new value
+     */
+    public int addTo(UUID key, int delta) {
+        int slot = insert(key.getMostSignificantBits(), key.getLeastSignificantBits());
+        return values[slot] += delta;
+    }
+
+    public <E extends Exception> void forEach(Visitor<E> visitor) throws E {
+        for (int slot = 0; slot < capacity(); slot++) {
+            if (isOccupied(slot)) visitor.accept(msb(slot), lsb(slot), values[slot]);
+        }
+    }
+
+    /**
+     * Independent copy, made of a few array copies.
+     */
+    public UuidIntMap copy() {
+        return new UuidIntMap(this);
+    }
+
+    /**
+     * Boxed copy for code paths that show a handful of entries.
+     */
+    public Map<UUID, Integer> toMap() {
+        Map<UUID, Integer> map = new HashMap<>(Math.max(16, size() * 4 / 3 + 1));
+        forEach((msb, lsb, value) -> map.put(new UUID(msb, lsb), value));
+        return map;
+    }
+
+    @Override
+    void moveValues(int[] moved, int newCapacity) {
+        int[] newValues = new int[newCapacity];
+        for (int i = 0; i < moved.length; i++) {
+            if (moved[i] >= 0) newValues[moved[i]] = values[i];
+        }
+        values = newValues;
+    }
+
+    @Override
+    void clearValues() {
+        Arrays.fill(values, 0);
+    }
+}
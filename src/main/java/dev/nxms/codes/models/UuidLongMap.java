@@ -0,0 +1,120 @@
+package dev.nxms.codes.models;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Map from player UUIDs to longs without boxing, see {@link UuidIntMap}. Missing keys read as 0.
+ * Not thread-safe.
+ */
+public final class UuidLongMap extends UuidHashTable {
+
+    /**
+     * @param <E> lets writers pass on their checked exceptions
+     */
+    public interface Visitor<E extends Exception> {
+        void accept(long msb, long lsb, long value) throws E;
+    }
+
+    private long[] values;
+
+    public UuidLongMap() {
+        this(0);
+    }
+
+    public UuidLongMap(int expectedSize) {
+        super(expectedSize);
+        this.values = new long[capacity()];
+    }
+
+    private UuidLongMap(UuidLongMap other) {
+        super(other);
+        this.values = other.values.clone();
+    }
+
+    public long get(UUID key) {
+        return get(key.getMostSignificantBits(), key.getLeastSignificantBits());
+    }
+
+    public long get(long msb, long lsb) {
+        int slot = find(msb, lsb);
+        return slot >= 0 ? values[slot] : 0;
+    }
+
+    public void put(UUID key, long value) {
+        put(key.getMostSignificantBits(), key.getLeastSignificantBits(), value);
+    }
+
+    public void put(long msb, long lsb, long value) {
+        // insert may grow the arrays, so the slot is taken before values is read
+        int slot = insert(msb, lsb);
+        values[slot] = value;
+    }
+
+    public <E extends Exception> void forEach(Visitor<E> visitor) throws E {
+        for (int slot = 0; slot < capacity(); slot++) {
+            if (isOccupied(slot)) visitor.accept(msb(slot), lsb(slot), values[slot]);
+        }
+    }
+
+    /**
+     * Visits the entries in ascending order of their values, e.g. for delta encoding timestamps.
+     */
+    public <E extends Exception> void forEachSortedByValue(Visitor<E> visitor) throws E {
+        int[] slots = new int[size()];
+        int count = 0;
+        for (int slot = 0; slot < capacity(); slot++) {
+            if (isOccupied(slot)) slots[count++] = slot;
+        }
+
+        // heapsort of the slots by value, no boxing
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(slots, i, count);
+        }
+        for (int end = count - 1; end > 0; end--) {
+            int top = slots[0];
+            slots[0] = slots[end];
+            slots[end] = top;
+            siftDown(slots, 0, end);
+        }
+
+        for (int slot : slots) {
+            visitor.accept(msb(slot), lsb(slot), values[slot]);
+        }
+    }
+
+    private void siftDown(int[] slots, int index, int count) {
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= count) return;
+            if (child + 1 < count && values[slots[child + 1]] > values[slots[child]]) child++;
+            if (values[slots[index]] >= values[slots[child]]) return;
+
+            int swap = slots[index];
+            slots[index] = slots[child];
+            slots[child] = swap;
+            index = child;
+        }
+    }
+
+    /**
+     * Independent copy, made of a few array copies.
+     */
+    public UuidLongMap copy() {
+        return new UuidLongMap(this);
+    }
+
+    @Override
+    void moveValues(int[] moved, int newCapacity) {
+        long[] newValues = new long[newCapacity];
+        for (int i = 0; i < moved.length; i++) {
+            if (moved[i] >= 0) newValues[moved[i]] = values[i];
+        }
+        values = newValues;
+    }
+
+    @Override
+    void clearValues() {
+        Arrays.fill(values, 0);
+    }
+}
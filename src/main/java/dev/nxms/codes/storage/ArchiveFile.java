@@ -0,0 +1,406 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.models.UuidIntMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append-only file of used codes. Each record is framed as body length (int), CRC32 of the body (int)
+ * and the body: record type, code name and for archived codes the summary shown by /code list used,
+ * followed by the deflated per-player uses. Only an index of record positions is kept in memory,
+ * player data is read back on demand.
+ * <p>
+ * Overwriting a used code appends a removal record; clearing the list truncates the file.
+ * Superseded records are dropped when the file is opened and they outnumber the live ones.
+ * Used from the global region thread only, except for {@link Record} which reads player data on any thread.
+ */
+public class ArchiveFile {
+
+    private static final byte ARCHIVED = 1;
+    private static final byte REMOVED = 2;
+
+    private static final int FRAME_HEADER = 8;
+
+    private record Location(long offset, int length) { }
+
+    private final File file;
+    private final Map<String, Location> index = new LinkedHashMap<>();
+
+    private FileChannel channel;
+    private int deadRecords;
+
+    public ArchiveFile(File file) {
+        this.file = file;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Opens the file and returns the summaries of all used codes, without player data, in archive order.
+     * A record torn by a crash at the end of the file is cut off.
+     */
+    public List<CodeManager.UsedCodeInfo> open() throws IOException {
+        close();
+        index.clear();
+        deadRecords = 0;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        Map<String, CodeManager.UsedCodeInfo> summaries = new LinkedHashMap<>();
+        long offset = 0;
+        long size = channel.size();
+        while (offset < size) {
+            byte[] body = readRecord(channel, offset);
+            if (body == null) {
+                channel.truncate(offset);
+                break;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            byte type = in.readByte();
+            String name = BinaryIO.readString(in);
+            String key = key(name);
+
+            if (index.containsKey(key)) deadRecords++;
+            if (type == ARCHIVED) {
+                summaries.remove(key);
+                summaries.put(key, readSummary(name, in));
+                index.remove(key);
+                index.put(key, new Location(offset, body.length));
+            } else {
+                summaries.remove(key);
+                index.remove(key);
+                deadRecords++;
+            }
+            offset += FRAME_HEADER + body.length;
+        }
+
+        if (deadRecords > index.size()) compact();
+        return new ArrayList<>(summaries.values());
+    }
+
+    /**
+     * @return the body of the record at the offset, or null if it is incomplete or damaged
+     */
+    private static byte[] readRecord(FileChannel source, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+        if (readFully(source, header, offset) < FRAME_HEADER) return null;
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (length <= 0 || offset + FRAME_HEADER + length > source.size()) return null;
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(source, body, offset + FRAME_HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        return (int) crc.getValue() == checksum ? body.array() : null;
+    }
+
+    private static int readFully(FileChannel source, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer, position + total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static CodeManager.UsedCodeInfo readSummary(String name, DataInputStream in) throws IOException {
+        String rewardDisplay = BinaryIO.readNullableString(in);
+        int totalUses = BinaryIO.readVarInt(in);
+        int maxGlobalUses = BinaryIO.readVarInt(in);
+        int maxPlayerUses = BinaryIO.readVarInt(in);
+        return new CodeManager.UsedCodeInfo(name, rewardDisplay, totalUses, maxGlobalUses, maxPlayerUses, null);
+    }
+
+    public boolean contains(String name) {
+        return index.containsKey(key(name));
+    }
+
+    public void append(CodeManager.UsedCodeInfo info) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ARCHIVED);
+        BinaryIO.writeString(out, info.name());
+        BinaryIO.writeNullableString(out, info.rewardDisplay());
+        BinaryIO.writeVarInt(out, info.totalUses());
+        BinaryIO.writeVarInt(out, info.maxGlobalUses());
+        BinaryIO.writeVarInt(out, info.maxPlayerUses());
+
+        UuidIntMap playerUses = info.playerUses() != null ? info.playerUses() : new UuidIntMap();
+        BinaryIO.writeVarInt(out, playerUses.size());
+        out.flush();
+
+        DeflaterOutputStream deflater = new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED));
+        DataOutputStream players = new DataOutputStream(deflater);
+        playerUses.forEach((msb, lsb, uses) -> {
+            BinaryIO.writeUuid(players, msb, lsb);
+            BinaryIO.writeVarInt(players, uses);
+        });
+        players.flush();
+        deflater.finish();
+
+        String key = key(info.name());
+        if (index.containsKey(key)) deadRecords++;
+        long offset = write(bytes.toByteArray());
+        index.remove(key);
+        index.put(key, new Location(offset, bytes.size()));
+    }
+
+    public void remove(String name) throws IOException {
+        String key = key(name);
+        if (!index.containsKey(key)) return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVED);
+        BinaryIO.writeString(out, name);
+        out.flush();
+
+        write(bytes.toByteArray());
+        index.remove(key);
+        deadRecords += 2;
+    }
+
+    public void clear() throws IOException {
+        requireOpen();
+        channel.truncate(0);
+        index.clear();
+        deadRecords = 0;
+    }
+
+    private long write(byte[] body) throws IOException {
+        requireOpen();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + body.length);
+        frame.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+
+        long offset = channel.size();
+        long position = offset;
+        while (frame.hasRemaining()) {
+            position += channel.write(frame, position);
+        }
+        return offset;
+    }
+
+    private void requireOpen() throws IOException {
+        if (channel == null) throw new IOException(file.getName() + " is not open");
+    }
+
+    // ----------------------------
+    // Player data
+    // ----------------------------
+
+    /**
+     * Player count, stored uncompressed, and a stream over the deflated entries that follow it.
+     */
+    private record Players(int count, DataInputStream entries) { }
+
+    private record Contents(CodeManager.UsedCodeInfo summary, Players players) { }
+
+    private static Players readPlayers(DataInputStream in) throws IOException {
+        int count = BinaryIO.readVarInt(in);
+        return new Players(count, new DataInputStream(new InflaterInputStream(in)));
+    }
+
+    private static UuidIntMap readPlayerUses(Players players) throws IOException {
+        DataInputStream in = players.entries();
+        UuidIntMap playerUses = new UuidIntMap(players.count());
+        for (int i = 0; i < players.count(); i++) {
+            long msb = in.readLong();
+            long lsb = in.readLong();
+            playerUses.put(msb, lsb, BinaryIO.readVarInt(in));
+        }
+        return playerUses;
+    }
+
+    /**
+     * The record of a used code, found on the global region thread. A written record never changes,
+     * so its player data can then be read on any thread; if the file is cleared or closed meanwhile
+     * the read fails with an {@link IOException}.
+     */
+    public final class Record {
+
+        private final String key;
+        private final FileChannel source;
+        private final Location location;
+
+        private Record(String key, FileChannel source, Location location) {
+            this.key = key;
+            this.source = source;
+            this.location = location;
+        }
+
+        private Contents open() throws IOException {
+            byte[] body = readRecord(source, location.offset());
+            if (body == null) throw new IOException("Damaged record of " + key + " in " + file.getName());
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            in.readByte();
+            String name = BinaryIO.readString(in);
+            // after a clear another record may start at the same offset
+            if (!key(name).equals(key)) throw new IOException("Record of " + key + " in " + file.getName() + " is gone");
+            CodeManager.UsedCodeInfo summary = readSummary(name, in);
+            return new Contents(summary, readPlayers(in));
+        }
+
+        /**
+         * The used code with its per-player uses.
+         */
+        public CodeManager.UsedCodeInfo read() throws IOException {
+            Contents contents = open();
+            CodeManager.UsedCodeInfo summary = contents.summary();
+            return new CodeManager.UsedCodeInfo(summary.name(), summary.rewardDisplay(), summary.totalUses(),
+                    summary.maxGlobalUses(), summary.maxPlayerUses(), ArchiveFile.readPlayerUses(contents.players()));
+        }
+
+        public UuidIntMap readPlayerUses() throws IOException {
+            return ArchiveFile.readPlayerUses(open().players());
+        }
+
+        /**
+         * Scans the record for one player without building a map.
+         */
+        public int readPlayerUses(UUID player) throws IOException {
+            Players players = open().players();
+            DataInputStream in = players.entries();
+            long msb = player.getMostSignificantBits();
+            long lsb = player.getLeastSignificantBits();
+            for (int i = 0; i < players.count(); i++) {
+                long entryMsb = in.readLong();
+                long entryLsb = in.readLong();
+                int uses = BinaryIO.readVarInt(in);
+                if (entryMsb == msb && entryLsb == lsb) return uses;
+            }
+            return 0;
+        }
+
+        public int countPlayers() throws IOException {
+            return open().players().count();
+        }
+    }
+
+    /**
+     * @return the record of a used code, or null if it is not archived here
+     */
+    public Record find(String name) throws IOException {
+        Location location = index.get(key(name));
+        if (location == null) return null;
+        requireOpen();
+        return new Record(key(name), channel, location);
+    }
+
+    /**
+     * Records of all used codes in archive order, e.g. to read them all for a backup.
+     */
+    public List<Record> records() throws IOException {
+        requireOpen();
+        List<Record> records = new ArrayList<>(index.size());
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            records.add(new Record(entry.getKey(), channel, entry.getValue()));
+        }
+        return records;
+    }
+
+    /**
+     * @return per-player uses of a used code, or null if it is not archived here
+     */
+    public UuidIntMap readPlayerUses(String name) throws IOException {
+        Record record = find(name);
+        return record != null ? record.readPlayerUses() : null;
+    }
+
+    /**
+     * Full copies of all used codes, for migrations. Opens the file for the call if needed.
+     */
+    public List<CodeManager.UsedCodeInfo> readAll() throws IOException {
+        boolean wasOpen = channel != null;
+        if (!wasOpen && !file.exists()) return List.of();
+
+        List<CodeManager.UsedCodeInfo> summaries = open();
+        try {
+            List<CodeManager.UsedCodeInfo> result = new ArrayList<>(summaries.size());
+            for (CodeManager.UsedCodeInfo summary : summaries) {
+                result.add(new CodeManager.UsedCodeInfo(summary.name(), summary.rewardDisplay(), summary.totalUses(),
+                        summary.maxGlobalUses(), summary.maxPlayerUses(), readPlayerUses(summary.name())));
+            }
+            return result;
+        } catch (EOFException e) {
+            throw new IOException("Damaged " + file.getName(), e);
+        } finally {
+            if (!wasOpen) close();
+        }
+    }
+
+    // ----------------------------
+    // Compaction
+    // ----------------------------
+
+    /**
+     * Rewrites the file with only the live records.
+     */
+    private void compact() throws IOException {
+        Path temp = new File(file.getParentFile(), file.getName() + ".tmp").toPath();
+        Map<String, Location> compacted = new LinkedHashMap<>();
+
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            long position = 0;
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                Location location = entry.getValue();
+                long frameLength = FRAME_HEADER + location.length();
+                long copied = 0;
+                while (copied < frameLength) {
+                    copied += channel.transferTo(location.offset() + copied, frameLength - copied, out);
+                }
+                compacted.put(entry.getKey(), new Location(position, location.length()));
+                position += frameLength;
+            }
+        }
+
+        channel.close();
+        try {
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        index.clear();
+        index.putAll(compacted);
+        deadRecords = 0;
+    }
+
+    public void close() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+}
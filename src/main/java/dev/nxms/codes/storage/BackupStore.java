@@ -0,0 +1,379 @@
+package dev.nxms.codes.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Point-in-time backups in {@code backups/}.
+ * <p>
+ * The state is encoded with {@link BinarySnapshotFormat} and cut into content-defined chunks
+ * (a gear rolling hash picks the boundaries, so an edit only changes the chunks around it).
+ * Every chunk is stored once, deflated, as {@code chunks/<sha-256>}; a backup is a small
+ * {@code <id>.backup} manifest listing its chunks, so consecutive backups share everything
+ * that did not change. Not thread-safe, used from the backup lane only.
+ */
+public class BackupStore {
+
+    public static final int MAGIC = 0x4E584342;
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 14;
+    private static final String EXTENSION = ".backup";
+    // more backups in the same second get -2, -3, ... appended
+    private static final String ID_FORMAT = "yyyyMMdd-HHmmss";
+    private static final Comparator<String> ID_ORDER = Comparator
+            .comparing((String id) -> id.substring(0, Math.min(id.length(), ID_FORMAT.length())))
+            .thenComparingInt(BackupStore::idSuffix);
+
+    private static final int MIN_CHUNK = 2 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024;
+    // 13 bits, about 8 KB between boundaries past the minimum
+    private static final long BOUNDARY_MASK = 0x1FFFL << 51;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(MAGIC);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public record Backup(String id, long createdAt, int codes, int usedCodes, long size, int chunks) { }
+
+    private record Chunk(byte[] hash, int length) { }
+
+    private record Manifest(Backup backup, List<Chunk> chunks) { }
+
+    private final File folder;
+    private final File chunkFolder;
+    private final BinarySnapshotFormat format = new BinarySnapshotFormat();
+
+    public BackupStore(File folder) {
+        this.folder = folder;
+        this.chunkFolder = new File(folder, "chunks");
+    }
+
+    // ----------------------------
+    // Create
+    // ----------------------------
+
+    /**
+     * Stores the state as a new backup.
+     *
+     * @param skipUnchanged return null instead of a new backup when the state equals the latest one
+     */
+    public Backup create(StateSnapshot state, long createdAt, boolean skipUnchanged) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        chunkFolder.mkdirs();
+
+        byte[] data = format.write(state);
+        List<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < data.length) {
+            int end = cutPoint(data, start);
+            byte[] hash = sha256(data, start, end - start);
+            writeChunk(hash, data, start, end - start);
+            chunks.add(new Chunk(hash, end - start));
+            start = end;
+        }
+
+        if (skipUnchanged) {
+            Manifest latest = latestManifest();
+            if (latest != null && sameChunks(latest.chunks(), chunks)) return null;
+        }
+
+        Backup backup = new Backup(newId(createdAt), createdAt, state.codes().size(), state.usedCodes().size(),
+                data.length, chunks.size());
+        writeAtomically(manifestFile(backup.id()).toPath(), encodeManifest(backup, chunks));
+        return backup;
+    }
+
+    /**
+     * @return end (exclusive) of the chunk starting at {@code start}
+     */
+    private static int cutPoint(byte[] data, int start) {
+        int limit = Math.min(data.length, start + MAX_CHUNK);
+        long hash = 0;
+        for (int i = start + MIN_CHUNK; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & BOUNDARY_MASK) == 0) return i + 1;
+        }
+        return limit;
+    }
+
+    private void writeChunk(byte[] hash, byte[] data, int offset, int length) throws IOException {
+        File file = chunkFile(hash);
+        if (file.exists()) return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED))) {
+            out.write(data, offset, length);
+        }
+        writeAtomically(file.toPath(), bytes.toByteArray());
+    }
+
+    private String newId(long createdAt) {
+        String base = new SimpleDateFormat(ID_FORMAT).format(new Date(createdAt));
+        String id = base;
+        for (int i = 2; manifestFile(id).exists(); i++) {
+            id = base + "-" + i;
+        }
+        return id;
+    }
+
+    private static boolean sameChunks(List<Chunk> a, List<Chunk> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (!Arrays.equals(a.get(i).hash(), b.get(i).hash())) return false;
+        }
+        return true;
+    }
+
+    // ----------------------------
+    // List / read
+    // ----------------------------
+
+    /**
+     * @return all readable backups, newest first
+     */
+    public List<Backup> list() {
+        List<Backup> backups = new ArrayList<>();
+        for (File file : manifestFiles()) {
+            Manifest manifest = readManifestQuietly(file);
+            if (manifest != null) backups.add(manifest.backup());
+        }
+        Collections.reverse(backups);
+        return backups;
+    }
+
+    public boolean exists(String id) {
+        return isValidId(id) && manifestFile(id).exists();
+    }
+
+    /**
+     * Ids are generated from the creation time, anything else (e.g. a path) is rejected.
+     */
+    private static boolean isValidId(String id) {
+        return id.matches("[0-9-]{1,32}");
+    }
+
+    /**
+     * @throws IOException if the backup does not exist or one of its chunks is missing or damaged
+     */
+    public StateSnapshot read(String id) throws IOException {
+        if (!isValidId(id)) throw new IOException("Invalid backup id " + id);
+        Manifest manifest = readManifest(manifestFile(id));
+        ByteArrayOutputStream data = new ByteArrayOutputStream((int) manifest.backup().size());
+        for (Chunk chunk : manifest.chunks()) {
+            File file = chunkFile(chunk.hash());
+            byte[] bytes;
+            try (InputStream in = new InflaterInputStream(Files.newInputStream(file.toPath()))) {
+                bytes = in.readAllBytes();
+            }
+            if (bytes.length != chunk.length() || !Arrays.equals(sha256(bytes, 0, bytes.length), chunk.hash())) {
+                throw new IOException("Damaged chunk " + file.getName() + " of backup " + id);
+            }
+            data.write(bytes);
+        }
+        return format.decode(data.toByteArray());
+    }
+
+    private Manifest latestManifest() {
+        List<File> files = manifestFiles();
+        for (int i = files.size() - 1; i >= 0; i--) {
+            Manifest manifest = readManifestQuietly(files.get(i));
+            if (manifest != null) return manifest;
+        }
+        return null;
+    }
+
+    // ----------------------------
+    // Retention
+    // ----------------------------
+
+    /**
+     * Deletes all but the newest {@code keep} backups and the chunks no longer referenced.
+     *
+     * @return number of deleted backups
+     */
+    public int prune(int keep) throws IOException {
+        List<File> files = manifestFiles();
+        int deleted = 0;
+        for (int i = 0; i < files.size() - Math.max(1, keep); i++) {
+            Files.deleteIfExists(files.get(i).toPath());
+            deleted++;
+        }
+        if (deleted == 0) return 0;
+
+        Set<String> referenced = new HashSet<>();
+        for (File file : manifestFiles()) {
+            // an unreadable manifest could still reference anything, keep all chunks
+            Manifest manifest = readManifestQuietly(file);
+            if (manifest == null) return deleted;
+            for (Chunk chunk : manifest.chunks()) {
+                referenced.add(HexFormat.of().formatHex(chunk.hash()));
+            }
+        }
+
+        File[] chunkFiles = chunkFolder.listFiles();
+        if (chunkFiles == null) return deleted;
+        for (File file : chunkFiles) {
+            if (!referenced.contains(file.getName())) Files.deleteIfExists(file.toPath());
+        }
+        return deleted;
+    }
+
+    // ----------------------------
+    // Files
+    // ----------------------------
+
+    /**
+     * Manifest files, oldest first. Ids do not sort as text: "-10" would come before "-2", and
+     * "-2" before the id without a suffix.
+     */
+    private List<File> manifestFiles() {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) return List.of();
+        return Stream.of(files).sorted(Comparator.comparing(BackupStore::idOf, ID_ORDER)).toList();
+    }
+
+    private static String idOf(File manifest) {
+        String name = manifest.getName();
+        return name.substring(0, name.length() - EXTENSION.length());
+    }
+
+    /**
+     * @return the number newId appended to the id, 1 for the first backup of a second
+     */
+    private static int idSuffix(String id) {
+        if (id.length() <= ID_FORMAT.length() + 1) return 1;
+        try {
+            return Integer.parseInt(id.substring(ID_FORMAT.length() + 1));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private File manifestFile(String id) {
+        return new File(folder, id + EXTENSION);
+    }
+
+    private File chunkFile(byte[] hash) {
+        return new File(chunkFolder, HexFormat.of().formatHex(hash));
+    }
+
+    private static void writeAtomically(Path target, byte[] data) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, data);
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static byte[] sha256(byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // ----------------------------
+    // Manifest format
+    // ----------------------------
+
+    private static byte[] encodeManifest(Backup backup, List<Chunk> chunks) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(64 + chunks.size() * 36);
+        DataOutputStream out = new DataOutputStream(payloadBytes);
+        BinaryIO.writeVarLong(out, backup.createdAt());
+        BinaryIO.writeVarInt(out, backup.codes());
+        BinaryIO.writeVarInt(out, backup.usedCodes());
+        BinaryIO.writeVarLong(out, backup.size());
+        BinaryIO.writeVarInt(out, chunks.size());
+        for (Chunk chunk : chunks) {
+            out.write(chunk.hash());
+            BinaryIO.writeVarInt(out, chunk.length());
+        }
+        out.flush();
+
+        byte[] payload = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(HEADER_SIZE + payload.length);
+        DataOutputStream file = new DataOutputStream(fileBytes);
+        file.writeInt(MAGIC);
+        file.writeShort(VERSION);
+        file.writeInt(payload.length);
+        file.writeInt((int) crc.getValue());
+        file.write(payload);
+        file.flush();
+        return fileBytes.toByteArray();
+    }
+
+    private static Manifest readManifest(File file) throws IOException {
+        if (!file.exists()) throw new IOException("Backup " + file.getName() + " does not exist");
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < HEADER_SIZE || header.readInt() != MAGIC) {
+            throw new IOException("Not a backup file: " + file.getName());
+        }
+        int version = header.readUnsignedShort();
+        if (version > VERSION) {
+            throw new IOException("Backup version " + version + " is newer than supported version " + VERSION);
+        }
+        int length = header.readInt();
+        int checksum = header.readInt();
+        if (length != data.length - HEADER_SIZE) throw new IOException("Backup " + file.getName() + " is truncated");
+
+        CRC32 crc = new CRC32();
+        crc.update(data, HEADER_SIZE, length);
+        if ((int) crc.getValue() != checksum) throw new IOException("Backup " + file.getName() + " checksum mismatch");
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, HEADER_SIZE, length));
+        long createdAt = BinaryIO.readVarLong(in);
+        int codes = BinaryIO.readVarInt(in);
+        int usedCodes = BinaryIO.readVarInt(in);
+        long size = BinaryIO.readVarLong(in);
+        int count = BinaryIO.readVarInt(in);
+        List<Chunk> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            in.readFully(hash);
+            chunks.add(new Chunk(hash, BinaryIO.readVarInt(in)));
+        }
+
+        return new Manifest(new Backup(idOf(file), createdAt, codes, usedCodes, size, count), chunks);
+    }
+
+    private static Manifest readManifestQuietly(File file) {
+        try {
+            return readManifest(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
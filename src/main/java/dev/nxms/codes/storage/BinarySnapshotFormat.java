@@ -0,0 +1,298 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.models.Code;
+import dev.nxms.codes.models.CodeSnapshot;
+import dev.nxms.codes.models.ItemBlob;
+import dev.nxms.codes.models.Reward;
+import dev.nxms.codes.models.UuidIntMap;
+import dev.nxms.codes.models.UuidLongMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * codes.dat: the whole state in a compact binary form.
+ * <p>
+ * Layout: magic {@code NXCD}, format version (short), payload length (int), CRC32 of the payload (int),
+ * then the payload. Counts and counters are varints, player UUIDs two raw longs and cooldown timestamps
+ * deltas from the previous one in ascending order. Item rewards are stored once each in a blob section
+ * at the start of the payload and referenced by index from the codes (version 1 stored them inline).
+ * Version 3 adds bundle codes, a list of rewards each written as its type and an item index or a string.
+ */
+public final class BinarySnapshotFormat implements SnapshotFormat {
+
+    public static final int MAGIC = 0x4E584344;
+    public static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 14;
+
+    @Override
+    public String fileName() {
+        return "codes.dat";
+    }
+
+    @Override
+    public String journalFileName() {
+        return "codes.dat.journal";
+    }
+
+    @Override
+    public String archiveFileName() {
+        return "codes.dat.archive";
+    }
+
+    // ----------------------------
+    // Write
+    // ----------------------------
+
+    @Override
+    public byte[] write(StateSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(payloadBytes);
+
+        ItemBlobPool items = new ItemBlobPool();
+        for (CodeSnapshot code : snapshot.codes()) {
+            for (ItemBlob item : code.items()) {
+                items.add(item);
+            }
+        }
+        BinaryIO.writeVarInt(out, items.blobs().size());
+        for (ItemBlob blob : items.blobs()) {
+            BinaryIO.writeBytes(out, blob.data());
+        }
+
+        BinaryIO.writeVarInt(out, snapshot.codes().size());
+        for (CodeSnapshot code : snapshot.codes()) {
+            writeCode(out, code, items);
+        }
+
+        BinaryIO.writeVarInt(out, snapshot.usedCodes().size());
+        for (CodeManager.UsedCodeInfo info : snapshot.usedCodes()) {
+            writeUsedCode(out, info);
+        }
+        out.flush();
+
+        byte[] payload = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(HEADER_SIZE + payload.length);
+        DataOutputStream file = new DataOutputStream(fileBytes);
+        file.writeInt(MAGIC);
+        file.writeShort(VERSION);
+        file.writeInt(payload.length);
+        file.writeInt((int) crc.getValue());
+        file.write(payload);
+        file.flush();
+        return fileBytes.toByteArray();
+    }
+
+    private static void writeCode(DataOutputStream out, CodeSnapshot code, ItemBlobPool items) throws IOException {
+        BinaryIO.writeString(out, code.name());
+        BinaryIO.writeVarInt(out, code.globalUses());
+        BinaryIO.writeVarInt(out, code.maxGlobalUses());
+        BinaryIO.writeVarInt(out, code.maxPlayerUses());
+        BinaryIO.writeVarInt(out, code.cooldown());
+        out.writeBoolean(code.broadcast());
+        BinaryIO.writeString(out, code.rewardType().name());
+
+        switch (code.rewardType()) {
+            // blob index + 1, 0 for none
+            case ITEM -> BinaryIO.writeVarInt(out, code.itemReward() != null ? items.indexOf(code.itemReward()) + 1 : 0);
+            case PERMISSION -> BinaryIO.writeNullableString(out, code.permissionReward());
+            case RANK -> BinaryIO.writeNullableString(out, code.rankReward());
+            case BUNDLE -> {
+                BinaryIO.writeVarInt(out, code.bundle().size());
+                for (Reward reward : code.bundle()) {
+                    BinaryIO.writeString(out, reward.type().name());
+                    if (reward.type() == Code.RewardType.ITEM) {
+                        BinaryIO.writeVarInt(out, items.indexOf(reward.item()));
+                    } else {
+                        BinaryIO.writeString(out, reward.value());
+                    }
+                }
+            }
+        }
+
+        writePlayerUses(out, code.playerUses());
+
+        BinaryIO.writeVarInt(out, code.playerCooldowns().size());
+        long[] previous = {0};
+        code.playerCooldowns().forEachSortedByValue((msb, lsb, lastUse) -> {
+            BinaryIO.writeUuid(out, msb, lsb);
+            BinaryIO.writeVarLong(out, lastUse - previous[0]);
+            previous[0] = lastUse;
+        });
+    }
+
+    private static void writeUsedCode(DataOutputStream out, CodeManager.UsedCodeInfo info) throws IOException {
+        BinaryIO.writeString(out, info.name());
+        BinaryIO.writeNullableString(out, info.rewardDisplay());
+        BinaryIO.writeVarInt(out, info.totalUses());
+        BinaryIO.writeVarInt(out, info.maxGlobalUses());
+        BinaryIO.writeVarInt(out, info.maxPlayerUses());
+        writePlayerUses(out, info.playerUses() != null ? info.playerUses() : new UuidIntMap());
+    }
+
+    private static void writePlayerUses(DataOutputStream out, UuidIntMap playerUses) throws IOException {
+        BinaryIO.writeVarInt(out, playerUses.size());
+        playerUses.forEach((msb, lsb, uses) -> {
+            BinaryIO.writeUuid(out, msb, lsb);
+            BinaryIO.writeVarInt(out, uses);
+        });
+    }
+
+    // ----------------------------
+    // Read
+    // ----------------------------
+
+    /**
+     * @throws IOException if the file is truncated, corrupted or written by a newer version
+     */
+    @Override
+    public StateSnapshot read(Path file) throws IOException {
+        return decode(Files.readAllBytes(file));
+    }
+
+    public StateSnapshot decode(byte[] data) throws IOException {
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < HEADER_SIZE || header.readInt() != MAGIC) {
+            throw new IOException("Not a codes snapshot file");
+        }
+        int version = header.readUnsignedShort();
+        if (version > VERSION) {
+            throw new IOException("Snapshot version " + version + " is newer than supported version " + VERSION);
+        }
+        int length = header.readInt();
+        int checksum = header.readInt();
+        if (length < 0 || length != data.length - HEADER_SIZE) {
+            throw new IOException("Snapshot is truncated");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, HEADER_SIZE, length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, HEADER_SIZE, length));
+
+        ItemBlobPool items = new ItemBlobPool();
+        if (version >= 2) {
+            int blobCount = BinaryIO.readVarInt(in);
+            for (int i = 0; i < blobCount; i++) {
+                items.add(BinaryIO.readBytes(in));
+            }
+        }
+
+        int codeCount = BinaryIO.readVarInt(in);
+        List<CodeSnapshot> codes = new ArrayList<>(codeCount);
+        for (int i = 0; i < codeCount; i++) {
+            codes.add(readCode(in, version, items));
+        }
+
+        int usedCount = BinaryIO.readVarInt(in);
+        List<CodeManager.UsedCodeInfo> usedCodes = new ArrayList<>(usedCount);
+        for (int i = 0; i < usedCount; i++) {
+            usedCodes.add(readUsedCode(in));
+        }
+
+        return new StateSnapshot(codes, usedCodes);
+    }
+
+    private static CodeSnapshot readCode(DataInputStream in, int version, ItemBlobPool items) throws IOException {
+        String name = BinaryIO.readString(in);
+        int globalUses = BinaryIO.readVarInt(in);
+        int maxGlobalUses = BinaryIO.readVarInt(in);
+        int maxPlayerUses = BinaryIO.readVarInt(in);
+        int cooldown = BinaryIO.readVarInt(in);
+        boolean broadcast = in.readBoolean();
+        Code.RewardType rewardType;
+        try {
+            rewardType = Code.RewardType.valueOf(BinaryIO.readString(in));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown reward type of code " + name);
+        }
+
+        ItemBlob itemReward = null;
+        String permissionReward = null;
+        String rankReward = null;
+        List<Reward> bundle = List.of();
+        switch (rewardType) {
+            case ITEM -> {
+                if (version == 1) {
+                    if (in.readBoolean()) itemReward = items.add(BinaryIO.readBytes(in));
+                } else {
+                    int ref = BinaryIO.readVarInt(in);
+                    if (ref > items.blobs().size()) throw new IOException("Unknown item of code " + name);
+                    if (ref > 0) itemReward = items.get(ref - 1);
+                }
+            }
+            case PERMISSION -> permissionReward = BinaryIO.readNullableString(in);
+            case RANK -> rankReward = BinaryIO.readNullableString(in);
+            case BUNDLE -> bundle = readBundle(in, name, items);
+        }
+
+        UuidIntMap playerUses = readPlayerUses(in);
+
+        int cooldownCount = BinaryIO.readVarInt(in);
+        UuidLongMap playerCooldowns = new UuidLongMap(cooldownCount);
+        long timestamp = 0;
+        for (int i = 0; i < cooldownCount; i++) {
+            long msb = in.readLong();
+            long lsb = in.readLong();
+            timestamp += BinaryIO.readVarLong(in);
+            playerCooldowns.put(msb, lsb, timestamp);
+        }
+
+        return new CodeSnapshot(name, globalUses, maxGlobalUses, maxPlayerUses, cooldown, broadcast,
+                rewardType, itemReward, permissionReward, rankReward, bundle, playerUses, playerCooldowns);
+    }
+
+    private static List<Reward> readBundle(DataInputStream in, String name, ItemBlobPool items) throws IOException {
+        int count = BinaryIO.readVarInt(in);
+        List<Reward> bundle = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String type = BinaryIO.readString(in);
+            switch (type) {
+                case "ITEM" -> {
+                    int ref = BinaryIO.readVarInt(in);
+                    if (ref < 0 || ref >= items.blobs().size()) throw new IOException("Unknown item of code " + name);
+                    bundle.add(Reward.item(items.get(ref)));
+                }
+                case "PERMISSION" -> bundle.add(Reward.permission(BinaryIO.readString(in)));
+                case "RANK" -> bundle.add(Reward.rank(BinaryIO.readString(in)));
+                default -> throw new IOException("Unknown reward type of code " + name);
+            }
+        }
+        return List.copyOf(bundle);
+    }
+
+    private static CodeManager.UsedCodeInfo readUsedCode(DataInputStream in) throws IOException {
+        String name = BinaryIO.readString(in);
+        String rewardDisplay = BinaryIO.readNullableString(in);
+        int totalUses = BinaryIO.readVarInt(in);
+        int maxGlobalUses = BinaryIO.readVarInt(in);
+        int maxPlayerUses = BinaryIO.readVarInt(in);
+        return new CodeManager.UsedCodeInfo(name, rewardDisplay, totalUses, maxGlobalUses, maxPlayerUses, readPlayerUses(in));
+    }
+
+    private static UuidIntMap readPlayerUses(DataInputStream in) throws IOException {
+        int count = BinaryIO.readVarInt(in);
+        UuidIntMap playerUses = new UuidIntMap(count);
+        for (int i = 0; i < count; i++) {
+            long msb = in.readLong();
+            long lsb = in.readLong();
+            playerUses.put(msb, lsb, BinaryIO.readVarInt(in));
+        }
+        return playerUses;
+    }
+}
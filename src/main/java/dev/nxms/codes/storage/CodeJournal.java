@@ -0,0 +1,216 @@
+package dev.nxms.codes.storage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of changes made to codes since the last snapshot (codes.yml or codes.dat).
+ * Every record is a single tab separated line, so appending one costs the same
+ * no matter how many codes or players are stored.
+ */
+public class CodeJournal {
+
+    public enum Type {
+        CREATE("C"),
+        OVERWRITE("O"),
+        USE("U"),
+        COOLDOWN("T"),
+        DELETE("D"),
+        ARCHIVE("A"),
+        CLEAR_USED("X");
+
+        private final String tag;
+
+        Type(String tag) {
+            this.tag = tag;
+        }
+
+        static Type fromTag(String tag) {
+            for (Type type : values()) {
+                if (type.tag.equals(tag)) return type;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Single journal line. {@code args} holds the fields following the record tag.
+     */
+    public record Entry(Type type, String[] args) { }
+
+    private static final String SEPARATOR = "\t";
+
+    private final File file;
+    private final File rotatedFile;
+    private final Logger logger;
+
+    private BufferedWriter writer;
+    private int entries;
+
+    public CodeJournal(File dataFolder, String fileName, Logger logger) {
+        this.file = new File(dataFolder, fileName);
+        this.rotatedFile = new File(dataFolder, fileName + ".old");
+        this.logger = logger;
+    }
+
+    public void open() throws IOException {
+        if (writer != null) return;
+        writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    public void close() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.warning("Cannot close " + file.getName() + ": " + e.getMessage());
+        }
+        writer = null;
+    }
+
+    /**
+     * Number of records appended since the journal was opened or last rotated.
+     */
+    public int size() {
+        return entries;
+    }
+
+    public void appendCreate(boolean overwrite, String name, int maxGlobalUses, int maxPlayerUses, int cooldown,
+                             boolean broadcast, String rewardType, String reward) {
+        append(overwrite ? Type.OVERWRITE : Type.CREATE, name, String.valueOf(maxGlobalUses), String.valueOf(maxPlayerUses),
+                String.valueOf(cooldown), String.valueOf(broadcast), rewardType, reward == null ? "" : reward);
+    }
+
+    public void appendUse(String name, UUID player) {
+        append(Type.USE, name, player.toString());
+    }
+
+    public void appendCooldown(String name, UUID player, long timestamp) {
+        append(Type.COOLDOWN, name, player.toString(), String.valueOf(timestamp));
+    }
+
+    public void appendDelete(String name) {
+        append(Type.DELETE, name);
+    }
+
+    public void appendArchive(String name) {
+        append(Type.ARCHIVE, name);
+    }
+
+    public void appendClearUsed() {
+        append(Type.CLEAR_USED);
+    }
+
+    private void append(Type type, String... args) {
+        if (writer == null) {
+            logger.warning(file.getName() + " is not open, change will only be kept until the next save.");
+            return;
+        }
+
+        StringBuilder line = new StringBuilder(type.tag);
+        for (String arg : args) {
+            line.append(SEPARATOR).append(arg);
+        }
+
+        try {
+            writer.write(line.toString());
+            writer.newLine();
+            writer.flush();
+            entries++;
+        } catch (IOException e) {
+            logger.severe("Cannot write to " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the current journal aside so new records go to a fresh file while
+     * a snapshot is being written. The old file is dropped by {@link #discardRotated()}
+     * once the snapshot is safely on disk. If an earlier snapshot failed and its
+     * rotated file is still there, the current records are appended to it instead.
+     */
+    public void rotate() throws IOException {
+        close();
+        if (file.exists()) {
+            if (rotatedFile.exists()) {
+                Files.write(rotatedFile.toPath(), Files.readAllBytes(file.toPath()), StandardOpenOption.APPEND);
+                Files.delete(file.toPath());
+            } else {
+                Files.move(file.toPath(), rotatedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        entries = 0;
+        open();
+    }
+
+    public void discardRotated() {
+        try {
+            Files.deleteIfExists(rotatedFile.toPath());
+        } catch (IOException e) {
+            logger.warning("Cannot delete " + rotatedFile.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops every record. Only safe right after a full snapshot has been written.
+     */
+    public void truncate() throws IOException {
+        close();
+        Files.deleteIfExists(rotatedFile.toPath());
+        Files.deleteIfExists(file.toPath());
+        entries = 0;
+        open();
+    }
+
+    /**
+     * Replays the rotated journal (left over from an interrupted compaction) and then
+     * the current one, in the order the records were written.
+     *
+     * @return number of replayed records
+     */
+    public int replay(Consumer<Entry> handler) {
+        return replayFile(rotatedFile, handler) + replayFile(file, handler);
+    }
+
+    private int replayFile(File source, Consumer<Entry> handler) {
+        if (!source.exists()) return 0;
+
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(source.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+
+                String[] parts = line.split(SEPARATOR, -1);
+                Type type = Type.fromTag(parts[0]);
+                if (type == null) {
+                    logger.warning("Skipping unknown record in " + source.getName() + ": " + line);
+                    continue;
+                }
+
+                String[] args = new String[parts.length - 1];
+                System.arraycopy(parts, 1, args, 0, args.length);
+
+                try {
+                    handler.accept(new Entry(type, args));
+                    count++;
+                } catch (RuntimeException e) {
+                    logger.warning("Skipping broken record in " + source.getName() + ": " + line);
+                }
+            }
+        } catch (IOException e) {
+            // a crash while appending can leave a partial last line, everything before it is still valid
+            logger.warning("Cannot fully read " + source.getName() + ": " + e.getMessage());
+        }
+        return count;
+    }
+}
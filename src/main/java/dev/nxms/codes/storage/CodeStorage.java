@@ -0,0 +1,111 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.models.Code;
+import dev.nxms.codes.models.UuidIntMap;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Persistence backend used by {@link CodeManager}.
+ * <p>
+ * {@link #load()} returns the whole state once, afterwards the manager reports every change
+ * as a small row-level operation, so a redemption never has to rewrite unrelated codes.
+ * All methods are called on the global region thread (the main thread on Paper), implementations
+ * are free to do the actual I/O in the background. Lookups of per-player data return futures
+ * that complete on the backend's I/O thread, callers hop back to the global region thread themselves.
+ */
+public interface CodeStorage {
+
+    /**
+     * Reads all active and used codes. Used codes may come without per-player data
+     * ({@link CodeManager.UsedCodeInfo#playerUses()} is null), it is then read on demand.
+     */
+    StateSnapshot load();
+
+    /**
+     * Stores a newly created code. With {@code overwrite} any active or used code with the
+     * same name is replaced, otherwise only an active one.
+     */
+    void upsertCode(Code code, boolean overwrite);
+
+    /**
+     * Removes an active code together with its per-player data.
+     */
+    void deleteCode(String name);
+
+    /**
+     * One more global use and one more use for the player.
+     */
+    void incrementUse(Code code, UUID player);
+
+    /**
+     * Remembers when the player last used a code with a delay.
+     */
+    void setCooldown(Code code, UUID player, long timestamp);
+
+    /**
+     * Cooldowns of the code whose last use is at or before {@code lastUse} have ended and were
+     * dropped from memory. Backends that write whole snapshots leave them out of the next one
+     * anyway, the others delete them here.
+     */
+    default void expireCooldowns(Code code, long lastUse) {
+    }
+
+    /**
+     * Moves an active code to the used codes list.
+     */
+    void archiveCode(CodeManager.UsedCodeInfo info);
+
+    void clearArchive();
+
+    /**
+     * Per-player use counts of an active or used code, read from the backend.
+     */
+    CompletableFuture<UuidIntMap> loadPlayerUsage(String codeName);
+
+    /**
+     * Uses of a used code by one player. Backends that keep the archive outside of memory
+     * answer this without loading the whole per-player map.
+     */
+    default CompletableFuture<Integer> loadArchivedUses(String codeName, UUID player) {
+        return loadPlayerUsage(codeName).thenApply(playerUses -> playerUses.get(player));
+    }
+
+    /**
+     * Number of players who used a used code.
+     */
+    default CompletableFuture<Integer> countArchivedPlayers(String codeName) {
+        return loadPlayerUsage(codeName).thenApply(UuidIntMap::size);
+    }
+
+    /**
+     * All used codes in list order, with their per-player uses, e.g. for a backup. Changes made
+     * after the call are not part of it. Completes with null if they cannot be read, the error is
+     * logged.
+     */
+    CompletableFuture<List<CodeManager.UsedCodeInfo>> loadArchive();
+
+    /**
+     * Replaces everything stored with the given state. Used codes without per-player data are
+     * stored without it.
+     */
+    void replaceAll(StateSnapshot snapshot);
+
+    /**
+     * Asks for pending changes to be persisted soon, without blocking.
+     */
+    void requestFlush();
+
+    /**
+     * Persists pending changes before returning.
+     */
+    void flush();
+
+    /**
+     * Flushes and releases files and connections.
+     */
+    void close();
+}
@@ -0,0 +1,202 @@
+package dev.nxms.codes.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Runs the plugin's blocking work (file writes, database calls) on virtual threads, so no
+ * platform thread of the server or a shared async pool waits for a disk.
+ * <p>
+ * Work goes through {@link Lane lanes}, one per resource. A lane runs at most its parallelism of
+ * tasks at a time, in submission order, 1 for a file so two writes never overlap. Lanes keep a
+ * queue depth and the time spent in their tasks for /code stats, and {@link #drain} waits for all
+ * of them when the plugin stops.
+ */
+public class IoExecutor {
+
+    private final Logger logger;
+    private final List<Lane> lanes = new CopyOnWriteArrayList<>();
+
+    public IoExecutor(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * A new lane that runs one task at a time.
+     */
+    public Lane lane(String name) {
+        return lane(name, 1);
+    }
+
+    public Lane lane(String name, int parallelism) {
+        Lane lane = new Lane(name, Math.max(1, parallelism));
+        lanes.add(lane);
+        return lane;
+    }
+
+    public List<Lane> lanes() {
+        return List.copyOf(lanes);
+    }
+
+    /**
+     * Stops all lanes and waits up to the timeout for their queued tasks.
+     *
+     * @return true if everything finished in time
+     */
+    public boolean drain(long timeout, TimeUnit unit) {
+        for (Lane lane : lanes) {
+            lane.shutdown();
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<String> unfinished = new ArrayList<>();
+        for (Lane lane : lanes) {
+            try {
+                if (!lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    unfinished.add(lane.name() + " (" + lane.queued() + " queued)");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        if (!unfinished.isEmpty()) {
+            logger.warning("I/O did not finish in time: " + String.join(", ", unfinished) + "!");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Executor for one resource. Each burst of work starts a virtual thread that runs queued
+     * tasks until the queue is empty. Supports {@code submit}, {@code shutdown} and
+     * {@code awaitTermination} like any {@link java.util.concurrent.ExecutorService}.
+     */
+    public final class Lane extends AbstractExecutorService {
+
+        private final String name;
+        private final int parallelism;
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private int running;
+        private boolean shutdown;
+
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder busyNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Lane(String name, int parallelism) {
+            this.name = name;
+            this.parallelism = parallelism;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                if (shutdown) throw new RejectedExecutionException(name + " is shut down");
+                queue.add(task);
+                if (running >= parallelism) return;
+                running++;
+            }
+            Thread.ofVirtual().name("Codes-IO-" + name).start(this::work);
+        }
+
+        private void work() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = queue.poll();
+                    if (task == null) {
+                        running--;
+                        notifyAll();
+                        return;
+                    }
+                }
+
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.severe("I/O task on " + name + " failed!");
+                    t.printStackTrace();
+                } finally {
+                    long took = System.nanoTime() - start;
+                    busyNanos.add(took);
+                    maxNanos.accumulateAndGet(took, Math::max);
+                    completed.increment();
+                }
+            }
+        }
+
+        /**
+         * Tasks waiting to start.
+         */
+        public synchronized int queued() {
+            return queue.size();
+        }
+
+        public long completed() {
+            return completed.sum();
+        }
+
+        /**
+         * Average time per finished task in milliseconds.
+         */
+        public double averageMillis() {
+            long count = completed.sum();
+            return count == 0 ? 0 : busyNanos.sum() / 1_000_000.0 / count;
+        }
+
+        public double maxMillis() {
+            return maxNanos.get() / 1_000_000.0;
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            synchronized (this) {
+                shutdown = true;
+                List<Runnable> pending = new ArrayList<>(queue);
+                queue.clear();
+                return pending;
+            }
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown && running == 0 && queue.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.models.ItemBlob;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed set of item blobs used while reading or writing a snapshot:
+ * every distinct item is kept once and referenced by its hash (or index).
+ */
+public class ItemBlobPool {
+
+    private final Map<String, Integer> indexes = new LinkedHashMap<>();
+    private final List<ItemBlob> blobs = new ArrayList<>();
+
+    /**
+     * @return the pooled blob equal to the given one
+     */
+    public ItemBlob add(ItemBlob blob) {
+        Integer index = indexes.get(blob.hash());
+        if (index != null) return blobs.get(index);
+
+        indexes.put(blob.hash(), blobs.size());
+        blobs.add(blob);
+        return blob;
+    }
+
+    public ItemBlob add(byte[] data) {
+        return add(ItemBlob.of(data));
+    }
+
+    public ItemBlob get(String hash) {
+        Integer index = indexes.get(hash);
+        return index != null ? blobs.get(index) : null;
+    }
+
+    public ItemBlob get(int index) {
+        return blobs.get(index);
+    }
+
+    /**
+     * @return index of a pooled blob, or -1
+     */
+    public int indexOf(ItemBlob blob) {
+        return indexes.getOrDefault(blob.hash(), -1);
+    }
+
+    public List<ItemBlob> blobs() {
+        return blobs;
+    }
+}
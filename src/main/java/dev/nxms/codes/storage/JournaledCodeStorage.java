@@ -0,0 +1,452 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.Codes;
+import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.models.Code;
+import dev.nxms.codes.models.CodeSnapshot;
+import dev.nxms.codes.models.ItemBlob;
+import dev.nxms.codes.models.Reward;
+import dev.nxms.codes.models.PlayerIds;
+import dev.nxms.codes.models.UuidIntMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * Snapshot file plus a journal of changes made since it was written. The snapshot format
+ * is pluggable: codes.yml with codes.journal, or the binary codes.dat with codes.dat.journal.
+ * Used codes live in a separate {@link ArchiveFile}; the snapshot holds active codes only and
+ * just summaries of used codes are kept in memory.
+ */
+public class JournaledCodeStorage implements CodeStorage {
+
+    private final Codes plugin;
+    private final SnapshotFormat format;
+    private final File snapshotFile;
+    private final CodeJournal journal;
+    private final ArchiveFile archive;
+    private final SnapshotWriter snapshotWriter;
+    private final ExecutorService reader;
+    private final Supplier<StateSnapshot> state;
+    private boolean opened;
+
+    /**
+     * @param state supplies the current state of the manager, called on the global region thread
+     */
+    public JournaledCodeStorage(Codes plugin, SnapshotFormat format, Supplier<StateSnapshot> state) {
+        this.plugin = plugin;
+        this.format = format;
+        this.state = state;
+        this.snapshotFile = new File(plugin.getDataFolder(), format.fileName());
+        this.journal = new CodeJournal(plugin.getDataFolder(), format.journalFileName(), plugin.getLogger());
+        this.archive = new ArchiveFile(new File(plugin.getDataFolder(), format.archiveFileName()));
+        this.snapshotWriter = new SnapshotWriter(plugin, format, this::captureForWrite, journal::discardRotated);
+        this.reader = plugin.getIo().lane(format.archiveFileName(), 4);
+    }
+
+    public SnapshotFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public StateSnapshot load() {
+        // a background write may be replacing the snapshot and dropping the old journal right now
+        snapshotWriter.awaitIdle();
+        journal.close();
+
+        if (!snapshotFile.exists()) {
+            plugin.getLogger().warning("Couldn't find " + format.fileName() + " file!");
+            try {
+                snapshotFile.createNewFile();
+                plugin.getLogger().info("Created new " + format.fileName() + " file.");
+            } catch (IOException e) {
+                plugin.getLogger().severe("Cannot create " + format.fileName() + " file!");
+                e.printStackTrace();
+            }
+        }
+
+        long start = System.nanoTime();
+        Map<String, Code> codes = new LinkedHashMap<>();
+        Map<String, CodeManager.UsedCodeInfo> legacyUsedCodes = new LinkedHashMap<>();
+        int replayed = read(codes, legacyUsedCodes, true);
+
+        StateSnapshot loaded = toSnapshot(codes, Map.of());
+        plugin.getLogger().info("Read " + format.fileName() + " (" + snapshotFile.length() / 1024 + " KB) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms.");
+
+        List<CodeManager.UsedCodeInfo> usedCodes = openArchive(legacyUsedCodes.values());
+
+        if (replayed > 0 || !legacyUsedCodes.isEmpty()) {
+            // fold the replayed changes into the snapshot right away, this also clears the journal
+            if (replayed > 0) plugin.getLogger().info("Replayed " + replayed + " journal records.");
+            try {
+                journal.rotate();
+            } catch (IOException e) {
+                plugin.getLogger().severe("Cannot rotate " + format.journalFileName() + " file!");
+                e.printStackTrace();
+            }
+            snapshotWriter.saveNow(loaded);
+        }
+
+        try {
+            journal.open();
+            opened = true;
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot open " + format.journalFileName() + " file!");
+            e.printStackTrace();
+        }
+
+        return new StateSnapshot(loaded.codes(), usedCodes);
+    }
+
+    /**
+     * Opens the archive file and moves used codes still kept in the snapshot by older versions into it.
+     *
+     * @return summaries of all used codes
+     */
+    private List<CodeManager.UsedCodeInfo> openArchive(Collection<CodeManager.UsedCodeInfo> legacyUsedCodes) {
+        try {
+            archive.open();
+            boolean migrated = false;
+            for (CodeManager.UsedCodeInfo info : legacyUsedCodes) {
+                if (archive.contains(info.name())) continue;
+                archive.append(info);
+                migrated = true;
+            }
+            if (migrated) {
+                plugin.getLogger().info("Moved " + legacyUsedCodes.size() + " used codes to " + format.archiveFileName() + ".");
+            }
+            return archive.open();
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot open " + format.archiveFileName() + " file: " + e.getMessage());
+            e.printStackTrace();
+            // the snapshot is about to be rewritten without them
+            if (!legacyUsedCodes.isEmpty()) keepSnapshotCopy("unarchived");
+            return List.of();
+        }
+    }
+
+    /**
+     * Reads the snapshot, the journal and the archive without changing any file.
+     */
+    public StateSnapshot read() {
+        Map<String, Code> codes = new LinkedHashMap<>();
+        Map<String, CodeManager.UsedCodeInfo> usedCodes = new LinkedHashMap<>();
+        read(codes, usedCodes, false);
+        try {
+            for (CodeManager.UsedCodeInfo info : archive.readAll()) {
+                usedCodes.remove(info.name().toLowerCase(Locale.ROOT));
+                usedCodes.put(info.name().toLowerCase(Locale.ROOT), info);
+            }
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot read " + format.archiveFileName() + " file: " + e.getMessage());
+        }
+        return toSnapshot(codes, usedCodes);
+    }
+
+    private int read(Map<String, Code> codes, Map<String, CodeManager.UsedCodeInfo> usedCodes, boolean keepBroken) {
+        if (snapshotFile.exists() && snapshotFile.length() > 0) {
+            try {
+                StateSnapshot snapshot = format.read(snapshotFile.toPath());
+                for (CodeSnapshot code : snapshot.codes()) {
+                    codes.put(code.name().toLowerCase(Locale.ROOT), new Code(code));
+                }
+                for (CodeManager.UsedCodeInfo info : snapshot.usedCodes()) {
+                    usedCodes.put(info.name().toLowerCase(Locale.ROOT), info);
+                }
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().severe("Cannot read " + format.fileName() + " file: " + e.getMessage());
+                e.printStackTrace();
+                if (keepBroken) keepSnapshotCopy("broken");
+            }
+        }
+        return journal.replay(entry -> applyJournalEntry(entry, codes, usedCodes));
+    }
+
+    /**
+     * Copies the snapshot aside before the next save replaces it, e.g. when it cannot be read.
+     */
+    private void keepSnapshotCopy(String reason) {
+        File copy = new File(plugin.getDataFolder(), format.fileName() + "." + reason + "-" + System.currentTimeMillis());
+        try {
+            Files.copy(snapshotFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            plugin.getLogger().severe("The current file was copied to " + copy.getName() + ".");
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot copy " + format.fileName() + " file: " + e.getMessage());
+        }
+    }
+
+    private static StateSnapshot toSnapshot(Map<String, Code> codes, Map<String, CodeManager.UsedCodeInfo> usedCodes) {
+        List<CodeSnapshot> active = new ArrayList<>(codes.size());
+        for (Code code : codes.values()) {
+            active.add(code.snapshot());
+        }
+        return new StateSnapshot(active, List.copyOf(usedCodes.values()));
+    }
+
+    private void applyJournalEntry(CodeJournal.Entry entry, Map<String, Code> codes,
+                                   Map<String, CodeManager.UsedCodeInfo> usedCodes) {
+        String[] a = entry.args();
+        switch (entry.type()) {
+            case CREATE, OVERWRITE -> {
+                String name = a[0];
+                int maxGlobalUses = Integer.parseInt(a[1]);
+                int maxPlayerUses = Integer.parseInt(a[2]);
+                int cooldown = Integer.parseInt(a[3]);
+                boolean broadcast = Boolean.parseBoolean(a[4]);
+                Code.RewardType rewardType = Code.RewardType.valueOf(a[5]);
+
+                Code code = switch (rewardType) {
+                    case ITEM -> new Code(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast,
+                            ItemBlob.of(Base64.getDecoder().decode(a[6])));
+                    case BUNDLE -> new Code(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast, Reward.decode(a[6]));
+                    default -> new Code(name, maxGlobalUses, maxPlayerUses, cooldown, broadcast, a[6], rewardType);
+                };
+
+                String key = name.toLowerCase(Locale.ROOT);
+                if (entry.type() == CodeJournal.Type.OVERWRITE) usedCodes.remove(key);
+                codes.put(key, code);
+            }
+            case USE -> {
+                Code code = codes.get(a[0].toLowerCase(Locale.ROOT));
+                if (code != null) code.incrementUse(PlayerIds.intern(UUID.fromString(a[1])));
+            }
+            case COOLDOWN -> {
+                Code code = codes.get(a[0].toLowerCase(Locale.ROOT));
+                if (code != null) code.setLastUse(PlayerIds.intern(UUID.fromString(a[1])), Long.parseLong(a[2]));
+            }
+            case DELETE -> codes.remove(a[0].toLowerCase(Locale.ROOT));
+            case ARCHIVE -> {
+                Code code = codes.remove(a[0].toLowerCase(Locale.ROOT));
+                if (code != null) usedCodes.put(code.getName().toLowerCase(Locale.ROOT), CodeManager.UsedCodeInfo.of(code));
+            }
+            case CLEAR_USED -> usedCodes.clear();
+        }
+    }
+
+    /**
+     * Copies the state for {@link SnapshotWriter}. Records journaled from now on go to a fresh
+     * journal file, the rotated one is dropped once the copy is on disk.
+     */
+    private StateSnapshot captureForWrite() {
+        try {
+            journal.rotate();
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot rotate " + format.journalFileName() + " file!");
+            e.printStackTrace();
+        }
+        // used codes are in the archive file
+        return new StateSnapshot(state.get().codes(), List.of());
+    }
+
+    /**
+     * Admin changes are written out soon, redemptions only once the journal grows
+     * past the threshold or on auto-save.
+     */
+    private void changed(boolean save) {
+        snapshotWriter.markDirty();
+        if (save || journal.size() >= plugin.getConfig().getInt("journal.compact-threshold", 1000)) {
+            snapshotWriter.requestSave();
+        }
+    }
+
+    @Override
+    public void upsertCode(Code code, boolean overwrite) {
+        String reward = switch (code.getRewardType()) {
+            case ITEM -> Base64.getEncoder().encodeToString(code.getItemBlob().data());
+            case PERMISSION -> code.getPermissionReward();
+            case RANK -> code.getRankReward();
+            case BUNDLE -> Reward.encode(code.getBundle());
+        };
+        if (overwrite) {
+            try {
+                archive.remove(code.getName());
+            } catch (IOException e) {
+                plugin.getLogger().severe("Cannot write to " + format.archiveFileName() + " file!");
+                e.printStackTrace();
+            }
+        }
+        journal.appendCreate(overwrite, code.getName(), code.getMaxGlobalUses(), code.getMaxPlayerUses(),
+                code.getCooldown(), code.isBroadcast(), code.getRewardType().name(), reward);
+        changed(true);
+    }
+
+    @Override
+    public void deleteCode(String name) {
+        journal.appendDelete(name);
+        changed(true);
+    }
+
+    @Override
+    public void incrementUse(Code code, UUID player) {
+        journal.appendUse(code.getName(), player);
+        changed(false);
+    }
+
+    @Override
+    public void setCooldown(Code code, UUID player, long timestamp) {
+        journal.appendCooldown(code.getName(), player, timestamp);
+        changed(false);
+    }
+
+    @Override
+    public void archiveCode(CodeManager.UsedCodeInfo info) {
+        // the archive record goes first, the journal record only removes the active code
+        try {
+            archive.append(info);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot write to " + format.archiveFileName() + " file!");
+            e.printStackTrace();
+        }
+        journal.appendArchive(info.name());
+        changed(false);
+    }
+
+    @Override
+    public void clearArchive() {
+        try {
+            archive.clear();
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot clear " + format.archiveFileName() + " file!");
+            e.printStackTrace();
+        }
+        journal.appendClearUsed();
+        changed(true);
+    }
+
+    @Override
+    public CompletableFuture<UuidIntMap> loadPlayerUsage(String codeName) {
+        ArchiveFile.Record record = findArchived(codeName);
+        if (record != null) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return record.readPlayerUses();
+                } catch (IOException e) {
+                    plugin.getLogger().severe("Cannot read " + format.archiveFileName() + " file: " + e.getMessage());
+                    return new UuidIntMap();
+                }
+            }, reader);
+        }
+
+        // the snapshot has no index, the journal has to be applied on top of it anyway
+        return CompletableFuture.supplyAsync(() -> {
+            Map<String, Code> codes = new LinkedHashMap<>();
+            read(codes, new LinkedHashMap<>(), false);
+            Code code = codes.get(codeName.toLowerCase(Locale.ROOT));
+            return code != null ? code.getPlayerUses() : new UuidIntMap();
+        }, reader);
+    }
+
+    @Override
+    public CompletableFuture<Integer> loadArchivedUses(String codeName, UUID player) {
+        ArchiveFile.Record record = findArchived(codeName);
+        if (record == null) return CompletableFuture.completedFuture(0);
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return record.readPlayerUses(player);
+            } catch (IOException e) {
+                plugin.getLogger().severe("Cannot read " + format.archiveFileName() + " file: " + e.getMessage());
+                return 0;
+            }
+        }, reader);
+    }
+
+    @Override
+    public CompletableFuture<Integer> countArchivedPlayers(String codeName) {
+        ArchiveFile.Record record = findArchived(codeName);
+        if (record == null) return CompletableFuture.completedFuture(0);
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return record.countPlayers();
+            } catch (IOException e) {
+                plugin.getLogger().severe("Cannot read " + format.archiveFileName() + " file: " + e.getMessage());
+                return 0;
+            }
+        }, reader);
+    }
+
+    @Override
+    public CompletableFuture<List<CodeManager.UsedCodeInfo>> loadArchive() {
+        List<ArchiveFile.Record> records;
+        try {
+            records = archive.records();
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot read " + format.archiveFileName() + " file: " + e.getMessage());
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            List<CodeManager.UsedCodeInfo> usedCodes = new ArrayList<>(records.size());
+            try {
+                for (ArchiveFile.Record record : records) {
+                    usedCodes.add(record.read());
+                }
+                return usedCodes;
+            } catch (IOException e) {
+                plugin.getLogger().severe("Cannot read " + format.archiveFileName() + " file: " + e.getMessage());
+                return null;
+            }
+        }, reader);
+    }
+
+    /**
+     * Index lookup on the global region thread, the player data is then read on the reader lane.
+     */
+    private ArchiveFile.Record findArchived(String codeName) {
+        try {
+            return archive.find(codeName);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot read " + format.archiveFileName() + " file: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void replaceAll(StateSnapshot snapshot) {
+        snapshotWriter.awaitIdle();
+        try {
+            journal.rotate();
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot rotate " + format.journalFileName() + " file!");
+            e.printStackTrace();
+        }
+        try {
+            archive.clear();
+            for (CodeManager.UsedCodeInfo info : snapshot.usedCodes()) {
+                archive.append(info);
+            }
+        } catch (IOException e) {
+            plugin.getLogger().severe("Cannot write to " + format.archiveFileName() + " file!");
+            e.printStackTrace();
+        }
+        snapshotWriter.saveNow(new StateSnapshot(snapshot.codes(), List.of()));
+    }
+
+    @Override
+    public void requestFlush() {
+        snapshotWriter.requestSave();
+    }
+
+    @Override
+    public void flush() {
+        if (opened) snapshotWriter.saveNow();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        snapshotWriter.shutdown();
+        reader.shutdown();
+        journal.close();
+        archive.close();
+        opened = false;
+    }
+}
@@ -0,0 +1,50 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.models.UsageTable;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+/**
+ * Hands out {@link MappedUsageTable}s, one file per code in the {@code usage/} folder.
+ * The files only mirror what the storage already persists and are removed on shutdown.
+ */
+public class MappedUsageStore {
+
+    private final File folder;
+    private final Logger logger;
+    private int nextId;
+
+    public MappedUsageStore(File dataFolder, Logger logger) {
+        this.folder = new File(dataFolder, "usage");
+        this.logger = logger;
+
+        //noinspection ResultOfMethodCallIgnored
+        folder.mkdirs();
+        // left over after a crash, the storage has the real data
+        deleteFiles();
+    }
+
+    public UsageTable createTable(int expectedPlayers) {
+        return new MappedUsageTable(folder, String.valueOf(nextId++), expectedPlayers);
+    }
+
+    /**
+     * Removes the remaining files. Tables must have been released before.
+     */
+    public void close() {
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".bin"));
+        if (files == null) return;
+
+        for (File file : files) {
+            if (!file.delete()) {
+                logger.warning("Cannot delete " + file.getName() + " from the usage folder.");
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.models.Code;
+import dev.nxms.codes.models.PlayerIds;
+import dev.nxms.codes.models.UsageTable;
+import dev.nxms.codes.models.UuidIntMap;
+import dev.nxms.codes.models.UuidLongMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Open-addressing hash table of fixed 16 byte slots in a memory-mapped file:
+ * player ID (int, 0 for a free slot), use count (int) and last use (long).
+ * Lookups read the mapping directly and allocate nothing, the data lives in the
+ * OS page cache instead of the Java heap. The table doubles into a new file at 3/4 load.
+ * <p>
+ * The file is scratch space, the persistent copy is written by the {@link CodeStorage}.
+ * Access is synchronized on the table, a released table reads as empty and ignores every change.
+ */
+public class MappedUsageTable implements UsageTable {
+
+    private static final int SLOT_SIZE = 16;
+    private static final int USES = 4;
+    private static final int LAST_USE = 8;
+
+    private static final int MIN_CAPACITY = 64;
+    // a single mapping is limited to 2 GB
+    private static final int MAX_CAPACITY = 1 << 27;
+
+    private final File folder;
+    private final String baseName;
+
+    private File file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+
+    MappedUsageTable(File folder, String baseName, int expectedPlayers) {
+        this.folder = folder;
+        this.baseName = baseName;
+
+        int capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && capacity * 3L / 4 < expectedPlayers) {
+            capacity <<= 1;
+        }
+        map(capacity);
+    }
+
+    private void map(int newCapacity) {
+        File newFile = new File(folder, baseName + "-" + newCapacity + ".bin");
+        try (FileChannel channel = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // mapping past the end grows the file, the new region reads as zeros
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) newCapacity * SLOT_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map " + newFile.getName(), e);
+        }
+        file = newFile;
+        capacity = newCapacity;
+    }
+
+    private static int hash(int player) {
+        // IDs are sequential, spread them over the table
+        int h = player * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return byte offset of the player's slot, or {@code -(offset + 1)} of the free slot it belongs in
+     */
+    private int find(int player) {
+        int mask = capacity - 1;
+        int index = hash(player) & mask;
+        while (true) {
+            int offset = index * SLOT_SIZE;
+            int stored = buffer.getInt(offset);
+            if (stored == 0) return -(offset + 1);
+            if (stored == player) return offset;
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the slot of the player, claiming a free one if needed.
+     */
+    private int slot(int player) {
+        int offset = find(player);
+        if (offset >= 0) return offset;
+
+        if ((size + 1) * 4L > capacity * 3L) {
+            grow();
+            offset = find(player);
+        }
+        offset = -offset - 1;
+        buffer.putInt(offset, player);
+        size++;
+        return offset;
+    }
+
+    private void grow() {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Usage table " + baseName + " is full");
+        }
+
+        MappedByteBuffer old = buffer;
+        File oldFile = file;
+        int oldCapacity = capacity;
+        map(capacity << 1);
+
+        for (int i = 0; i < oldCapacity; i++) {
+            int from = i * SLOT_SIZE;
+            int player = old.getInt(from);
+            if (player == 0) continue;
+
+            int to = -find(player) - 1;
+            buffer.put(to, old, from, SLOT_SIZE);
+        }
+        delete(oldFile);
+    }
+
+    private static void delete(File file) {
+        // a file that is still mapped cannot be deleted on Windows
+        if (!file.delete()) file.deleteOnExit();
+    }
+
+    @Override
+    public synchronized int getUses(int player) {
+        if (buffer == null) return 0;
+        int offset = find(player);
+        return offset >= 0 ? buffer.getInt(offset + USES) : 0;
+    }
+
+    @Override
+    public synchronized long getLastUse(int player) {
+        if (buffer == null) return 0;
+        int offset = find(player);
+        return offset >= 0 ? buffer.getLong(offset + LAST_USE) : 0;
+    }
+
+    @Override
+    public synchronized void setUses(int player, int uses) {
+        if (buffer == null) return;
+        // slot may remap the table, so the offset is taken before buffer is read
+        int offset = slot(player);
+        buffer.putInt(offset + USES, uses);
+    }
+
+    @Override
+    public synchronized void incrementUse(int player) {
+        if (buffer == null) return;
+        int offset = slot(player);
+        buffer.putInt(offset + USES, buffer.getInt(offset + USES) + 1);
+    }
+
+    @Override
+    public synchronized void setLastUse(int player, long timestamp) {
+        if (buffer == null) return;
+        int offset = slot(player);
+        buffer.putLong(offset + LAST_USE, timestamp);
+    }
+
+    @Override
+    public synchronized boolean clearLastUse(int player, long lastUse) {
+        if (buffer == null) return false;
+        int offset = find(player);
+        if (offset < 0 || buffer.getLong(offset + LAST_USE) != lastUse) return false;
+        buffer.putLong(offset + LAST_USE, 0);
+        return true;
+    }
+
+    @Override
+    public synchronized int countLastUses() {
+        if (buffer == null) return 0;
+        int count = 0;
+        for (int i = 0; i < capacity; i++) {
+            int offset = i * SLOT_SIZE;
+            if (buffer.getInt(offset) != 0 && buffer.getLong(offset + LAST_USE) != 0) count++;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized Code.UseResult tryUse(int player, int maxUses, int cooldown, long timestamp,
+                                              BooleanSupplier reserveGlobal) {
+        // released once the code was archived or removed
+        if (buffer == null) return Code.UseResult.GLOBAL_LIMIT;
+
+        int offset = find(player);
+        int uses = offset >= 0 ? buffer.getInt(offset + USES) : 0;
+        long lastUse = offset >= 0 ? buffer.getLong(offset + LAST_USE) : 0;
+
+        if (Code.remainingCooldown(cooldown, lastUse, timestamp) > 0) return Code.UseResult.COOLDOWN;
+        if (maxUses != Code.UNLIMITED && uses >= maxUses) return Code.UseResult.PLAYER_LIMIT;
+        if (!reserveGlobal.getAsBoolean()) return Code.UseResult.GLOBAL_LIMIT;
+
+        offset = slot(player);
+        buffer.putInt(offset + USES, uses + 1);
+        if (cooldown > 0) buffer.putLong(offset + LAST_USE, timestamp);
+        return Code.UseResult.USED;
+    }
+
+    @Override
+    public synchronized void releaseUse(int player, long timestamp) {
+        if (buffer == null) return;
+        int offset = find(player);
+        if (offset < 0) return;
+
+        int uses = buffer.getInt(offset + USES);
+        if (uses > 0) buffer.putInt(offset + USES, uses - 1);
+        if (buffer.getLong(offset + LAST_USE) == timestamp) buffer.putLong(offset + LAST_USE, 0);
+    }
+
+    @Override
+    public synchronized UuidIntMap copyUses() {
+        UuidIntMap uses = new UuidIntMap(size);
+        if (buffer == null) return uses;
+        for (int i = 0; i < capacity; i++) {
+            int offset = i * SLOT_SIZE;
+            int player = buffer.getInt(offset);
+            if (player == 0) continue;
+
+            int count = buffer.getInt(offset + USES);
+            if (count > 0) uses.put(PlayerIds.msb(player), PlayerIds.lsb(player), count);
+        }
+        return uses;
+    }
+
+    @Override
+    public synchronized UuidLongMap copyLastUses() {
+        UuidLongMap lastUses = new UuidLongMap(size);
+        if (buffer == null) return lastUses;
+        for (int i = 0; i < capacity; i++) {
+            int offset = i * SLOT_SIZE;
+            int player = buffer.getInt(offset);
+            if (player == 0) continue;
+
+            long lastUse = buffer.getLong(offset + LAST_USE);
+            if (lastUse != 0) lastUses.put(PlayerIds.msb(player), PlayerIds.lsb(player), lastUse);
+        }
+        return lastUses;
+    }
+
+    @Override
+    public synchronized void release() {
+        buffer = null;
+        size = 0;
+        delete(file);
+    }
+}
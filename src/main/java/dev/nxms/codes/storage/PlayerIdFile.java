@@ -0,0 +1,84 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.models.PlayerIds;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * players.dat, the {@link PlayerIds} dictionary: one 16 byte record (the UUID) per player,
+ * the record at index i holding the player with ID i + 1. New IDs are appended, so a player
+ * keeps the same ID across restarts. A torn record at the end is overwritten by the next append.
+ */
+public class PlayerIdFile {
+
+    private static final int RECORD_SIZE = 16;
+
+    private final File file;
+    private final Logger logger;
+    // IDs up to this one are in the file
+    private int persisted;
+
+    public PlayerIdFile(File dataFolder, Logger logger) {
+        this.file = new File(dataFolder, "players.dat");
+        this.logger = logger;
+    }
+
+    /**
+     * Assigns the stored IDs. Must run before anything else interns a player.
+     */
+    public synchronized void load() {
+        if (!file.exists()) return;
+
+        long records = file.length() / RECORD_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            for (int expected = 1; expected <= records; expected++) {
+                if (PlayerIds.intern(in.readLong(), in.readLong()) != expected) {
+                    // the dictionary no longer matches the file, the next append rewrites it
+                    logger.warning(file.getName() + " does not match the assigned player IDs, rewriting it.");
+                    persisted = 0;
+                    return;
+                }
+                persisted = expected;
+            }
+        } catch (IOException e) {
+            logger.severe("Cannot read " + file.getName() + " file!");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the IDs assigned since the last call. Safe to call from any thread.
+     */
+    public synchronized void append() {
+        int count = PlayerIds.count();
+        if (count == persisted) return;
+
+        ByteBuffer buffer = ByteBuffer.allocate((count - persisted) * RECORD_SIZE);
+        for (int id = persisted + 1; id <= count; id++) {
+            buffer.putLong(PlayerIds.msb(id));
+            buffer.putLong(PlayerIds.lsb(id));
+        }
+        buffer.flip();
+
+        long position = (long) persisted * RECORD_SIZE;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(position);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+            persisted = count;
+        } catch (IOException e) {
+            logger.severe("Cannot write " + file.getName() + " file!");
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.Codes;
+import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.models.Code;
+import dev.nxms.codes.models.CodeSnapshot;
+import dev.nxms.codes.models.ItemBlob;
+import dev.nxms.codes.models.UuidIntMap;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One YAML file per code: active codes in {@code codes/}, used codes in {@code archive/}.
+ * Only codes changed since the last flush are rewritten, so redeeming one code never
+ * re-serializes the rewards and player maps of the others. Files are read in parallel on load.
+ * Item rewards are written once each to {@code items/<hash>.bin} and referenced from the code files.
+ */
+public class ShardedCodeStorage implements CodeStorage {
+
+    /**
+     * Pending change of one shard; {@code null} code or info means the file should be removed.
+     */
+    private record PendingCode(Code code) { }
+
+    private record PendingArchive(CodeManager.UsedCodeInfo info, long archivedAt) { }
+
+    /**
+     * Shard content built on the global region thread, serialized to text on the I/O lane.
+     */
+    private record ShardWrite(Path file, YamlConfiguration config, List<ItemBlob> items) { }
+
+    private final Codes plugin;
+    private final File codesFolder;
+    private final File archiveFolder;
+    private final File itemsFolder;
+    private final ExecutorService executor;
+
+    private final Map<String, PendingCode> dirtyCodes = new LinkedHashMap<>();
+    private final Map<String, PendingArchive> dirtyArchive = new LinkedHashMap<>();
+    private boolean archiveCleared;
+    private boolean scheduled;
+    private Future<?> inFlight;
+
+    public ShardedCodeStorage(Codes plugin) {
+        this.plugin = plugin;
+        this.codesFolder = new File(plugin.getDataFolder(), "codes");
+        this.archiveFolder = new File(plugin.getDataFolder(), "archive");
+        this.itemsFolder = new File(plugin.getDataFolder(), "items");
+        this.executor = plugin.getIo().lane("codes/");
+
+        //noinspection ResultOfMethodCallIgnored
+        codesFolder.mkdirs();
+        //noinspection ResultOfMethodCallIgnored
+        archiveFolder.mkdirs();
+        //noinspection ResultOfMethodCallIgnored
+        itemsFolder.mkdirs();
+    }
+
+    /**
+     * Lower-cased code name made safe for any file system.
+     */
+    static String fileName(String codeName) {
+        StringBuilder out = new StringBuilder();
+        for (byte b : codeName.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+                out.append(c);
+            } else {
+                out.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return out.append(".yml").toString();
+    }
+
+    // ----------------------------
+    // Load
+    // ----------------------------
+
+    @Override
+    public StateSnapshot load() {
+        flush();
+
+        Map<String, ItemBlob> items = new ConcurrentHashMap<>();
+        List<CodeSnapshot> codes = Arrays.stream(listShards(codesFolder))
+                .parallel()
+                .map(file -> readCodeShard(file, items))
+                .filter(Objects::nonNull)
+                .toList();
+        deleteUnusedItems(codes);
+
+        return new StateSnapshot(codes, readArchive());
+    }
+
+    /**
+     * All used codes with their per-player uses, in list order.
+     */
+    private List<CodeManager.UsedCodeInfo> readArchive() {
+        return Arrays.stream(listShards(archiveFolder))
+                .parallel()
+                .map(this::readArchiveShard)
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparingLong(Map.Entry::getKey))
+                .map(Map.Entry::getValue)
+                .toList();
+    }
+
+    private static File[] listShards(File folder) {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".yml"));
+        return files != null ? files : new File[0];
+    }
+
+    /**
+     * @param items blobs already read during this load, shared by codes with the same item
+     */
+    private CodeSnapshot readCodeShard(File file, Map<String, ItemBlob> items) {
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        String name = config.getString("name");
+        if (name == null) {
+            plugin.getLogger().warning("Cannot load active code from " + file.getName() + "!");
+            return null;
+        }
+        try {
+            return YamlSnapshotFormat.readCode(name, config, hash -> items.computeIfAbsent(hash, this::readItem));
+        } catch (Exception e) {
+            plugin.getLogger().warning("Cannot load active code: " + name + "!");
+            return null;
+        }
+    }
+
+    private ItemBlob readItem(String hash) {
+        try {
+            return ItemBlob.of(Files.readAllBytes(itemFile(hash)));
+        } catch (IOException e) {
+            plugin.getLogger().warning("Cannot load item " + hash + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Path itemFile(String hash) {
+        return new File(itemsFolder, hash + ".bin").toPath();
+    }
+
+    /**
+     * Items of overwritten and deleted codes stay on disk until the next load.
+     */
+    private void deleteUnusedItems(List<CodeSnapshot> codes) {
+        Set<String> used = new HashSet<>();
+        for (CodeSnapshot code : codes) {
+            for (ItemBlob item : code.items()) {
+                used.add(item.hash() + ".bin");
+            }
+        }
+        File[] files = itemsFolder.listFiles((dir, name) -> name.endsWith(".bin") && !used.contains(name));
+        if (files == null) return;
+
+        for (File file : files) {
+            if (!file.delete()) {
+                plugin.getLogger().warning("Cannot delete " + file.getName());
+            }
+        }
+    }
+
+    private Map.Entry<Long, CodeManager.UsedCodeInfo> readArchiveShard(File file) {
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        String name = config.getString("name");
+        if (name == null) {
+            plugin.getLogger().warning("Cannot load used code from " + file.getName() + "!");
+            return null;
+        }
+        return Map.entry(config.getLong("archived-at", 0), YamlSnapshotFormat.readUsedCode(name, config));
+    }
+
+    @Override
+    public CompletableFuture<UuidIntMap> loadPlayerUsage(String codeName) {
+        // pending changes go to the lane first, it runs them before the read
+        Runnable batch = captureDirty();
+        if (batch != null) inFlight = executor.submit(batch);
+
+        return CompletableFuture.supplyAsync(() -> {
+            File active = new File(codesFolder, fileName(codeName));
+            if (active.exists()) {
+                CodeSnapshot code = readCodeShard(active, new HashMap<>());
+                return code != null ? code.playerUses() : new UuidIntMap();
+            }
+
+            File archived = new File(archiveFolder, fileName(codeName));
+            if (archived.exists()) {
+                Map.Entry<Long, CodeManager.UsedCodeInfo> entry = readArchiveShard(archived);
+                return entry != null ? entry.getValue().playerUses() : new UuidIntMap();
+            }
+            return new UuidIntMap();
+        }, executor);
+    }
+
+    @Override
+    public CompletableFuture<List<CodeManager.UsedCodeInfo>> loadArchive() {
+        Runnable batch = captureDirty();
+        if (batch != null) inFlight = executor.submit(batch);
+        return CompletableFuture.supplyAsync(this::readArchive, executor);
+    }
+
+    // ----------------------------
+    // Changes
+    // ----------------------------
+
+    private void markCode(String name, Code code) {
+        dirtyCodes.put(name.toLowerCase(Locale.ROOT), new PendingCode(code));
+        scheduleFlush();
+    }
+
+    @Override
+    public void upsertCode(Code code, boolean overwrite) {
+        markCode(code.getName(), code);
+        if (overwrite) {
+            dirtyArchive.put(code.getName().toLowerCase(Locale.ROOT), new PendingArchive(null, 0));
+        }
+    }
+
+    @Override
+    public void deleteCode(String name) {
+        markCode(name, null);
+    }
+
+    @Override
+    public void incrementUse(Code code, UUID player) {
+        markCode(code.getName(), code);
+    }
+
+    @Override
+    public void setCooldown(Code code, UUID player, long timestamp) {
+        markCode(code.getName(), code);
+    }
+
+    @Override
+    public void archiveCode(CodeManager.UsedCodeInfo info) {
+        markCode(info.name(), null);
+        dirtyArchive.put(info.name().toLowerCase(Locale.ROOT), new PendingArchive(info, System.currentTimeMillis()));
+    }
+
+    @Override
+    public void clearArchive() {
+        dirtyArchive.clear();
+        archiveCleared = true;
+        scheduleFlush();
+    }
+
+    @Override
+    public void replaceAll(StateSnapshot snapshot) {
+        flush();
+        dirtyCodes.clear();
+        dirtyArchive.clear();
+        archiveCleared = false;
+
+        List<ShardWrite> writes = new ArrayList<>();
+        for (CodeSnapshot code : snapshot.codes()) {
+            writes.add(codeWrite(code));
+        }
+        long archivedAt = 0;
+        for (CodeManager.UsedCodeInfo info : snapshot.usedCodes()) {
+            // keeps the original order of the list
+            writes.add(archiveWrite(info, archivedAt++));
+        }
+
+        deleteShards(codesFolder);
+        deleteShards(archiveFolder);
+        applyWrites(writes, List.of());
+    }
+
+    // ----------------------------
+    // Flush
+    // ----------------------------
+
+    private void scheduleFlush() {
+        if (scheduled) return;
+        scheduled = true;
+        long delay = Math.max(1, plugin.getConfig().getLong("snapshot.save-delay", 100));
+        plugin.getServer().getGlobalRegionScheduler().runDelayed(plugin, task -> flushAsync(), delay);
+    }
+
+    private void flushAsync() {
+        // keep writes of the same shard in order
+        if (inFlight != null && !inFlight.isDone()) {
+            plugin.getServer().getGlobalRegionScheduler().runDelayed(plugin, task -> flushAsync(), 1);
+            return;
+        }
+        scheduled = false;
+        Runnable batch = captureDirty();
+        if (batch != null) inFlight = executor.submit(batch);
+    }
+
+    /**
+     * Copies the dirty shards on the global region thread and returns the I/O part, or null if nothing changed.
+     */
+    private Runnable captureDirty() {
+        if (dirtyCodes.isEmpty() && dirtyArchive.isEmpty() && !archiveCleared) return null;
+
+        List<ShardWrite> writes = new ArrayList<>();
+        List<Path> deletes = new ArrayList<>();
+
+        for (Map.Entry<String, PendingCode> entry : dirtyCodes.entrySet()) {
+            Code code = entry.getValue().code();
+            if (code == null) {
+                deletes.add(new File(codesFolder, fileName(entry.getKey())).toPath());
+            } else {
+                writes.add(codeWrite(code.snapshot()));
+            }
+        }
+        for (Map.Entry<String, PendingArchive> entry : dirtyArchive.entrySet()) {
+            PendingArchive pending = entry.getValue();
+            if (pending.info() == null) {
+                deletes.add(new File(archiveFolder, fileName(entry.getKey())).toPath());
+            } else {
+                writes.add(archiveWrite(pending.info(), pending.archivedAt()));
+            }
+        }
+
+        boolean clear = archiveCleared;
+        dirtyCodes.clear();
+        dirtyArchive.clear();
+        archiveCleared = false;
+
+        return () -> {
+            if (clear) deleteShards(archiveFolder);
+            applyWrites(writes, deletes);
+        };
+    }
+
+    private ShardWrite codeWrite(CodeSnapshot code) {
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("name", code.name());
+        YamlSnapshotFormat.writeCode(config, code, false);
+        return new ShardWrite(new File(codesFolder, fileName(code.name())).toPath(), config, code.items());
+    }
+
+    private ShardWrite archiveWrite(CodeManager.UsedCodeInfo info, long archivedAt) {
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("name", info.name());
+        config.set("archived-at", archivedAt);
+        YamlSnapshotFormat.writeUsedCode(config, info);
+        return new ShardWrite(new File(archiveFolder, fileName(info.name())).toPath(), config, List.of());
+    }
+
+    private void applyWrites(List<ShardWrite> writes, List<Path> deletes) {
+        for (Path file : deletes) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                plugin.getLogger().severe("Cannot delete " + file.getFileName() + ": " + e.getMessage());
+            }
+        }
+        for (ShardWrite write : writes) {
+            Path temp = write.file().resolveSibling(write.file().getFileName() + ".tmp");
+            try {
+                for (ItemBlob item : write.items()) {
+                    writeItem(item);
+                }
+                Files.writeString(temp, write.config().saveToString(), StandardCharsets.UTF_8);
+                try {
+                    Files.move(temp, write.file(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, write.file(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                plugin.getLogger().severe("Cannot save " + write.file().getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Blob files are named by their content, an existing one never has to be written again.
+     */
+    private void writeItem(ItemBlob item) throws IOException {
+        Path file = itemFile(item.hash());
+        if (Files.exists(file)) return;
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, item.data());
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void deleteShards(File folder) {
+        for (File file : listShards(folder)) {
+            if (!file.delete()) {
+                plugin.getLogger().warning("Cannot delete " + file.getName());
+            }
+        }
+    }
+
+    @Override
+    public void requestFlush() {
+        if (!dirtyCodes.isEmpty() || !dirtyArchive.isEmpty() || archiveCleared) scheduleFlush();
+    }
+
+    @Override
+    public void flush() {
+        awaitIdle();
+        Runnable batch = captureDirty();
+        if (batch != null) batch.run();
+    }
+
+    private void awaitIdle() {
+        Future<?> pending = inFlight;
+        if (pending == null) return;
+        try {
+            pending.get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Waiting for code files to be written failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Code file writer did not finish in time!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
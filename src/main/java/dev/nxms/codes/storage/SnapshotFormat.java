@@ -0,0 +1,35 @@
+package dev.nxms.codes.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * File format of the full state snapshot written by {@link SnapshotWriter}.
+ */
+public interface SnapshotFormat {
+
+    /**
+     * Snapshot file inside the plugin folder, e.g. codes.yml.
+     */
+    String fileName();
+
+    /**
+     * Journal file kept next to the snapshot.
+     */
+    String journalFileName();
+
+    /**
+     * Append-only file holding the used codes, see {@link ArchiveFile}.
+     */
+    String archiveFileName();
+
+    /**
+     * Reads a snapshot file. Called only for existing, non-empty files.
+     */
+    StateSnapshot read(Path file) throws IOException;
+
+    /**
+     * Serializes a snapshot. May be called off the main thread.
+     */
+    byte[] write(StateSnapshot snapshot) throws IOException;
+}
@@ -0,0 +1,145 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.Codes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Writes the snapshot file (codes.yml or codes.dat) in the background.
+ * <p>
+ * The state is copied on the global region thread by the capture supplier, serialized and written
+ * on its own I/O lane into a temp file which then atomically replaces the snapshot.
+ * Save requests arriving within {@code snapshot.save-delay} ticks are collapsed into one
+ * write, and nothing is written at all while the state is not dirty.
+ */
+public class SnapshotWriter {
+
+    private final Codes plugin;
+    private final SnapshotFormat format;
+    private final Path target;
+    private final Path tempFile;
+    private final Supplier<StateSnapshot> capture;
+    private final Runnable onWritten;
+    private final ExecutorService executor;
+
+    private volatile boolean dirty;
+    private boolean scheduled;
+    private Future<?> inFlight;
+
+    /**
+     * @param capture   called on the global region thread, returns the state to write
+     * @param onWritten called on the I/O lane after the file has been replaced
+     */
+    public SnapshotWriter(Codes plugin, SnapshotFormat format, Supplier<StateSnapshot> capture, Runnable onWritten) {
+        this.plugin = plugin;
+        this.format = format;
+        this.target = new File(plugin.getDataFolder(), format.fileName()).toPath();
+        this.tempFile = new File(plugin.getDataFolder(), format.fileName() + ".tmp").toPath();
+        this.capture = capture;
+        this.onWritten = onWritten;
+        this.executor = plugin.getIo().lane(format.fileName());
+    }
+
+    public void markDirty() {
+        dirty = true;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Schedules a write after the configured delay. Must be called on the global region thread.
+     */
+    public void requestSave() {
+        if (!dirty || scheduled) return;
+
+        scheduled = true;
+        long delay = Math.max(1, plugin.getConfig().getLong("snapshot.save-delay", 100));
+        plugin.getServer().getGlobalRegionScheduler().runDelayed(plugin, task -> captureAndSubmit(), delay);
+    }
+
+    private void captureAndSubmit() {
+        // wait for the previous write, its onWritten must not see records captured after it
+        if (inFlight != null && !inFlight.isDone()) {
+            plugin.getServer().getGlobalRegionScheduler().runDelayed(plugin, task -> captureAndSubmit(), 1);
+            return;
+        }
+
+        scheduled = false;
+        if (!dirty) return;
+
+        dirty = false;
+        StateSnapshot snapshot = capture.get();
+        inFlight = executor.submit(() -> write(snapshot));
+    }
+
+    /**
+     * Captures and writes the state on the calling thread, waiting for any write in progress first.
+     */
+    public void saveNow() {
+        awaitIdle();
+        dirty = false;
+        write(capture.get());
+    }
+
+    /**
+     * Writes the given state instead of capturing the current one.
+     */
+    public void saveNow(StateSnapshot snapshot) {
+        awaitIdle();
+        dirty = false;
+        write(snapshot);
+    }
+
+    /**
+     * Blocks until the write in progress (if any) has finished.
+     */
+    public void awaitIdle() {
+        Future<?> pending = inFlight;
+        if (pending == null) return;
+
+        try {
+            pending.get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Waiting for " + format.fileName() + " write failed: " + e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning(format.fileName() + " writer did not finish in time!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(StateSnapshot snapshot) {
+        try {
+            Files.write(tempFile, format.write(snapshot));
+            try {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            onWritten.run();
+        } catch (IOException | RuntimeException e) {
+            // keep the state dirty so the next request tries again
+            dirty = true;
+            plugin.getLogger().severe("Cannot save " + format.fileName() + " file!");
+            e.printStackTrace();
+        }
+    }
+}
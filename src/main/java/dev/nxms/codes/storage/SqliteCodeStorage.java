@@ -0,0 +1,558 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.Codes;
+import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.models.Code;
+import dev.nxms.codes.models.CodeSnapshot;
+import dev.nxms.codes.models.Reward;
+import dev.nxms.codes.models.UuidIntMap;
+import dev.nxms.codes.models.UuidLongMap;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedded SQLite backend (codes.db). Every change is a small indexed update, executed in
+ * order on the codes.db I/O lane, one at a time, so server threads never wait for the disk.
+ * The JDBC driver is the one bundled with the server.
+ */
+public class SqliteCodeStorage implements CodeStorage {
+
+    @FunctionalInterface
+    private interface SqlTask<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS codes (" +
+                    "id TEXT PRIMARY KEY, name TEXT NOT NULL, global_uses INTEGER NOT NULL DEFAULT 0, " +
+                    "max_global_uses INTEGER NOT NULL, max_player_uses INTEGER NOT NULL, cooldown INTEGER NOT NULL, " +
+                    "broadcast INTEGER NOT NULL, reward_type TEXT NOT NULL, item_reward BLOB, text_reward TEXT)",
+            "CREATE TABLE IF NOT EXISTS player_uses (" +
+                    "code_id TEXT NOT NULL, player TEXT NOT NULL, uses INTEGER NOT NULL, PRIMARY KEY (code_id, player))",
+            "CREATE TABLE IF NOT EXISTS player_cooldowns (" +
+                    "code_id TEXT NOT NULL, player TEXT NOT NULL, last_use INTEGER NOT NULL, PRIMARY KEY (code_id, player))",
+            "CREATE TABLE IF NOT EXISTS archived_codes (" +
+                    "id TEXT PRIMARY KEY, name TEXT NOT NULL, reward_display TEXT, total_uses INTEGER NOT NULL, " +
+                    "max_global_uses INTEGER NOT NULL, max_player_uses INTEGER NOT NULL, archived_at INTEGER NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS archived_player_uses (" +
+                    "code_id TEXT NOT NULL, player TEXT NOT NULL, uses INTEGER NOT NULL, PRIMARY KEY (code_id, player))",
+            "CREATE INDEX IF NOT EXISTS idx_player_uses_player ON player_uses (player)",
+            "CREATE INDEX IF NOT EXISTS idx_player_cooldowns_player ON player_cooldowns (player)",
+            "CREATE INDEX IF NOT EXISTS idx_archived_codes_archived_at ON archived_codes (archived_at)"
+    };
+
+    private final Codes plugin;
+    private final File databaseFile;
+    private final ExecutorService executor;
+    private Connection connection;
+
+    public SqliteCodeStorage(Codes plugin) throws SQLException {
+        this.plugin = plugin;
+        this.databaseFile = new File(plugin.getDataFolder(), "codes.db");
+        this.executor = plugin.getIo().lane("codes.db");
+
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            executor.shutdown();
+            throw new SQLException("SQLite driver is not available", e);
+        }
+
+        call(c -> {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+            try (Statement st = connection.createStatement()) {
+                st.execute("PRAGMA journal_mode=WAL");
+                st.execute("PRAGMA synchronous=NORMAL");
+                for (String sql : SCHEMA) {
+                    st.execute(sql);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    // ----------------------------
+    // Execution
+    // ----------------------------
+
+    /**
+     * Queues a write. Failures are logged, the in-memory state stays authoritative.
+     */
+    private void submit(String description, SqlTask<?> task) {
+        executor.execute(() -> {
+            try {
+                inTransaction(task);
+            } catch (SQLException e) {
+                plugin.getLogger().severe("SQLite: cannot " + description + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Runs a read after all queued writes without waiting for it. The future completes on the
+     * codes.db lane, with the fallback if the read fails.
+     */
+    private <T> CompletableFuture<T> query(String description, T fallback, SqlTask<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                result.complete(inTransaction(task));
+            } catch (SQLException e) {
+                plugin.getLogger().severe("SQLite: cannot " + description + ": " + e.getMessage());
+                result.complete(fallback);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs a task after all queued writes and waits for its result.
+     */
+    private <T> T call(SqlTask<T> task) throws SQLException {
+        Future<T> future = executor.submit(() -> inTransaction(task));
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted", e);
+        } catch (java.util.concurrent.ExecutionException e) {
+            if (e.getCause() instanceof SQLException sql) throw sql;
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    private <T> T inTransaction(SqlTask<T> task) throws SQLException {
+        if (connection == null) return task.run(null);
+
+        connection.setAutoCommit(false);
+        try {
+            T result = task.run(connection);
+            connection.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    // ----------------------------
+    // Load
+    // ----------------------------
+
+    @Override
+    public StateSnapshot load() {
+        try {
+            return call(this::readAll);
+        } catch (SQLException e) {
+            plugin.getLogger().severe("SQLite: cannot load codes: " + e.getMessage());
+            return new StateSnapshot(List.of(), List.of());
+        }
+    }
+
+    private StateSnapshot readAll(Connection c) throws SQLException {
+        Map<String, UuidIntMap> uses = readUses(c, "SELECT code_id, player, uses FROM player_uses");
+        Map<String, UuidLongMap> cooldowns = new HashMap<>();
+        try (Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT code_id, player, last_use FROM player_cooldowns")) {
+            while (rs.next()) {
+                UUID player = parseUuid(rs.getString(2));
+                if (player == null) continue;
+                cooldowns.computeIfAbsent(rs.getString(1), k -> new UuidLongMap()).put(player, rs.getLong(3));
+            }
+        }
+
+        List<CodeSnapshot> codes = new ArrayList<>();
+        ItemBlobPool items = new ItemBlobPool();
+        try (Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT id, name, global_uses, max_global_uses, max_player_uses, cooldown, " +
+                     "broadcast, reward_type, item_reward, text_reward FROM codes")) {
+            while (rs.next()) {
+                String id = rs.getString(1);
+                String name = rs.getString(2);
+                try {
+                    Code.RewardType rewardType = Code.RewardType.valueOf(rs.getString(8));
+                    byte[] item = rs.getBytes(9);
+                    String text = rs.getString(10);
+
+                    codes.add(new CodeSnapshot(name, rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getInt(6),
+                            rs.getInt(7) != 0, rewardType,
+                            item != null ? items.add(item) : null,
+                            rewardType == Code.RewardType.PERMISSION ? text : null,
+                            rewardType == Code.RewardType.RANK ? text : null,
+                            rewardType == Code.RewardType.BUNDLE ? Reward.decode(text) : List.of(),
+                            Objects.requireNonNullElseGet(uses.get(id), UuidIntMap::new),
+                            Objects.requireNonNullElseGet(cooldowns.get(id), UuidLongMap::new)));
+                } catch (Exception e) {
+                    plugin.getLogger().warning("Cannot load active code: " + name + "!");
+                }
+            }
+        }
+
+        // per-player uses of used codes stay in the database, see loadArchivedUses
+        List<CodeManager.UsedCodeInfo> usedCodes = new ArrayList<>();
+        try (Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT id, name, reward_display, total_uses, max_global_uses, max_player_uses " +
+                     "FROM archived_codes ORDER BY archived_at")) {
+            while (rs.next()) {
+                usedCodes.add(new CodeManager.UsedCodeInfo(rs.getString(2), rs.getString(3), rs.getInt(4), rs.getInt(5),
+                        rs.getInt(6), null));
+            }
+        }
+
+        return new StateSnapshot(codes, usedCodes);
+    }
+
+    private static Map<String, UuidIntMap> readUses(Connection c, String sql) throws SQLException {
+        Map<String, UuidIntMap> result = new HashMap<>();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+            while (rs.next()) {
+                UUID player = parseUuid(rs.getString(2));
+                if (player == null) continue;
+                result.computeIfAbsent(rs.getString(1), k -> new UuidIntMap()).put(player, rs.getInt(3));
+            }
+        }
+        return result;
+    }
+
+    private static UUID parseUuid(String value) {
+        try {
+            return UUID.fromString(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<UuidIntMap> loadPlayerUsage(String codeName) {
+        String id = key(codeName);
+        return query("load player usage of " + codeName, new UuidIntMap(), c -> {
+            UuidIntMap result = new UuidIntMap();
+            for (String table : new String[]{"player_uses", "archived_player_uses"}) {
+                try (PreparedStatement ps = c.prepareStatement("SELECT player, uses FROM " + table + " WHERE code_id = ?")) {
+                    ps.setString(1, id);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            UUID player = parseUuid(rs.getString(1));
+                            if (player != null) result.put(player, rs.getInt(2));
+                        }
+                    }
+                }
+                if (!result.isEmpty()) break;
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Integer> loadArchivedUses(String codeName, UUID player) {
+        String id = key(codeName);
+        return query("load player usage of " + codeName, 0, c -> {
+            try (PreparedStatement ps = c.prepareStatement("SELECT uses FROM archived_player_uses WHERE code_id = ? AND player = ?")) {
+                ps.setString(1, id);
+                ps.setString(2, player.toString());
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Integer> countArchivedPlayers(String codeName) {
+        String id = key(codeName);
+        return query("count players of " + codeName, 0, c -> {
+            try (PreparedStatement ps = c.prepareStatement("SELECT COUNT(*) FROM archived_player_uses WHERE code_id = ?")) {
+                ps.setString(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<CodeManager.UsedCodeInfo>> loadArchive() {
+        return query("load used codes", null, c -> {
+            Map<String, UuidIntMap> uses = readUses(c, "SELECT code_id, player, uses FROM archived_player_uses");
+            List<CodeManager.UsedCodeInfo> usedCodes = new ArrayList<>();
+            try (Statement st = c.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT id, name, reward_display, total_uses, max_global_uses, " +
+                         "max_player_uses FROM archived_codes ORDER BY archived_at")) {
+                while (rs.next()) {
+                    usedCodes.add(new CodeManager.UsedCodeInfo(rs.getString(2), rs.getString(3), rs.getInt(4), rs.getInt(5),
+                            rs.getInt(6), Objects.requireNonNullElseGet(uses.get(rs.getString(1)), UuidIntMap::new)));
+                }
+            }
+            return usedCodes;
+        });
+    }
+
+    // ----------------------------
+    // Writes
+    // ----------------------------
+
+    @Override
+    public void upsertCode(Code code, boolean overwrite) {
+        CodeSnapshot snapshot = code.snapshot();
+        byte[] item = snapshot.itemReward() != null ? snapshot.itemReward().data() : null;
+
+        submit("save code " + snapshot.name(), c -> {
+            String id = key(snapshot.name());
+            deleteActive(c, id);
+            if (overwrite) deleteArchived(c, id);
+            insertCode(c, snapshot, item);
+            return null;
+        });
+    }
+
+    private static void insertCode(Connection c, CodeSnapshot code, byte[] item) throws SQLException {
+        String id = key(code.name());
+        try (PreparedStatement ps = c.prepareStatement("INSERT INTO codes (id, name, global_uses, max_global_uses, " +
+                "max_player_uses, cooldown, broadcast, reward_type, item_reward, text_reward) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            ps.setString(1, id);
+            ps.setString(2, code.name());
+            ps.setInt(3, code.globalUses());
+            ps.setInt(4, code.maxGlobalUses());
+            ps.setInt(5, code.maxPlayerUses());
+            ps.setInt(6, code.cooldown());
+            ps.setInt(7, code.broadcast() ? 1 : 0);
+            ps.setString(8, code.rewardType().name());
+            ps.setBytes(9, item);
+            ps.setString(10, switch (code.rewardType()) {
+                case PERMISSION -> code.permissionReward();
+                case RANK -> code.rankReward();
+                // the whole list in one column, see Reward
+                case BUNDLE -> Reward.encode(code.bundle());
+                case ITEM -> null;
+            });
+            ps.executeUpdate();
+        }
+
+        try (PreparedStatement ps = c.prepareStatement("INSERT INTO player_uses (code_id, player, uses) VALUES (?, ?, ?)")) {
+            code.playerUses().forEach((msb, lsb, uses) -> {
+                ps.setString(1, id);
+                ps.setString(2, new UUID(msb, lsb).toString());
+                ps.setInt(3, uses);
+                ps.addBatch();
+            });
+            ps.executeBatch();
+        }
+
+        try (PreparedStatement ps = c.prepareStatement("INSERT INTO player_cooldowns (code_id, player, last_use) VALUES (?, ?, ?)")) {
+            code.playerCooldowns().forEach((msb, lsb, lastUse) -> {
+                ps.setString(1, id);
+                ps.setString(2, new UUID(msb, lsb).toString());
+                ps.setLong(3, lastUse);
+                ps.addBatch();
+            });
+            ps.executeBatch();
+        }
+    }
+
+    private static void deleteActive(Connection c, String id) throws SQLException {
+        for (String sql : new String[]{
+                "DELETE FROM codes WHERE id = ?",
+                "DELETE FROM player_uses WHERE code_id = ?",
+                "DELETE FROM player_cooldowns WHERE code_id = ?"}) {
+            try (PreparedStatement ps = c.prepareStatement(sql)) {
+                ps.setString(1, id);
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    private static void deleteArchived(Connection c, String id) throws SQLException {
+        for (String sql : new String[]{
+                "DELETE FROM archived_codes WHERE id = ?",
+                "DELETE FROM archived_player_uses WHERE code_id = ?"}) {
+            try (PreparedStatement ps = c.prepareStatement(sql)) {
+                ps.setString(1, id);
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    @Override
+    public void deleteCode(String name) {
+        submit("delete code " + name, c -> {
+            deleteActive(c, key(name));
+            return null;
+        });
+    }
+
+    @Override
+    public void incrementUse(Code code, UUID player) {
+        String id = key(code.getName());
+        submit("save use of " + code.getName(), c -> {
+            try (PreparedStatement ps = c.prepareStatement("UPDATE codes SET global_uses = global_uses + 1 WHERE id = ?")) {
+                ps.setString(1, id);
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = c.prepareStatement("INSERT INTO player_uses (code_id, player, uses) VALUES (?, ?, 1) " +
+                    "ON CONFLICT (code_id, player) DO UPDATE SET uses = uses + 1")) {
+                ps.setString(1, id);
+                ps.setString(2, player.toString());
+                ps.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void setCooldown(Code code, UUID player, long timestamp) {
+        String id = key(code.getName());
+        submit("save cooldown of " + code.getName(), c -> {
+            try (PreparedStatement ps = c.prepareStatement("INSERT INTO player_cooldowns (code_id, player, last_use) VALUES (?, ?, ?) " +
+                    "ON CONFLICT (code_id, player) DO UPDATE SET last_use = excluded.last_use")) {
+                ps.setString(1, id);
+                ps.setString(2, player.toString());
+                ps.setLong(3, timestamp);
+                ps.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void expireCooldowns(Code code, long lastUse) {
+        String id = key(code.getName());
+        submit("remove ended cooldowns of " + code.getName(), c -> {
+            try (PreparedStatement ps = c.prepareStatement("DELETE FROM player_cooldowns WHERE code_id = ? AND last_use <= ?")) {
+                ps.setString(1, id);
+                ps.setLong(2, lastUse);
+                ps.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void archiveCode(CodeManager.UsedCodeInfo info) {
+        long archivedAt = System.currentTimeMillis();
+        submit("archive code " + info.name(), c -> {
+            String id = key(info.name());
+            deleteArchived(c, id);
+            try (PreparedStatement ps = c.prepareStatement("INSERT INTO archived_codes (id, name, reward_display, total_uses, " +
+                    "max_global_uses, max_player_uses, archived_at) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+                ps.setString(1, id);
+                ps.setString(2, info.name());
+                ps.setString(3, info.rewardDisplay());
+                ps.setInt(4, info.totalUses());
+                ps.setInt(5, info.maxGlobalUses());
+                ps.setInt(6, info.maxPlayerUses());
+                ps.setLong(7, archivedAt);
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = c.prepareStatement("INSERT INTO archived_player_uses (code_id, player, uses) " +
+                    "SELECT code_id, player, uses FROM player_uses WHERE code_id = ?")) {
+                ps.setString(1, id);
+                ps.executeUpdate();
+            }
+            deleteActive(c, id);
+            return null;
+        });
+    }
+
+    @Override
+    public void clearArchive() {
+        submit("clear used codes", c -> {
+            try (Statement st = c.createStatement()) {
+                st.executeUpdate("DELETE FROM archived_codes");
+                st.executeUpdate("DELETE FROM archived_player_uses");
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void replaceAll(StateSnapshot snapshot) {
+        try {
+            call(c -> {
+                try (Statement st = c.createStatement()) {
+                    for (String table : new String[]{"codes", "player_uses", "player_cooldowns", "archived_codes", "archived_player_uses"}) {
+                        st.executeUpdate("DELETE FROM " + table);
+                    }
+                }
+                for (CodeSnapshot code : snapshot.codes()) {
+                    insertCode(c, code, code.itemReward() != null ? code.itemReward().data() : null);
+                }
+
+                long archivedAt = 0;
+                try (PreparedStatement code = c.prepareStatement("INSERT INTO archived_codes (id, name, reward_display, " +
+                        "total_uses, max_global_uses, max_player_uses, archived_at) VALUES (?, ?, ?, ?, ?, ?, ?)");
+                     PreparedStatement uses = c.prepareStatement("INSERT INTO archived_player_uses (code_id, player, uses) VALUES (?, ?, ?)")) {
+                    for (CodeManager.UsedCodeInfo info : snapshot.usedCodes()) {
+                        String id = key(info.name());
+                        code.setString(1, id);
+                        code.setString(2, info.name());
+                        code.setString(3, info.rewardDisplay());
+                        code.setInt(4, info.totalUses());
+                        code.setInt(5, info.maxGlobalUses());
+                        code.setInt(6, info.maxPlayerUses());
+                        // keeps the original order of the list
+                        code.setLong(7, archivedAt++);
+                        code.executeUpdate();
+
+                        if (info.playerUses() == null) continue;
+                        info.playerUses().forEach((msb, lsb, count) -> {
+                            uses.setString(1, id);
+                            uses.setString(2, new UUID(msb, lsb).toString());
+                            uses.setInt(3, count);
+                            uses.addBatch();
+                        });
+                        uses.executeBatch();
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            plugin.getLogger().severe("SQLite: cannot replace stored codes: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void requestFlush() {
+        // every change is already queued for writing
+    }
+
+    @Override
+    public void flush() {
+        try {
+            call(c -> null);
+        } catch (SQLException e) {
+            plugin.getLogger().warning("SQLite: flush failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        executor.execute(() -> {
+            try {
+                if (connection != null) connection.close();
+            } catch (SQLException e) {
+                plugin.getLogger().warning("SQLite: cannot close codes.db: " + e.getMessage());
+            }
+        });
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("SQLite writer did not finish in time!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.models.CodeSnapshot;
+
+import java.util.List;
+
+/**
+ * Point-in-time copy of everything {@link CodeManager} persists.
+ */
+public record StateSnapshot(
+        List<CodeSnapshot> codes,
+        List<CodeManager.UsedCodeInfo> usedCodes
+) { }
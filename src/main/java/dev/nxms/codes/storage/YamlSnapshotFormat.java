@@ -0,0 +1,299 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.models.Code;
+import dev.nxms.codes.models.CodeSnapshot;
+import dev.nxms.codes.models.ItemBlob;
+import dev.nxms.codes.models.Reward;
+import dev.nxms.codes.models.UuidIntMap;
+import dev.nxms.codes.models.UuidLongMap;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * The codes.yml layout of a single code and of the whole state. Works only on snapshots,
+ * so it can run off the main thread.
+ * <p>
+ * Item rewards are kept once each under {@code items.<hash>} as Base64 of
+ * {@link org.bukkit.inventory.ItemStack#serializeAsBytes()} and referenced by codes through {@code item-ref}.
+ * Files with the older inline {@code item-reward} are still read.
+ */
+public final class YamlSnapshotFormat implements SnapshotFormat {
+
+    private final Logger logger;
+
+    public YamlSnapshotFormat(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public String fileName() {
+        return "codes.yml";
+    }
+
+    @Override
+    public String journalFileName() {
+        return "codes.journal";
+    }
+
+    @Override
+    public String archiveFileName() {
+        return "codes.archive";
+    }
+
+    @Override
+    public byte[] write(StateSnapshot snapshot) {
+        return serialize(snapshot).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public StateSnapshot read(Path file) throws IOException {
+        YamlConfiguration codesConfig = new YamlConfiguration();
+        try {
+            codesConfig.loadFromString(Files.readString(file, StandardCharsets.UTF_8));
+        } catch (InvalidConfigurationException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        ItemBlobPool items = readItems(codesConfig);
+
+        List<CodeSnapshot> codes = new ArrayList<>();
+        ConfigurationSection codesSection = codesConfig.getConfigurationSection("codes");
+        if (codesSection != null) {
+            for (String codeName : codesSection.getKeys(false)) {
+                ConfigurationSection codeSection = codesSection.getConfigurationSection(codeName);
+                if (codeSection == null) continue;
+
+                try {
+                    codes.add(readCode(codeName, codeSection, items::get));
+                } catch (Exception e) {
+                    logger.warning("Cannot load active code: " + codeName + "!");
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        List<CodeManager.UsedCodeInfo> usedCodes = new ArrayList<>();
+        ConfigurationSection usedSection = codesConfig.getConfigurationSection("used-codes");
+        if (usedSection != null) {
+            for (String codeName : usedSection.getKeys(false)) {
+                ConfigurationSection codeSection = usedSection.getConfigurationSection(codeName);
+                if (codeSection == null) continue;
+
+                try {
+                    usedCodes.add(readUsedCode(codeName, codeSection));
+                } catch (Exception e) {
+                    logger.warning("Cannot load used code: " + codeName + "!");
+                }
+            }
+        }
+
+        return new StateSnapshot(codes, usedCodes);
+    }
+
+    public static String serialize(StateSnapshot snapshot) {
+        return serialize(snapshot, false);
+    }
+
+    /**
+     * Same layout, but items are written inline through the Bukkit serialization so people can read them.
+     */
+    public static String serializeReadable(StateSnapshot snapshot) {
+        return serialize(snapshot, true);
+    }
+
+    private static String serialize(StateSnapshot snapshot, boolean readable) {
+        YamlConfiguration codesConfig = new YamlConfiguration();
+
+        if (!readable) {
+            ItemBlobPool items = new ItemBlobPool();
+            for (CodeSnapshot code : snapshot.codes()) {
+                for (ItemBlob item : code.items()) {
+                    items.add(item);
+                }
+            }
+            for (ItemBlob blob : items.blobs()) {
+                codesConfig.set("items." + blob.hash(), Base64.getEncoder().encodeToString(blob.data()));
+            }
+        }
+
+        for (CodeSnapshot code : snapshot.codes()) {
+            writeCode(codesConfig.createSection("codes." + code.name()), code, readable);
+        }
+
+        for (CodeManager.UsedCodeInfo info : snapshot.usedCodes()) {
+            writeUsedCode(codesConfig.createSection("used-codes." + info.name()), info);
+        }
+
+        return codesConfig.saveToString();
+    }
+
+    /**
+     * @param inlineItem write the item itself instead of a reference to {@code items}
+     */
+    public static void writeCode(ConfigurationSection section, CodeSnapshot code, boolean inlineItem) {
+        section.set("global-uses", code.globalUses());
+        section.set("max-global-uses", code.maxGlobalUses());
+        section.set("max-player-uses", code.maxPlayerUses());
+        section.set("cooldown", code.cooldown());
+        section.set("broadcast", code.broadcast());
+        section.set("reward-type", code.rewardType().name());
+
+        if (code.rewardType() == Code.RewardType.ITEM && code.itemReward() != null) {
+            if (inlineItem) {
+                section.set("item-reward", code.itemReward().item());
+            } else {
+                section.set("item-ref", code.itemReward().hash());
+            }
+        } else if (code.rewardType() == Code.RewardType.PERMISSION) {
+            section.set("permission-reward", code.permissionReward());
+        } else if (code.rewardType() == Code.RewardType.RANK) {
+            section.set("rank-reward", code.rankReward());
+        } else if (code.rewardType() == Code.RewardType.BUNDLE) {
+            // same tokens as Reward.encode, items by reference unless inline
+            List<String> rewards = new ArrayList<>();
+            for (Reward reward : code.bundle()) {
+                rewards.add(reward.type() == Code.RewardType.ITEM && !inlineItem
+                        ? "item-ref:" + reward.item().hash()
+                        : reward.token());
+            }
+            section.set("rewards", rewards);
+        }
+
+        code.playerUses().forEach((msb, lsb, uses) ->
+                section.set("player-uses." + new UUID(msb, lsb), uses));
+
+        code.playerCooldowns().forEach((msb, lsb, lastUse) ->
+                section.set("player-cooldowns." + new UUID(msb, lsb), lastUse));
+    }
+
+    public static void writeUsedCode(ConfigurationSection section, CodeManager.UsedCodeInfo info) {
+        section.set("reward", info.rewardDisplay());
+        section.set("total-uses", info.totalUses());
+        section.set("max-global-uses", info.maxGlobalUses());
+        section.set("max-player-uses", info.maxPlayerUses());
+
+        if (info.playerUses() != null) {
+            info.playerUses().forEach((msb, lsb, uses) ->
+                    section.set("player-uses." + new UUID(msb, lsb), uses));
+        }
+    }
+
+    /**
+     * @param items resolves {@code item-ref} hashes, may return null for unknown ones
+     * @throws IllegalArgumentException if the reward type is unknown
+     */
+    public static CodeSnapshot readCode(String codeName, ConfigurationSection codeSection, Function<String, ItemBlob> items) {
+        int globalUses = codeSection.getInt("global-uses", 0);
+        int maxGlobalUses = codeSection.getInt("max-global-uses", 100);
+        int maxPlayerUses = codeSection.getInt("max-player-uses", 1);
+        int cooldown = codeSection.getInt("cooldown", 0);
+        boolean broadcast = codeSection.getBoolean("broadcast", true);
+        String rewardTypeStr = codeSection.getString("reward-type", "ITEM");
+        Code.RewardType rewardType = Code.RewardType.valueOf(rewardTypeStr);
+
+        ItemBlob itemReward = null;
+        String permissionReward = null;
+        String rankReward = null;
+        List<Reward> bundle = List.of();
+
+        if (rewardType == Code.RewardType.ITEM) {
+            String ref = codeSection.getString("item-ref");
+            if (ref != null) {
+                itemReward = items.apply(ref);
+            } else {
+                ItemStack legacy = codeSection.getItemStack("item-reward");
+                if (legacy != null) itemReward = ItemBlob.of(legacy);
+            }
+        } else if (rewardType == Code.RewardType.PERMISSION) {
+            permissionReward = codeSection.getString("permission-reward");
+        } else if (rewardType == Code.RewardType.RANK) {
+            rankReward = codeSection.getString("rank-reward");
+        } else if (rewardType == Code.RewardType.BUNDLE) {
+            bundle = readBundle(codeSection.getStringList("rewards"), items);
+        }
+
+        UuidIntMap playerUses = readPlayerUses(codeSection.getConfigurationSection("player-uses"));
+
+        UuidLongMap playerCooldowns = new UuidLongMap();
+        ConfigurationSection cooldownsSection = codeSection.getConfigurationSection("player-cooldowns");
+        if (cooldownsSection != null) {
+            for (String uuidStr : cooldownsSection.getKeys(false)) {
+                try {
+                    UUID uuid = UUID.fromString(uuidStr);
+                    long lastUse = cooldownsSection.getLong(uuidStr);
+                    playerCooldowns.put(uuid, lastUse);
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+        }
+
+        return new CodeSnapshot(codeName, globalUses, maxGlobalUses, maxPlayerUses, cooldown, broadcast,
+                rewardType, itemReward, permissionReward, rankReward, bundle, playerUses, playerCooldowns);
+    }
+
+    /**
+     * Rewards whose item cannot be found are left out.
+     */
+    private static List<Reward> readBundle(List<String> tokens, Function<String, ItemBlob> items) {
+        List<Reward> bundle = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            if (token.startsWith("item-ref:")) {
+                ItemBlob item = items.apply(token.substring("item-ref:".length()));
+                if (item != null) bundle.add(Reward.item(item));
+            } else {
+                bundle.add(Reward.parse(token));
+            }
+        }
+        return List.copyOf(bundle);
+    }
+
+    public static CodeManager.UsedCodeInfo readUsedCode(String codeName, ConfigurationSection codeSection) {
+        String rewardDisplay = codeSection.getString("reward", "Unknown");
+        int totalUses = codeSection.getInt("total-uses", 0);
+        int maxGlobalUses = codeSection.getInt("max-global-uses", 0);
+        int maxPlayerUses = codeSection.getInt("max-player-uses", 0);
+        UuidIntMap playerUses = readPlayerUses(codeSection.getConfigurationSection("player-uses"));
+
+        return new CodeManager.UsedCodeInfo(codeName, rewardDisplay, totalUses, maxGlobalUses, maxPlayerUses, playerUses);
+    }
+
+    private ItemBlobPool readItems(YamlConfiguration codesConfig) {
+        ItemBlobPool items = new ItemBlobPool();
+        ConfigurationSection section = codesConfig.getConfigurationSection("items");
+        if (section == null) return items;
+
+        for (String hash : section.getKeys(false)) {
+            try {
+                items.add(Base64.getDecoder().decode(section.getString(hash, "")));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Cannot load item " + hash + "!");
+            }
+        }
+        return items;
+    }
+
+    private static UuidIntMap readPlayerUses(ConfigurationSection section) {
+        UuidIntMap playerUses = new UuidIntMap();
+        if (section == null) return playerUses;
+
+        for (String uuidStr : section.getKeys(false)) {
+            try {
+                UUID uuid = UUID.fromString(uuidStr);
+                playerUses.put(uuid, section.getInt(uuidStr, 0));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return playerUses;
+    }
+}
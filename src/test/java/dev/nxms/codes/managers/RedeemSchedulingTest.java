@@ -0,0 +1,284 @@
+package dev.nxms.codes.managers;
+
+import dev.nxms.codes.Codes;
+import dev.nxms.codes.storage.IoExecutor;
+import io.papermc.paper.threadedregions.scheduler.AsyncScheduler;
+import io.papermc.paper.threadedregions.scheduler.EntityScheduler;
+import io.papermc.paper.threadedregions.scheduler.GlobalRegionScheduler;
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import org.bukkit.Server;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.plugin.Plugin;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Redeems a permission code with few uses from players spread over several regions, on schedulers
+ * that behave like Folia's: one global region thread, one thread per region and a pool for async
+ * tasks. Every redemption starts on the player's region and hops to the global region, as
+ * {@code /code <name>} does.
+ */
+class RedeemSchedulingTest {
+
+    private static final int REGIONS = 4;
+    private static final int PLAYERS = 400;
+    private static final int MAX_USES = 100;
+    private static final long TICK_MILLIS = 5;
+    private static final String GLOBAL = "global";
+
+    @TempDir
+    Path folder;
+
+    private ExecutorService global;
+    private final List<ExecutorService> regions = new ArrayList<>();
+    private ExecutorService async;
+    private ScheduledExecutorService timer;
+    private IoExecutor io;
+    private CodeManager codeManager;
+
+    private final Map<UUID, String> regionOf = new ConcurrentHashMap<>();
+    // player -> thread the permission attachment was added on
+    private final Map<UUID, String> granted = new ConcurrentHashMap<>();
+    private final List<String> grantThreads = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startThreads() {
+        global = Executors.newSingleThreadExecutor(task -> new Thread(task, GLOBAL));
+        for (int i = 0; i < REGIONS; i++) {
+            String name = region(i);
+            regions.add(Executors.newSingleThreadExecutor(task -> new Thread(task, name)));
+        }
+        async = Executors.newFixedThreadPool(4);
+        timer = Executors.newSingleThreadScheduledExecutor();
+        io = new IoExecutor(Logger.getLogger("Codes"));
+    }
+
+    @AfterEach
+    void stopThreads() throws Exception {
+        if (codeManager != null) onGlobal(() -> {
+            codeManager.shutdown();
+            return null;
+        });
+        io.drain(10, TimeUnit.SECONDS);
+        timer.shutdownNow();
+        async.shutdownNow();
+        global.shutdownNow();
+        regions.forEach(ExecutorService::shutdownNow);
+    }
+
+    @Test
+    void grantsMatchLimitOnTheRightThreads() throws Exception {
+        Codes plugin = plugin();
+        codeManager = onGlobal(() -> new CodeManager(plugin));
+        assertTrue(onGlobal(() -> codeManager.createCodeWithPermission("event", MAX_USES, 1, 0, false, "codes.event")));
+
+        List<Player> players = new ArrayList<>();
+        for (int i = 0; i < PLAYERS; i++) {
+            players.add(player(plugin, i % REGIONS));
+        }
+
+        // every player tries twice, the second attempt must never give anything
+        CountDownLatch answered = new CountDownLatch(PLAYERS * 2);
+        Map<CodeManager.RedeemResult, Set<UUID>> results = new ConcurrentHashMap<>();
+        List<String> callbackThreads = new CopyOnWriteArrayList<>();
+        for (int attempt = 0; attempt < 2; attempt++) {
+            for (int i = 0; i < PLAYERS; i++) {
+                Player player = players.get(i);
+                regions.get(i % REGIONS).execute(() -> global.execute(() ->
+                        codeManager.redeemCode(player, "event", redemption -> {
+                            callbackThreads.add(Thread.currentThread().getName());
+                            results.computeIfAbsent(redemption.result(), result -> ConcurrentHashMap.newKeySet())
+                                    .add(player.getUniqueId());
+                            answered.countDown();
+                        })));
+            }
+        }
+        assertTrue(answered.await(30, TimeUnit.SECONDS), "redemptions left unanswered: " + answered.getCount());
+
+        // rewards are handed out by the work scheduler after the callbacks
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (granted.size() < MAX_USES && System.nanoTime() < deadline) {
+            Thread.sleep(TICK_MILLIS);
+        }
+        settle();
+
+        Set<UUID> succeeded = results.get(CodeManager.RedeemResult.SUCCESS_PERMISSION);
+        assertNotNull(succeeded);
+        assertEquals(MAX_USES, succeeded.size());
+        assertEquals(MAX_USES, grantThreads.size(), "permission attachments added");
+        assertEquals(succeeded, granted.keySet());
+
+        for (Player player : players) {
+            String thread = granted.get(player.getUniqueId());
+            if (thread != null) assertEquals(regionOf(player), thread, "grant for " + player.getName());
+        }
+        for (String thread : callbackThreads) {
+            assertEquals(GLOBAL, thread);
+        }
+
+        assertNull(onGlobal(() -> codeManager.getCode("event")));
+        assertNotNull(onGlobal(() -> codeManager.getUsedCode("event")));
+    }
+
+    private Codes plugin() {
+        Codes plugin = mock(Codes.class);
+        when(plugin.getServer()).thenReturn(server());
+        when(plugin.getConfig()).thenReturn(new YamlConfiguration());
+        when(plugin.getDataFolder()).thenReturn(folder.toFile());
+        when(plugin.getLogger()).thenReturn(Logger.getLogger("Codes"));
+        when(plugin.getIo()).thenReturn(io);
+        when(plugin.isEnabled()).thenReturn(true);
+
+        WorkScheduler workScheduler = new WorkScheduler(plugin);
+        PermissionGrants permissionGrants = new PermissionGrants(plugin);
+        when(plugin.getWorkScheduler()).thenReturn(workScheduler);
+        when(plugin.getPermissionGrants()).thenReturn(permissionGrants);
+        workScheduler.start();
+        return plugin;
+    }
+
+    private Server server() {
+        Map<String, Function<Object[], Object>> globalMethods = new HashMap<>();
+        globalMethods.put("execute", args -> {
+            global.execute((Runnable) args[1]);
+            return null;
+        });
+        globalMethods.put("run", args -> later(task(args[1]), 0, 0));
+        globalMethods.put("runDelayed", args -> later(task(args[1]), (long) args[2], 0));
+        globalMethods.put("runAtFixedRate", args -> later(task(args[1]), (long) args[2], (long) args[3]));
+
+        GlobalRegionScheduler globalScheduler = fake(GlobalRegionScheduler.class, globalMethods);
+        AsyncScheduler asyncScheduler = fake(AsyncScheduler.class, Map.of("runNow", args -> {
+            ScheduledTask task = fake(ScheduledTask.class, Map.of());
+            async.execute(() -> task(args[1]).accept(task));
+            return task;
+        }));
+
+        return fake(Server.class, Map.of(
+                "getGlobalRegionScheduler", args -> globalScheduler,
+                "getAsyncScheduler", args -> asyncScheduler,
+                "isGlobalTickThread", args -> Thread.currentThread().getName().equals(GLOBAL),
+                "isOwnedByCurrentRegion", args -> Thread.currentThread().getName().equals(regionOf((Entity) args[0]))));
+    }
+
+    /**
+     * Runs the task on the global thread after the delay, and again every period if there is one.
+     */
+    private ScheduledTask later(Consumer<ScheduledTask> body, long delayTicks, long periodTicks) {
+        ScheduledTask task = fake(ScheduledTask.class, Map.of());
+        Runnable run = () -> global.execute(() -> body.accept(task));
+        if (periodTicks > 0) {
+            timer.scheduleAtFixedRate(run, delayTicks * TICK_MILLIS, periodTicks * TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            timer.schedule(run, delayTicks * TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return task;
+    }
+
+    private Player player(Plugin plugin, int region) {
+        UUID uuid = UUID.randomUUID();
+        String name = "player-" + uuid.toString().substring(0, 8);
+        regionOf.put(uuid, region(region));
+        ExecutorService thread = regions.get(region);
+        EntityScheduler scheduler = fake(EntityScheduler.class, Map.of("execute", args -> {
+            thread.execute((Runnable) args[1]);
+            return true;
+        }));
+
+        Player[] player = new Player[1];
+        player[0] = fake(Player.class, Map.of(
+                "getUniqueId", args -> uuid,
+                "getName", args -> name,
+                "getScheduler", args -> scheduler,
+                "isOnline", args -> true,
+                "recalculatePermissions", args -> null,
+                "addAttachment", args -> {
+                    String current = Thread.currentThread().getName();
+                    grantThreads.add(current);
+                    granted.put(uuid, current);
+                    return new PermissionAttachment(plugin, player[0]);
+                }));
+        return player[0];
+    }
+
+    private String regionOf(Entity entity) {
+        return regionOf.get(entity.getUniqueId());
+    }
+
+    private static String region(int index) {
+        return "region-" + index;
+    }
+
+    /**
+     * Waits until tasks already queued on the global region and on every region have run, twice,
+     * so rewards still on their way arrive before the counts are checked.
+     */
+    private void settle() throws Exception {
+        for (int round = 0; round < 2; round++) {
+            Thread.sleep(TICK_MILLIS * 4);
+            onGlobal(() -> null);
+            for (ExecutorService region : regions) {
+                region.submit(() -> null).get(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private <T> T onGlobal(Callable<T> task) throws Exception {
+        return global.submit(task).get(10, TimeUnit.SECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Consumer<ScheduledTask> task(Object body) {
+        return (Consumer<ScheduledTask>) body;
+    }
+
+    /**
+     * An implementation of the interface that answers only the given methods and fails on any
+     * other, so a call the test did not expect shows up instead of returning null.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Function<Object[], Object> body = methods.get(method.getName());
+            if (body != null) return body.apply(args);
+            return switch (method.getName()) {
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                case "toString" -> type.getSimpleName();
+                default -> throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+            };
+        });
+    }
+}
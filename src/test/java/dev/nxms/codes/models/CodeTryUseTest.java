@@ -0,0 +1,159 @@
+package dev.nxms.codes.models;
+
+import dev.nxms.codes.storage.MappedUsageStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Races {@link Code#tryUse} from many threads on both usage tables. Whatever the interleaving,
+ * a code gives exactly its global limit of uses and no player gets more than their own limit.
+ */
+class CodeTryUseTest {
+
+    private static final int THREADS = 8;
+    private static final int PLAYERS = 32;
+    private static final int ROUNDS = 200;
+    private static final int ATTEMPTS_PER_THREAD = 500;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void heapTableKeepsBothLimits() throws Exception {
+        assertLimitsHold(HeapUsageTable::new, 50, 3);
+    }
+
+    @Test
+    void heapTableKeepsPlayerLimitWithoutGlobalOne() throws Exception {
+        assertLimitsHold(HeapUsageTable::new, Code.UNLIMITED, 2);
+    }
+
+    @Test
+    void mappedTableKeepsBothLimits() throws Exception {
+        MappedUsageStore store = new MappedUsageStore(folder.toFile(), Logger.getLogger("Codes"));
+        try {
+            assertLimitsHold(() -> store.createTable(0), 50, 3);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void mappedTableKeepsPlayerLimitWithoutGlobalOne() throws Exception {
+        MappedUsageStore store = new MappedUsageStore(folder.toFile(), Logger.getLogger("Codes"));
+        try {
+            // starts small, so the table grows while the threads race
+            assertLimitsHold(() -> store.createTable(0), Code.UNLIMITED, 2);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void releasedTablesRejectUses() {
+        MappedUsageStore store = new MappedUsageStore(folder.toFile(), Logger.getLogger("Codes"));
+        try {
+            for (UsageTable table : List.of(new HeapUsageTable(), store.createTable(0))) {
+                Code code = code(table, 10, 1);
+                int player = PlayerIds.intern(UUID.randomUUID());
+                code.retire(Code.Status.REMOVED);
+
+                assertEquals(Code.UseResult.GLOBAL_LIMIT, code.tryUse(player, System.currentTimeMillis()));
+                assertEquals(0, code.getGlobalUses());
+                assertEquals(0, code.getPlayerUseCount(player));
+            }
+
+            // a released mapped table has no buffer left, changes are ignored instead of failing
+            UsageTable mapped = store.createTable(0);
+            mapped.release();
+            mapped.setUses(1, 2);
+            mapped.incrementUse(1);
+            mapped.setLastUse(1, System.currentTimeMillis());
+            assertEquals(0, mapped.getUses(1));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Each round starts all threads on a fresh code at once, so most attempts meet while uses are still left.
+     */
+    private void assertLimitsHold(Supplier<UsageTable> tables, int maxGlobalUses, int maxPlayerUses) throws Exception {
+        int[] players = new int[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            players[i] = PlayerIds.intern(UUID.randomUUID());
+        }
+
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                Code code = code(tables.get(), maxGlobalUses, maxPlayerUses);
+                AtomicIntegerArray used = race(threads, code, players);
+
+                int total = 0;
+                for (int i = 0; i < PLAYERS; i++) {
+                    int uses = used.get(i);
+                    total += uses;
+                    assertTrue(uses <= maxPlayerUses, "player " + i + " used the code " + uses + " times");
+                    assertEquals(uses, code.getPlayerUseCount(players[i]), "uses recorded for player " + i);
+                }
+
+                int expected = maxGlobalUses == Code.UNLIMITED ? PLAYERS * maxPlayerUses : maxGlobalUses;
+                assertEquals(expected, total, "uses in round " + round);
+                assertEquals(expected, code.getGlobalUses(), "global uses in round " + round);
+                code.release();
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * @return successful uses per player index
+     */
+    private static AtomicIntegerArray race(ExecutorService threads, Code code, int[] players) throws Exception {
+        AtomicIntegerArray used = new AtomicIntegerArray(players.length);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> racers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            racers.add(threads.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < ATTEMPTS_PER_THREAD; i++) {
+                    int index = random.nextInt(players.length);
+                    if (code.tryUse(players[index], System.currentTimeMillis()) == Code.UseResult.USED) {
+                        used.incrementAndGet(index);
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> racer : racers) {
+            racer.get();
+        }
+        return used;
+    }
+
+    private static Code code(UsageTable table, int maxGlobalUses, int maxPlayerUses) {
+        CodeSnapshot snapshot = new CodeSnapshot("race", 0, maxGlobalUses, maxPlayerUses, 0, false,
+                Code.RewardType.PERMISSION, null, "codes.race", null, List.of(), new UuidIntMap(), new UuidLongMap());
+        return new Code(snapshot, table);
+    }
+}
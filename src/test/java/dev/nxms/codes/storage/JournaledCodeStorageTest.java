@@ -0,0 +1,114 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.Codes;
+import dev.nxms.codes.models.Code;
+import dev.nxms.codes.models.CodeSnapshot;
+import dev.nxms.codes.models.PlayerIds;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Saves a snapshot while uses are reserved, settles them afterwards and reads the files back the
+ * way a restart does. A committed use must count once, a released one not at all.
+ */
+class JournaledCodeStorageTest {
+
+    @TempDir
+    Path folder;
+
+    private IoExecutor io;
+    private Codes plugin;
+
+    @BeforeEach
+    void setUp() {
+        io = new IoExecutor(Logger.getLogger("Codes"));
+        plugin = mock(Codes.class);
+        when(plugin.getConfig()).thenReturn(new YamlConfiguration());
+        when(plugin.getDataFolder()).thenReturn(folder.toFile());
+        when(plugin.getLogger()).thenReturn(Logger.getLogger("Codes"));
+        when(plugin.getIo()).thenReturn(io);
+    }
+
+    @AfterEach
+    void tearDown() {
+        io.drain(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void snapshotTakenDuringReservationReplaysEachUseOnce() {
+        Code code = new Code("event", 10, 2, 60, false, "codes.event", Code.RewardType.PERMISSION);
+        JournaledCodeStorage storage = new JournaledCodeStorage(plugin, new BinarySnapshotFormat(),
+                () -> new StateSnapshot(List.of(code.snapshot()), List.of()));
+        storage.load();
+
+        UUID committed = UUID.randomUUID();
+        UUID released = UUID.randomUUID();
+        long now = System.currentTimeMillis();
+        assertEquals(Code.UseResult.USED, code.tryUse(PlayerIds.intern(committed), now));
+        assertEquals(Code.UseResult.USED, code.tryUse(PlayerIds.intern(released), now));
+
+        // rotates the journal and writes the snapshot while both uses are still reserved
+        storage.flush();
+
+        // a granted reward: the use is saved after the snapshot, as CodeManager does
+        code.commitUse(PlayerIds.intern(committed), now);
+        storage.incrementUse(code, committed);
+        storage.setCooldown(code, committed, now);
+        // a failed rank grant gives the use back
+        code.releaseUse(PlayerIds.intern(released), now);
+
+        // what the next start sees, without the save on shutdown
+        CodeSnapshot replayed = new JournaledCodeStorage(plugin, new BinarySnapshotFormat(), () -> null)
+                .read().codes().get(0);
+        assertEquals(1, replayed.globalUses());
+        assertEquals(1, replayed.playerUses().get(committed));
+        assertEquals(now, replayed.playerCooldowns().get(committed));
+        assertEquals(0, replayed.playerUses().get(released));
+        assertFalse(replayed.playerCooldowns().containsKey(released));
+
+        storage.close();
+    }
+
+    @Test
+    void snapshotLeavesOutReservedUses() {
+        Code code = new Code("event", 10, 2, 60, false, "codes.event", Code.RewardType.PERMISSION);
+        UUID player = UUID.randomUUID();
+        UUID other = UUID.randomUUID();
+        long earlier = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(5);
+        long now = System.currentTimeMillis();
+
+        assertEquals(Code.UseResult.USED, code.tryUse(PlayerIds.intern(player), earlier));
+        code.commitUse(PlayerIds.intern(player), earlier);
+        assertEquals(Code.UseResult.USED, code.tryUse(PlayerIds.intern(player), now));
+        assertEquals(Code.UseResult.USED, code.tryUse(PlayerIds.intern(other), now));
+
+        CodeSnapshot snapshot = code.snapshot();
+        assertEquals(1, snapshot.globalUses());
+        assertEquals(1, snapshot.playerUses().get(player));
+        assertFalse(snapshot.playerUses().containsKey(other));
+        // the reserved use replaced the last use, the ended cooldown before it is not kept either
+        assertFalse(snapshot.playerCooldowns().containsKey(player));
+        assertFalse(snapshot.playerCooldowns().containsKey(other));
+
+        code.commitUse(PlayerIds.intern(player), now);
+        code.commitUse(PlayerIds.intern(other), now);
+        snapshot = code.snapshot();
+        assertEquals(3, snapshot.globalUses());
+        assertEquals(2, snapshot.playerUses().get(player));
+        assertEquals(now, snapshot.playerCooldowns().get(player));
+    }
+}
@@ -0,0 +1,173 @@
+package dev.nxms.codes.storage;
+
+import dev.nxms.codes.managers.CodeManager;
+import dev.nxms.codes.models.Code;
+import dev.nxms.codes.models.CodeSnapshot;
+import dev.nxms.codes.models.ItemBlob;
+import dev.nxms.codes.models.Reward;
+import dev.nxms.codes.models.UuidIntMap;
+import dev.nxms.codes.models.UuidLongMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes one synthetic state with {@link YamlSnapshotFormat} and {@link BinarySnapshotFormat} and
+ * prints how large each file is and how long reading it back takes. Both must read back the same
+ * state, and the binary file must be the smaller one.
+ */
+class SnapshotFormatBenchmarkTest {
+
+    private static final int CODES = 200;
+    private static final int USED_CODES = 500;
+    private static final int PLAYERS = 5000;
+    private static final int PLAYERS_PER_CODE = 100;
+    private static final int ITEMS = 20;
+    private static final int WARMUP_READS = 1;
+    private static final int READS = 3;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void compareFormats() throws IOException {
+        StateSnapshot state = generate(new Random(42));
+
+        Result yaml = measure(new YamlSnapshotFormat(Logger.getLogger("Codes")), state);
+        Result binary = measure(new BinarySnapshotFormat(), state);
+
+        System.out.printf("Snapshot of %d codes and %d used codes:%n", CODES, USED_CODES);
+        System.out.println(yaml);
+        System.out.println(binary);
+
+        assertTrue(binary.bytes() < yaml.bytes(), "binary " + binary.bytes() + " B, yaml " + yaml.bytes() + " B");
+    }
+
+    private Result measure(SnapshotFormat format, StateSnapshot state) throws IOException {
+        long start = System.nanoTime();
+        byte[] data = format.write(state);
+        long writeNanos = System.nanoTime() - start;
+
+        Path file = folder.resolve(format.fileName());
+        Files.write(file, data);
+
+        for (int i = 0; i < WARMUP_READS; i++) {
+            format.read(file);
+        }
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        StateSnapshot read = null;
+        for (int i = 0; i < READS; i++) {
+            start = System.nanoTime();
+            read = format.read(file);
+            long nanos = System.nanoTime() - start;
+            best = Math.min(best, nanos);
+            total += nanos;
+        }
+
+        assertSameState(state, read, format.fileName());
+        return new Result(format.fileName(), data.length, writeNanos, best, total / READS);
+    }
+
+    private record Result(String file, int bytes, long writeNanos, long bestReadNanos, long averageReadNanos) {
+
+        @Override
+        public String toString() {
+            return String.format("  %-12s %,10d B  write %7.1f ms  read best %7.1f ms, average %7.1f ms",
+                    file, bytes, writeNanos / 1e6, bestReadNanos / 1e6, averageReadNanos / 1e6);
+        }
+    }
+
+    private static void assertSameState(StateSnapshot expected, StateSnapshot actual, String file) {
+        assertEquals(expected.codes().size(), actual.codes().size(), file + " codes");
+        assertEquals(expected.usedCodes().size(), actual.usedCodes().size(), file + " used codes");
+
+        for (CodeSnapshot code : expected.codes()) {
+            CodeSnapshot read = actual.codes().stream()
+                    .filter(candidate -> candidate.name().equals(code.name()))
+                    .findFirst()
+                    .orElseThrow();
+            assertEquals(code.globalUses(), read.globalUses(), file + " " + code.name());
+            assertEquals(code.rewardType(), read.rewardType(), file + " " + code.name());
+            assertEquals(code.playerUses().toMap(), read.playerUses().toMap(), file + " " + code.name());
+            assertEquals(code.playerCooldowns().size(), read.playerCooldowns().size(), file + " " + code.name());
+            assertEquals(code.items().size(), read.items().size(), file + " " + code.name());
+        }
+        for (CodeManager.UsedCodeInfo info : expected.usedCodes()) {
+            CodeManager.UsedCodeInfo read = actual.usedCodes().stream()
+                    .filter(candidate -> candidate.name().equals(info.name()))
+                    .findFirst()
+                    .orElseThrow();
+            assertEquals(info.totalUses(), read.totalUses(), file + " " + info.name());
+            assertEquals(info.playerUses().toMap(), read.playerUses().toMap(), file + " " + info.name());
+        }
+    }
+
+    /**
+     * Codes of every reward type sharing a few items, each used by a random part of the players.
+     */
+    private static StateSnapshot generate(Random random) {
+        List<UUID> players = new ArrayList<>(PLAYERS);
+        for (int i = 0; i < PLAYERS; i++) {
+            players.add(new UUID(random.nextLong(), random.nextLong()));
+        }
+        List<ItemBlob> items = new ArrayList<>(ITEMS);
+        for (int i = 0; i < ITEMS; i++) {
+            byte[] data = new byte[200 + random.nextInt(400)];
+            random.nextBytes(data);
+            items.add(ItemBlob.of(data));
+        }
+
+        long now = System.currentTimeMillis();
+        List<CodeSnapshot> codes = new ArrayList<>(CODES);
+        for (int i = 0; i < CODES; i++) {
+            UuidIntMap playerUses = new UuidIntMap();
+            UuidLongMap playerCooldowns = new UuidLongMap();
+            int globalUses = 0;
+            for (int p = 0; p < PLAYERS_PER_CODE; p++) {
+                UUID player = players.get(random.nextInt(PLAYERS));
+                int uses = 1 + random.nextInt(3);
+                globalUses += uses - playerUses.get(player);
+                playerUses.put(player, uses);
+                playerCooldowns.put(player, now - random.nextInt(86_400_000));
+            }
+
+            String name = "code" + i;
+            ItemBlob item = items.get(random.nextInt(ITEMS));
+            codes.add(switch (i % 4) {
+                case 0 -> new CodeSnapshot(name, globalUses, Code.UNLIMITED, 3, 3600, false,
+                        Code.RewardType.ITEM, item, null, null, List.of(), playerUses, playerCooldowns);
+                case 1 -> new CodeSnapshot(name, globalUses, Code.UNLIMITED, 3, 3600, true,
+                        Code.RewardType.PERMISSION, null, "codes.reward." + i, null, List.of(), playerUses, playerCooldowns);
+                case 2 -> new CodeSnapshot(name, globalUses, Code.UNLIMITED, 3, 3600, false,
+                        Code.RewardType.RANK, null, null, "vip", List.of(), playerUses, playerCooldowns);
+                default -> new CodeSnapshot(name, globalUses, Code.UNLIMITED, 3, 3600, false,
+                        Code.RewardType.BUNDLE, null, null, null,
+                        List.of(Reward.item(item), Reward.permission("codes.bundle." + i), Reward.rank("vip")),
+                        playerUses, playerCooldowns);
+            });
+        }
+
+        List<CodeManager.UsedCodeInfo> usedCodes = new ArrayList<>(USED_CODES);
+        for (int i = 0; i < USED_CODES; i++) {
+            UuidIntMap playerUses = new UuidIntMap();
+            for (int p = 0; p < PLAYERS_PER_CODE / 2; p++) {
+                playerUses.put(players.get(random.nextInt(PLAYERS)), 1);
+            }
+            usedCodes.add(new CodeManager.UsedCodeInfo("used" + i, "Permisja: codes.used." + i,
+                    playerUses.size(), playerUses.size(), 1, playerUses));
+        }
+        return new StateSnapshot(codes, usedCodes);
+    }
+}